@@ -47,6 +47,16 @@ android {
         jvmTarget = "11"
     }
 
+    androidResources {
+        // tflite 모델을 압축하지 않고 저장해 APK에서 바로 mmap 할 수 있게 함
+        noCompress += "tflite"
+    }
+
+    testOptions {
+        // 로컬 단위 테스트에서 android.util.Log 등 android.jar 호출은 기본값을 반환 (예외 대신)
+        unitTests.isReturnDefaultValues = true
+    }
+
     sourceSets {
         getByName("main") {
             jniLibs.srcDirs("libs") // 만약 libs 폴더에 .so 파일을 두었다면 이와 같이 설정
@@ -78,4 +88,7 @@ dependencies {
     implementation("androidx.room:room-runtime:2.6.1")
     ksp("androidx.room:room-compiler:2.6.1")
     implementation("androidx.room:room-ktx:2.6.1") // 코루틴 지원
+
+    // 코루틴 / Flow (실시간 변환 스트림)
+    implementation("org.jetbrains.kotlinx:kotlinx-coroutines-android:1.8.1")
 }
\ No newline at end of file
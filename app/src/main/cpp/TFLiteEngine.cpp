@@ -1,273 +1,831 @@
 #include <iostream>
-#include <fstream>
 #include <cstring>
 #include <vector>
-#include <sys/time.h>
+#include <map>
+#include <mutex>
+#include <condition_variable>
+#include <thread>
+#include <sys/stat.h>
+#include <fcntl.h>
+#include <unistd.h>
 #include "tensorflow/lite/core/interpreter.h"
 #include "tensorflow/lite/kernels/register.h"
 #include "tensorflow/lite/model.h"
 #include "tensorflow/lite/optional_debug_tools.h"
 #include "tensorflow/lite/delegates/gpu/delegate.h"
+#include "tensorflow/lite/delegates/xnnpack/xnnpack_delegate.h"
 
 #include "TFLiteEngine.h"
 #include "input_features.h"
-#include "filters_vocab_multilingual.h"
+#include "trace.h"
 #include "whisper.h"
 #include "wav_util.h"
+#include "vad.h"
+#include "segmenter.h"
+#include "cache.h"
 
 #define INFERENCE_ON_AUDIO_FILE 1
-#define TIME_DIFF_MS(start, end) (((end.tv_sec - start.tv_sec) * 1000000) + (end.tv_usec - start.tv_usec))/1000
 #define TFLITE_MINIMAL_CHECK(x)                              \
   if (!(x)) {                                                \
-    fprintf(stderr, "Error at %s:%d", __FILE__, __LINE__); \
+    LOGE("Error at %s:%d", __FILE__, __LINE__);             \
     exit(1);                                                 \
   }
 
-int TFLiteEngine:: loadModel(const char *modelPath, const bool isMultilingual) {
-    std::cout << "Entering " << __func__ << "()" << std::endl;
+static_assert(TFLiteEngine::MAX_BUFFER_SAMPLES == WHISPER_SAMPLE_RATE * WHISPER_CHUNK_SIZE, "one 30 second chunk");
 
-    timeval start_time{}, end_time{};
-    if (!g_whisper_tflite.is_whisper_tflite_initialized) {
+TFLiteEngine::TFLiteEngine() : stats(new whisper_stats()) {}
 
-        gettimeofday(&start_time, NULL);
-        std::cout << "Initializing TFLite..." << std::endl;
+TFLiteEngine::~TFLiteEngine() = default;
 
-        /////////////// Load filters and vocab data ///////////////
+void TFLiteEngine::setNumThreads(int numThreads) {
+    if (numThreads < 0) {
+        numThreads = 0;
+    }
+    if (numThreads != this->numThreads) {
+        this->numThreads = numThreads;
+        melPool.reset(); // recreated with the new size on next use
+    }
+}
 
-       const char* vocabData = nullptr;
-        if (isMultilingual)
-            vocabData = reinterpret_cast<const char*>(filters_vocab_multilingual);
+void TFLiteEngine::setChunkOverlap(int overlapMs) {
+    // at most half a chunk, so every chunk has new audio
+    const size_t maxSamples = WHISPER_SAMPLE_RATE * WHISPER_CHUNK_SIZE / 2;
+    overlapSamples = std::min((size_t) std::max(overlapMs, 0) * WHISPER_SAMPLE_RATE / 1000, maxSamples);
+}
 
-        // Read the magic number
-        int magic = 0;
-        std::memcpy(&magic, vocabData, sizeof(magic));
-        vocabData += sizeof(magic);
+bool TFLiteEngine::getVocab(const char **bytes, const uint32_t **offsets, int *n_tokens) const {
+    if (!assets) {
+        return false;
+    }
+    *bytes = assets->vocab.bytes().data();
+    *offsets = assets->vocab.offsets().data();
+    *n_tokens = assets->vocab.size();
+    return true;
+}
 
-        // Check the magic number
-        if (magic != 0x57535052) { // 'WSPR'
-            std::cerr << "Invalid vocab data (bad magic)" << std::endl;
-            return -1;
-        }
+void TFLiteEngine::resetStats() {
+    stats->reset();
+}
 
-        // Load mel filters
-        std::memcpy(&filters.n_mel, vocabData, sizeof(filters.n_mel));
-        vocabData += sizeof(filters.n_mel);
+WorkerPool& TFLiteEngine::getMelPool() {
+    if (!melPool) {
+        int n = numThreads > 0 ? numThreads : (int) std::thread::hardware_concurrency();
+        melPool.reset(new WorkerPool(n));
+        melScratch.clear();
+    }
+    return *melPool;
+}
 
-        std::memcpy(&filters.n_fft, vocabData, sizeof(filters.n_fft));
-        vocabData += sizeof(filters.n_fft);
+// Immutable data shared between engines. Only weak references are kept here, the data is
+// released when the last engine using it frees its model.
+static std::mutex g_shared_mutex;
+static std::map<std::string, std::weak_ptr<const whisper_assets>> g_shared_assets;
+static std::map<std::string, std::weak_ptr<const whisper_model>> g_shared_models;
+static std::map<std::string, std::weak_ptr<whisper_cache>> g_shared_caches;
 
-        std::cout << "n_mel:" << filters.n_mel << " n_fft:" << filters.n_fft << std::endl;
+#define WHISPER_VOCAB_MAGIC 0x5553454e        // filters_vocab_*.bin, also read by WhisperUtil
+#define WHISPER_VOCAB_MAGIC_LEGACY 0x57535052 // 'WSPR', the old compiled-in array
 
-        filters.data.resize(filters.n_mel * filters.n_fft);
-        std::memcpy(filters.data.data(), vocabData, filters.data.size() * sizeof(float));
-        vocabData += filters.data.size() * sizeof(float);
+static std::shared_ptr<const whisper_assets> parseAssets(const char *vocabPath, const bool isMultilingual) {
+    /////////////// Map filters and vocab data ///////////////
 
-        // Load vocab
-        int n_vocab = 0;
-        std::memcpy(&n_vocab, vocabData, sizeof(n_vocab));
-        vocabData += sizeof(n_vocab);
+    auto assets = std::make_shared<whisper_assets>();
+    if (!assets->file.map(vocabPath)) {
+        LOGE("Unable to map vocab file: %s", vocabPath);
+        return nullptr;
+    }
+    whisper_filters& filters = assets->filters;
+    whisper_vocab& vocab = assets->vocab;
 
-        std::cout << "n_vocab:" << n_vocab << std::endl;
+    const char* vocabData = assets->file.data;
+    const char* vocabEnd = vocabData + assets->file.size;
 
-        for (int i = 0; i < n_vocab; i++) {
-            int len = 0;
-            std::memcpy(&len, vocabData, sizeof(len));
-            vocabData += sizeof(len);
+    // Header: magic, n_mel, n_fft
+    int magic = 0;
+    if (vocabEnd - vocabData < 3 * (long) sizeof(int)) {
+        LOGE("Invalid vocab file (too short): %s", vocabPath);
+        return nullptr;
+    }
+    std::memcpy(&magic, vocabData, sizeof(magic));
+    vocabData += sizeof(magic);
 
-            std::string word(vocabData, len);
-            vocabData += len;
+    // Check the magic number
+    if (magic != WHISPER_VOCAB_MAGIC && magic != WHISPER_VOCAB_MAGIC_LEGACY) {
+        LOGE("Invalid vocab file (bad magic: %x): %s", magic, vocabPath);
+        return nullptr;
+    }
 
-            g_vocab.id_to_token[i] = word;
-        }
+    // Load mel filters
+    std::memcpy(&filters.n_mel, vocabData, sizeof(filters.n_mel));
+    vocabData += sizeof(filters.n_mel);
 
-        // add additional vocab ids
-        int n_vocab_additional = 51864;
-        if (isMultilingual) {
-            n_vocab_additional = 51865;
-            g_vocab.token_eot++;
-            g_vocab.token_sot++;
-            g_vocab.token_prev++;
-            g_vocab.token_solm++;
-            g_vocab.token_not++;
-            g_vocab.token_beg++;
-        }
+    std::memcpy(&filters.n_fft, vocabData, sizeof(filters.n_fft));
+    vocabData += sizeof(filters.n_fft);
 
-        for (int i = n_vocab; i < n_vocab_additional; i++) {
-            std::string word;
-            if (i > g_vocab.token_beg) {
-                word = "[_TT_" + std::to_string(i - g_vocab.token_beg) + "]";
-            } else if (i == g_vocab.token_eot) {
-                word = "[_EOT_]";
-            } else if (i == g_vocab.token_sot) {
-                word = "[_SOT_]";
-            } else if (i == g_vocab.token_prev) {
-                word = "[_PREV_]";
-            } else if (i == g_vocab.token_not) {
-                word = "[_NOT_]";
-            } else if (i == g_vocab.token_beg) {
-                word = "[_BEG_]";
-            } else {
-                word = "[_extra_token_" + std::to_string(i) + "]";
-            }
-            g_vocab.id_to_token[i] = word;
-            // printf("%s: g_vocab[%d] = '%s'", __func__, i, word.c_str());
-        }
+    LOGD("n_mel: %d n_fft: %d", filters.n_mel, filters.n_fft);
+
+    // The matrix is read in place, the header keeps it 4 byte aligned in the page aligned mapping
+    const long filtersSize = (long) filters.n_mel * filters.n_fft * sizeof(float);
+    if (filters.n_mel <= 0 || filters.n_fft <= 0 || vocabEnd - vocabData < filtersSize + (long) sizeof(int)) {
+        LOGE("Invalid vocab file (bad filters): %s", vocabPath);
+        return nullptr;
+    }
+    filters.data = reinterpret_cast<const float*>(vocabData);
+    vocabData += filtersSize;
+    filters.build_sparse();
+
+    // Vocab entries are indexed on first use
+    std::memcpy(&vocab.n_vocab, vocabData, sizeof(vocab.n_vocab));
+    vocabData += sizeof(vocab.n_vocab);
+    vocab.entries = vocabData;
+    vocab.entries_size = vocabEnd - vocabData;
+
+    LOGD("n_vocab: %d", vocab.n_vocab);
+
+    // add additional vocab ids
+    if (isMultilingual) {
+        vocab.n_vocab_additional = 51865;
+        vocab.token_eot++;
+        vocab.token_sot++;
+        vocab.token_prev++;
+        vocab.token_solm++;
+        vocab.token_not++;
+        vocab.token_beg++;
+    }
 
+    return assets;
+}
 
-        /////////////// Load tflite model buffer ///////////////
+static std::shared_ptr<const whisper_model> mapModel(const char *key, int fd, long offset, long length,
+                                                     ModelLoadStats& stats) {
+    /////////////// Map tflite model buffer ///////////////
 
-        // Open the TFLite model file for reading
-        std::ifstream modelFile(modelPath, std::ios::binary | std::ios::ate);
-        if (!modelFile.is_open()) {
-            std::cerr << "Unable to open model file: " << modelPath << std::endl;
-            return -1;
-        }
+    int64_t start_us = whisper_now_us();
+
+    // Map the whole TFLite model file when no descriptor is given
+    auto model = std::make_shared<whisper_model>();
+    const bool mapped = fd < 0 ? model->file.map(key) : model->file.map(fd, offset, length);
+    if (!mapped) {
+        LOGE("Unable to map model: %s", key);
+        return nullptr;
+    }
+
+    stats.mapTimeUs = whisper_now_us() - start_us;
+    start_us = whisper_now_us();
 
-        // Get the size of the model file
-        std::streamsize size = modelFile.tellg();
-        modelFile.seekg(0, std::ios::beg);
+    model->model = tflite::FlatBufferModel::BuildFromBuffer(model->file.data, model->file.size);
+    if (model->model == nullptr) {
+        LOGE("Invalid model file: %s", key);
+        return nullptr;
+    }
 
-        // Allocate memory for the model buffer
-        char *buffer = new char[size];
+    // Identifies the model for the transcript cache without reading the whole file
+    const size_t size = model->file.size;
+    const size_t sample = std::min(size, (size_t) 1 << 20);
+    model->identity = whisper_hash(model->file.data, sample, size);
+    model->identity = whisper_hash(model->file.data + size - sample, sample, model->identity);
 
-        // Read the model data into the buffer
-        if (modelFile.read(buffer, size)) {
-            modelFile.close();
+    stats.buildTimeUs = whisper_now_us() - start_us;
+    return model;
+}
+
+static std::shared_ptr<const whisper_assets> acquireAssets(const char *vocabPath, const bool isMultilingual) {
+    std::lock_guard<std::mutex> lock(g_shared_mutex);
+    const std::string key = std::string(isMultilingual ? "multilingual:" : "english:") + vocabPath;
+    std::shared_ptr<const whisper_assets> assets = g_shared_assets[key].lock();
+    if (!assets) {
+        assets = parseAssets(vocabPath, isMultilingual);
+        if (assets) {
+            g_shared_assets[key] = assets;
         } else {
-            std::cerr << "Error reading model data from file." << std::endl;
+            g_shared_assets.erase(key);
         }
+    }
+    return assets;
+}
 
-        g_whisper_tflite.size = size;
-        g_whisper_tflite.buffer = buffer;
+static std::shared_ptr<const whisper_model> acquireModel(const char *key, int fd, long offset, long length,
+                                                         ModelLoadStats& stats) {
+    std::lock_guard<std::mutex> lock(g_shared_mutex);
+    std::shared_ptr<const whisper_model> model = g_shared_models[key].lock();
+    if (model) {
+        stats.sharedModel = true;
+    } else {
+        model = mapModel(key, fd, offset, length, stats);
+        if (model) {
+            g_shared_models[key] = model;
+        } else {
+            g_shared_models.erase(key);
+        }
+    }
+    if (model) {
+        stats.modelBytes = model->file.size;
+    }
+    return model;
+}
 
-        g_whisper_tflite.model = tflite::FlatBufferModel::BuildFromBuffer(g_whisper_tflite.buffer, g_whisper_tflite.size);
-        TFLITE_MINIMAL_CHECK(g_whisper_tflite.model != nullptr);
+void TFLiteEngine::setCache(const char *dir, size_t maxBytes) {
+    if (dir == nullptr || dir[0] == '\0') {
+        cache.reset();
+        return;
+    }
+    std::lock_guard<std::mutex> lock(g_shared_mutex);
+    cache = g_shared_caches[dir].lock();
+    if (!cache) {
+        // the directory is scanned once, the first size bound set for it applies
+        cache = std::make_shared<whisper_cache>(dir, maxBytes);
+        g_shared_caches[dir] = cache;
+        LOGD("Transcript cache %s: %zu bytes", dir, cache->size_bytes());
+    }
+}
 
-        // Build the interpreter with the InterpreterBuilder.
-        tflite::InterpreterBuilder builder(*(g_whisper_tflite.model), g_whisper_tflite.resolver);
+// Hand the supported ops to one XNNPACK delegate. Weights are packed when the delegate is
+// applied, so the first inference does not pay for it, and only once per shared model.
+void TFLiteEngine::applyXnnpack(whisper_tflite& engine, int threads) {
+    const whisper_model& model = *engine.model;
+    std::lock_guard<std::mutex> lock(model.delegate_mutex);
 
-        builder(&(g_whisper_tflite.interpreter));
-        TFLITE_MINIMAL_CHECK(g_whisper_tflite.interpreter != nullptr);
+    if (model.weights_cache == nullptr) {
+        model.weights_cache = TfLiteXNNPackDelegateWeightsCacheCreate();
+    }
 
-        // Allocate tensor buffers.
-        TFLITE_MINIMAL_CHECK(g_whisper_tflite.interpreter->AllocateTensors() == kTfLiteOk);
+    TfLiteXNNPackDelegateOptions options = TfLiteXNNPackDelegateOptionsDefault();
+    options.num_threads = threads;
+    options.weights_cache = model.weights_cache;
+    engine.delegate.reset(TfLiteXNNPackDelegateCreate(&options));
+
+    if (engine.delegate == nullptr ||
+        engine.interpreter->ModifyGraphWithDelegate(engine.delegate.get()) != kTfLiteOk) {
+        // the interpreter falls back to the builtin kernels
+        LOGE("XNNPACK delegate not applied, running on the builtin kernels");
+        loadStats.xnnpack = false;
+        return;
+    }
+    loadStats.xnnpack = true;
+    loadStats.sharedWeights = model.weights_cache_finalized;
 
-        g_whisper_tflite.input = g_whisper_tflite.interpreter->typed_input_tensor<float>(0);
-        g_whisper_tflite.is_whisper_tflite_initialized = true;
+    // A finalized cache is required to run. Soft, since engines sharing this model may
+    // still be created and look their packed weights up.
+    if (!model.weights_cache_finalized) {
+        model.weights_cache_finalized = TfLiteXNNPackDelegateWeightsCacheFinalizeSoft(model.weights_cache);
+    }
+}
+
+int TFLiteEngine::loadModel(const char *modelPath, const char *vocabPath, const bool isMultilingual) {
+    return loadModel(modelPath, -1, 0, 0, vocabPath, isMultilingual);
+}
 
-        gettimeofday(&end_time, NULL);
-        std::cout << "Time taken for TFLite initialization: " << TIME_DIFF_MS(start_time, end_time) << " ms" << std::endl;
+int TFLiteEngine::loadModel(const char *key, int fd, long offset, long length, const char *vocabPath,
+                            const bool isMultilingual) {
+    if (tflite && tflite->is_whisper_tflite_initialized) {
+        freeModel(); // reload, possibly with another model
     }
 
-    std::cout << "Exiting " << __func__ << "()" << std::endl;
+    const int64_t start_us = whisper_now_us();
+    loadStats = ModelLoadStats();
+
+    std::shared_ptr<const whisper_assets> sharedAssets = acquireAssets(vocabPath, isMultilingual);
+    if (!sharedAssets) {
+        return -1;
+    }
+
+    std::unique_ptr<whisper_tflite> engine(new whisper_tflite());
+    engine->model = acquireModel(key, fd, offset, length, loadStats);
+    if (!engine->model) {
+        return -1;
+    }
+
+    int64_t step_us = whisper_now_us();
+
+    // The thread count is fixed here for the life of the interpreter and its delegate
+    const int threads = numThreads > 0 ? numThreads : (int) std::thread::hardware_concurrency();
+    loadStats.numThreads = threads;
+
+    // Build the interpreter with the InterpreterBuilder, the flatbuffer itself is shared
+    tflite::InterpreterBuilder builder(*(engine->model->model), engine->resolver);
+    builder.SetNumThreads(threads);
+
+    builder(&(engine->interpreter));
+    TFLITE_MINIMAL_CHECK(engine->interpreter != nullptr);
+
+    // Checked by the interpreter between operators
+    engine->interpreter->SetCancellationFunction(this, [](void *data) {
+        return static_cast<TFLiteEngine *>(data)->cancelled.load();
+    });
+
+    loadStats.interpreterTimeUs = whisper_now_us() - step_us;
+    step_us = whisper_now_us();
+
+    applyXnnpack(*engine, threads);
+    loadStats.delegateTimeUs = whisper_now_us() - step_us;
+    step_us = whisper_now_us();
+
+    // Allocate tensor buffers.
+    TFLITE_MINIMAL_CHECK(engine->interpreter->AllocateTensors() == kTfLiteOk);
+
+    engine->input = engine->interpreter->typed_input_tensor<float>(0);
+    engine->is_whisper_tflite_initialized = true;
+
+    assets = std::move(sharedAssets);
+    tflite = std::move(engine);
+
+    const int64_t end_us = whisper_now_us();
+    loadStats.interpreterTimeUs += end_us - step_us;
+    loadStats.totalTimeUs = end_us - start_us;
+    LOGI("Model %s loaded in %ld ms (map %ld ms, build %ld ms, interpreter %ld ms, xnnpack %ld ms%s), %d threads",
+         key, loadStats.totalTimeUs / 1000, loadStats.mapTimeUs / 1000, loadStats.buildTimeUs / 1000,
+         loadStats.interpreterTimeUs / 1000, loadStats.delegateTimeUs / 1000,
+         loadStats.xnnpack ? "" : " failed", loadStats.numThreads);
     return 0;
 }
 
-std::string TFLiteEngine::transcribeBuffer(std::vector<float> samples) {
-    timeval start_time{}, end_time{};
-    gettimeofday(&start_time, NULL);
+bool TFLiteEngine::computeInput(const float *samples, size_t n_samples) {
+    if (!tflite || !tflite->is_whisper_tflite_initialized) {
+        LOGE("Model is not loaded");
+        return false;
+    }
+    tokens.clear();
 
-    // Hack if the audio file size is less than 30ms append with 0's
-    samples.resize((WHISPER_SAMPLE_RATE * WHISPER_CHUNK_SIZE), 0);
-    const auto processor_count = std::thread::hardware_concurrency();
+    whisper_scoped_stage stage(*stats, WHISPER_STAGE_MEL);
 
-    if (!log_mel_spectrogram(samples.data(), samples.size(), WHISPER_SAMPLE_RATE, WHISPER_N_FFT,
-                             WHISPER_HOP_LENGTH, WHISPER_N_MEL, processor_count, filters, mel)) {
-        std::cerr << "Failed to compute mel spectrogram" << std::endl;
-        return "";
+    // Only the real samples are transformed, the padding up to 30 seconds is the constant silence frame
+    n_samples = std::min(n_samples, (size_t) (WHISPER_SAMPLE_RATE * WHISPER_CHUNK_SIZE));
+
+    // A buffer is a single chunk; runInference completes its timings
+    chunkStats.assign(1, ChunkStats());
+    ChunkStats& chunk = chunkStats[0];
+    chunk.numSamples = n_samples;
+
+    if (vadEnabled) {
+        size_t begin = 0, end = n_samples;
+        if (!whisper_vad().speech_range(samples, n_samples, begin, end)) {
+            LOGD("No speech, skipping inference");
+            chunk.skippedSamples = n_samples;
+            chunk.melTimeUs = stage.end();
+            return false;
+        }
+        samples += begin;
+        chunk.skippedSamples = n_samples - (end - begin);
+        n_samples = end - begin;
     }
 
-    gettimeofday(&end_time, NULL);
-    std::cout << "Time taken for Spectrogram: " << TIME_DIFF_MS(start_time, end_time) << " ms" << std::endl;
+    if (!melStream) {
+        melStream.reset(new whisper_mel_stream());
+    }
+    WorkerPool& pool = getMelPool();
+    melStream->reset();
+    melStream->push(samples, (int) n_samples, pool, melScratch, assets->filters);
 
     if (INFERENCE_ON_AUDIO_FILE) {
-        memcpy(g_whisper_tflite.input, mel.data.data(), mel.n_mel * mel.n_len * sizeof(float));
+        melStream->materialize(tflite->input, melScratch[0], assets->filters);
     } else {
-        memcpy(g_whisper_tflite.input, _content_input_features_bin, WHISPER_N_MEL * WHISPER_MEL_LEN * sizeof(float)); // to load pre-generated input_features
+        memcpy(tflite->input, _content_input_features_bin, WHISPER_N_MEL * WHISPER_MEL_LEN * sizeof(float)); // to load pre-generated input_features
     } // end of audio file processing
+    chunk.melTimeUs = stage.end();
+    return true;
+}
+
+std::string TFLiteEngine::runInference() {
+    if (chunkStats.size() != 1) {
+        chunkStats.assign(1, ChunkStats());
+    }
+    std::string text;
+    invoke(chunkStats[0], text);
+    return text;
+}
 
-    gettimeofday(&start_time, NULL);
+bool TFLiteEngine::invoke(ChunkStats& chunk, std::string& text) {
+    if (!tflite || !tflite->is_whisper_tflite_initialized) {
+        return false;
+    }
 
     // Run inference
-    g_whisper_tflite.interpreter->SetNumThreads(processor_count);
-    if (g_whisper_tflite.interpreter->Invoke() != kTfLiteOk) {
-        return "";
+    {
+        whisper_scoped_stage stage(*stats, WHISPER_STAGE_INVOKE);
+        const TfLiteStatus status = tflite->interpreter->Invoke();
+        chunk.inferenceTimeUs = stage.end();
+        if (status != kTfLiteOk) {
+            if (cancelled) {
+                LOGD("Inference cancelled");
+            } else {
+                LOGE("Invoke failed");
+            }
+            return false;
+        }
     }
 
-    gettimeofday(&end_time, NULL);
-    std::cout << "Time taken for Interpreter: " << TIME_DIFF_MS(start_time, end_time) << " ms" << std::endl;
+    whisper_scoped_stage stage(*stats, WHISPER_STAGE_DECODE);
 
-    int output = g_whisper_tflite.interpreter->outputs()[0];
-    TfLiteTensor *output_tensor = g_whisper_tflite.interpreter->tensor(output);
+    int output = tflite->interpreter->outputs()[0];
+    TfLiteTensor *output_tensor = tflite->interpreter->tensor(output);
     TfLiteIntArray *output_dims = output_tensor->dims;
     // assume output dims to be something like (1, 1, ... ,size)
     auto output_size = output_dims->data[output_dims->size - 1];
 
-    int *output_int = g_whisper_tflite.interpreter->typed_output_tensor<int>(0);
-    std::string text = "";
+    int *output_int = tflite->interpreter->typed_output_tensor<int>(0);
+    text.reserve(output_size * 4);
 
+    // text tokens are kept for getTokens(), their bytes are joined before any UTF-8 decoding
+    // so multi-byte characters split across tokens come out whole
     for (int i = 0; i < output_size; i++) {
-        if (output_int[i] == g_vocab.token_eot) {
+        if (output_int[i] == assets->vocab.token_eot) {
             break;
         }
 
-        if (output_int[i] < g_vocab.token_eot) {
-            text += whisper_token_to_str(output_int[i]);
+        if (output_int[i] < assets->vocab.token_eot) {
+            tokens.push_back(output_int[i]);
+            whisper_append_token(assets->vocab, output_int[i], text);
         }
     }
 
-    return text;
+    chunk.decodeTimeUs = stage.end();
+    return true;
 }
 
-std::string TFLiteEngine::transcribeFile(const char *waveFile) {
-    std::vector<float> pcmf32 = readWAVFile(waveFile);
-    size_t originalSize = pcmf32.size();
+std::string TFLiteEngine::transcribeBuffer(const float *samples, size_t n_samples) {
+    if (!computeInput(samples, n_samples)) {
+        return "";
+    }
+    return runInference();
+}
 
-    // Determine the number of chunks required to process the entire file
-    size_t totalChunks = (originalSize + (WHISPER_SAMPLE_RATE * WHISPER_CHUNK_SIZE) - 1) /
-                         (WHISPER_SAMPLE_RATE * WHISPER_CHUNK_SIZE);
+std::string TFLiteEngine::transcribeBuffer(const int16_t *samples, size_t n_samples) {
+    // PCM_16 has to be converted once; the buffer is reused between calls
+    n_samples = std::min(n_samples, (size_t) (WHISPER_SAMPLE_RATE * WHISPER_CHUNK_SIZE));
+    pcmScratch.resize(n_samples);
+    for (size_t i = 0; i < n_samples; i++) {
+        pcmScratch[i] = samples[i] / 32768.0f;
+    }
+    return transcribeBuffer(pcmScratch.data(), n_samples);
+}
 
-    std::string text;
-    for (size_t chunkIndex = 0; chunkIndex < totalChunks; ++chunkIndex) {
-        // Extract a chunk of audio data
-        size_t startSample = chunkIndex * WHISPER_SAMPLE_RATE * WHISPER_CHUNK_SIZE;
-        size_t endSample = std::min(startSample + (WHISPER_SAMPLE_RATE * WHISPER_CHUNK_SIZE),
-                                    originalSize);
-        std::vector<float> chunk(pcmf32.begin() + startSample, pcmf32.begin() + endSample);
-
-        // Pad the chunk if it's smaller than the expected size
-        if (chunk.size() < WHISPER_SAMPLE_RATE * WHISPER_CHUNK_SIZE) {
-            chunk.resize(WHISPER_SAMPLE_RATE * WHISPER_CHUNK_SIZE, 0);
+// File transcription state. A producer thread computes the mel spectrogram of the next chunk
+// into one of two buffers while the interpreter runs on the current one, so long inputs are
+// bound by inference time only. Each session has its own mel buffers, so other transcriptions
+// can run on the engine between two chunks.
+struct TFLiteEngine::FileSession {
+    // Returns the samples of chunk chunkIndex and sets stats.startSample, stats.numSamples and
+    // stats.skippedSamples (silence the source already dropped). The pointer only has to stay
+    // valid until the next call.
+    using ChunkSource = std::function<const float*(size_t chunkIndex, ChunkStats& stats)>;
+
+    WavReader reader;
+    std::vector<float> window;          // one window is converted at a time, whatever the file length
+    std::vector<whisper_window> windows;
+    ChunkSource source;
+    size_t totalChunks = 0;
+    size_t next = 0;                    // next chunk handed to the interpreter
+
+    std::shared_ptr<const whisper_assets> assets;
+    std::shared_ptr<WorkerPool> pool;
+    whisper_mel_stream melStream;
+    std::vector<whisper_mel_scratch> melScratch;
+
+    // Double-buffered encoder inputs, the stats of each slot move to chunkStats when consumed
+    std::vector<float> pipelineMel[2];
+    ChunkStats slotStats[2];
+    bool ready[2] = {false, false};
+    bool silent[2] = {false, false};
+
+    // Transcript cache: a hit leaves the mel buffer unused and carries the chunk's tokens
+    std::shared_ptr<whisper_cache> cache;
+    uint64_t modelIdentity = 0;
+    uint64_t slotHash[2] = {0, 0};
+    std::vector<int> slotTokens[2];
+    bool stopping = false;
+    std::mutex mutex;
+    std::condition_variable cv;
+    std::thread producer;
+
+    std::vector<ChunkStats> chunkStats;
+    std::vector<int> tokens;
+};
+
+TFLiteEngine::FileSession* TFLiteEngine::openFile(const char *waveFile) {
+    if (!tflite || !tflite->is_whisper_tflite_initialized) {
+        LOGE("Model is not loaded");
+        return nullptr;
+    }
+
+    std::unique_ptr<FileSession> session(new FileSession());
+    FileSession& s = *session;
+    if (!s.reader.open(waveFile)) {
+        return nullptr;
+    }
+    if (s.reader.get_sample_rate() != WHISPER_SAMPLE_RATE) {
+        LOGE("Unsupported sample rate: %u", s.reader.get_sample_rate());
+    }
+
+    const size_t chunkSamples = WHISPER_SAMPLE_RATE * WHISPER_CHUNK_SIZE;
+    const size_t totalSamples = s.reader.frames();
+    s.window.resize(chunkSamples);
+
+    const size_t overlap = overlapSamples;
+    if (!vadEnabled) {
+        // Fixed 30 second slices, each one starting overlap samples before the end of the previous
+        const size_t stride = chunkSamples - overlap;
+        s.totalChunks = totalSamples > chunkSamples ? 1 + (totalSamples - chunkSamples + stride - 1) / stride
+                                                    : (totalSamples > 0 ? 1 : 0);
+        s.source = [&s, chunkSamples, stride, overlap](size_t chunkIndex, ChunkStats& stats) {
+            stats.startSample = chunkIndex * stride;
+            stats.numSamples = s.reader.read(stats.startSample, chunkSamples, s.window.data());
+            stats.overlapSamples = chunkIndex > 0 ? overlap : 0;
+            return s.window.data();
+        };
+    } else {
+        // Level pass over the file, then chunk boundaries at silences with speech packed together
+        whisper_scoped_stage stage(*stats, WHISPER_STAGE_SEGMENT);
+        const whisper_vad vad;
+        whisper_segmenter segmenter(vad);
+        const size_t blockSamples = WHISPER_VAD_FRAME_SIZE * 64;
+        for (size_t offset = 0; offset < totalSamples && !cancelled; offset += blockSamples) {
+            const size_t n = s.reader.read(offset, blockSamples, s.window.data());
+            for (size_t f = 0; f < n; f += WHISPER_VAD_FRAME_SIZE) {
+                segmenter.push_frame(s.window.data() + f, (int) std::min((size_t) WHISPER_VAD_FRAME_SIZE, n - f));
+            }
+        }
+        if (cancelled) {
+            LOGD("Transcription cancelled while segmenting");
+            return nullptr;
         }
+        // room for the overlap in front of windows that continue the speech of the previous one
+        s.windows = segmenter.windows(totalSamples, chunkSamples - overlap);
+
+        const int64_t segmentUs = stage.end();
+        LOGD("Segmented %zu s into %zu windows in %lld ms", totalSamples / WHISPER_SAMPLE_RATE, s.windows.size(),
+             (long long) segmentUs / 1000);
+
+        if (s.windows.empty()) {
+            // no speech at all
+            s.chunkStats.assign(1, ChunkStats());
+            s.chunkStats[0].numSamples = totalSamples;
+            s.chunkStats[0].skippedSamples = totalSamples;
+            return session.release();
+        }
+
+        s.totalChunks = s.windows.size();
+        s.source = [&s, totalSamples, overlap](size_t chunkIndex, ChunkStats& stats) {
+            const whisper_window& w = s.windows[chunkIndex];
+            const size_t previousEnd = chunkIndex > 0 ? s.windows[chunkIndex - 1].segments.back().end : 0;
+
+            // a window split inside speech starts with the end of the previous one
+            size_t n = 0;
+            if (overlap > 0 && chunkIndex > 0 && previousEnd >= w.segments.front().begin) {
+                const size_t begin = w.segments.front().begin;
+                n = s.reader.read(begin - std::min(overlap, begin), std::min(overlap, begin), s.window.data());
+            }
+            stats.overlapSamples = n;
+            for (const whisper_segment& segment : w.segments) {
+                n += s.reader.read(segment.begin, segment.end - segment.begin, s.window.data() + n);
+            }
+
+            // silence between the end of the previous window and the end of this one (or of the file)
+            const size_t end = chunkIndex + 1 < s.windows.size() ? w.segments.back().end : totalSamples;
+            stats.startSample = w.segments.front().begin - stats.overlapSamples;
+            stats.numSamples = n;
+            stats.skippedSamples = (end - previousEnd) - (n - stats.overlapSamples);
+            return s.window.data();
+        };
+    }
+
+    if (s.totalChunks > 0) {
+        startProducer(s);
+    }
+    return session.release();
+}
+
+void TFLiteEngine::startProducer(FileSession& s) {
+    getMelPool();
+    s.pool = melPool;
+    s.assets = assets;
+    s.cache = cache;
+    s.modelIdentity = tflite->model->identity;
+    for (auto& mel : s.pipelineMel) {
+        mel.resize(WHISPER_N_MEL * WHISPER_MEL_LEN);
+    }
+
+    const bool trimSilence = vadEnabled;
+    s.producer = std::thread([this, &s, trimSilence] {
+        const whisper_vad vad;
+        for (size_t i = 0; i < s.totalChunks; i++) {
+            const int slot = i % 2;
+            {
+                std::unique_lock<std::mutex> lock(s.mutex);
+                s.cv.wait(lock, [&] { return !s.ready[slot] || s.stopping; });
+                if (s.stopping) {
+                    return;
+                }
+            }
+
+            whisper_scoped_stage stage(*stats, WHISPER_STAGE_MEL);
+
+            ChunkStats& chunk = s.slotStats[slot];
+            chunk = ChunkStats();
+            const float* samples = s.source(i, chunk);
+            const size_t n_samples = std::min((size_t) chunk.numSamples, (size_t) (WHISPER_SAMPLE_RATE * WHISPER_CHUNK_SIZE));
+
+            // trim leading/trailing silence, windows without speech never reach the encoder
+            size_t begin = 0, end = n_samples;
+            s.silent[slot] = trimSilence && !vad.speech_range(samples, n_samples, begin, end);
+            if (s.silent[slot]) {
+                begin = end = 0;
+            } else if (s.cache) {
+                // the exact audio the encoder would see
+                s.slotHash[slot] = whisper_hash(samples + begin, (end - begin) * sizeof(float), s.modelIdentity);
+                chunk.cacheHit = s.cache->get(s.modelIdentity, s.slotHash[slot], s.slotTokens[slot]);
+            }
+            if (!s.silent[slot] && !chunk.cacheHit) {
+                s.melStream.reset();
+                s.melStream.push(samples + begin, (int) (end - begin), *s.pool, s.melScratch, s.assets->filters);
+                s.melStream.materialize(s.pipelineMel[slot].data(), s.melScratch[0], s.assets->filters);
+            }
+
+            chunk.skippedSamples += n_samples - (end - begin);
+            chunk.melTimeUs = stage.end();
+
+            {
+                std::lock_guard<std::mutex> lock(s.mutex);
+                s.ready[slot] = true;
+            }
+            s.cv.notify_all();
+        }
+    });
+}
+
+bool TFLiteEngine::hasNextChunk(const FileSession *session) const {
+    return session->next < session->totalChunks;
+}
+
+std::string TFLiteEngine::transcribeNextChunk(FileSession *session) {
+    return nextChunk(*session);
+}
+
+std::string TFLiteEngine::nextChunk(FileSession& s) {
+    if (s.next >= s.totalChunks || !tflite || !tflite->is_whisper_tflite_initialized) {
+        return "";
+    }
+
+    const int slot = s.next % 2;
+    ChunkStats chunk;
+    {
+        whisper_scoped_stage stage(*stats, WHISPER_STAGE_WAIT);
+        std::unique_lock<std::mutex> lock(s.mutex);
+        s.cv.wait(lock, [&] { return s.ready[slot]; });
+        chunk = s.slotStats[slot];
+        chunk.waitTimeUs = stage.end();
+    }
 
-        // Transcribe the chunk and append the result to the text
-        std::string chunkText = transcribeBuffer(chunk);
-        text += chunkText;
+    // hand the buffer back to the producer before the long inference
+    const bool skip = s.silent[slot];
+    const uint64_t hash = s.slotHash[slot];
+    std::vector<int> cachedTokens;
+    if (chunk.cacheHit) {
+        cachedTokens.swap(s.slotTokens[slot]);
+    } else if (!skip) {
+        memcpy(tflite->input, s.pipelineMel[slot].data(), s.pipelineMel[slot].size() * sizeof(float));
+    }
+    {
+        std::lock_guard<std::mutex> lock(s.mutex);
+        s.ready[slot] = false;
     }
+    s.cv.notify_all();
+    s.next++;
+
+    std::string text;
+    if (chunk.cacheHit) {
+        tokens.swap(cachedTokens);
+        for (int token : tokens) {
+            whisper_append_token(assets->vocab, token, text);
+        }
+    } else if (!skip) {
+        tokens.clear();
+        // a cancelled or failed Invoke has no complete tokens to keep
+        if (invoke(chunk, text) && s.cache) {
+            s.cache->put(s.modelIdentity, hash, tokens);
+        }
+    }
+    if (!skip) {
+        // drop the tokens of the audio the previous chunk already transcribed
+        if (chunk.overlapSamples > 0 && !s.tokens.empty() && !tokens.empty()) {
+            const float fraction = (float) chunk.overlapSamples / std::max(chunk.numSamples, 1L);
+            const size_t duplicates = whisper_overlap_tokens(s.tokens.data(), s.tokens.size(), tokens.data(),
+                                                             tokens.size(), fraction);
+            if (duplicates > 0) {
+                LOGD("Chunk %zu: %zu of %zu tokens repeat the previous chunk", s.next - 1, duplicates, tokens.size());
+                tokens.erase(tokens.begin(), tokens.begin() + duplicates);
+                text.clear();
+                for (int token : tokens) {
+                    whisper_append_token(assets->vocab, token, text);
+                }
+            }
+        }
+        s.tokens.insert(s.tokens.end(), tokens.begin(), tokens.end());
+    }
+    s.chunkStats.push_back(chunk);
     return text;
 }
 
-void TFLiteEngine::freeModel() {
-    std::cout << "Entering " << __func__ << "()" << std::endl;
+const std::vector<ChunkStats>& TFLiteEngine::getChunkStats(const FileSession *session) const {
+    return session->chunkStats;
+}
 
-    if (g_whisper_tflite.interpreter)
-        g_whisper_tflite.interpreter.reset();  // Reset interpreter to release resources
+const std::vector<int>& TFLiteEngine::getTokens(const FileSession *session) const {
+    return session->tokens;
+}
 
-    if (g_whisper_tflite.model)
-        g_whisper_tflite.model.reset();        // Reset model to free memory
+size_t TFLiteEngine::getTotalSamples(const FileSession *session) const {
+    return session->reader.frames();
+}
 
-    if (g_whisper_tflite.buffer) {
-        std::cout << __func__ << ": free buffer " << g_whisper_tflite.buffer << " memory" << std::endl;
-        delete[] g_whisper_tflite.buffer;
+void TFLiteEngine::closeFile(FileSession *session) {
+    if (session->producer.joinable()) {
+        {
+            std::lock_guard<std::mutex> lock(session->mutex);
+            session->stopping = true;
+        }
+        session->cv.notify_all();
+        session->producer.join();
     }
 
-    // Set the flag to false to avoid issues in the re-initialization of the model
-    if (g_whisper_tflite.is_whisper_tflite_initialized) {
-        g_whisper_tflite.is_whisper_tflite_initialized = false;
+    long skipped = 0;
+    for (const ChunkStats& chunk : session->chunkStats) {
+        skipped += chunk.skippedSamples;
+    }
+    if (session->next < session->totalChunks) {
+        LOGD("File closed after %zu of %zu chunks", session->next, session->totalChunks);
     }
+    LOGD("Silence skipped: %ld s", skipped / WHISPER_SAMPLE_RATE);
+    delete session;
+}
+
+// Mel frames of the live window, kept between pushes
+struct TFLiteEngine::LiveStream {
+    whisper_mel_stream mel;
+};
 
-    // Reset the whisper_vocab structure to clear the vocab data
-    g_vocab.reset();
+TFLiteEngine::LiveStream* TFLiteEngine::openStream() {
+    return new LiveStream();
+}
 
-    std::cout << "Exiting " << __func__ << "()" << std::endl;
+bool TFLiteEngine::pushStream(LiveStream *stream, const float *samples, size_t n_samples) {
+    if (!tflite || !tflite->is_whisper_tflite_initialized) {
+        LOGE("Model is not loaded");
+        return false;
+    }
+    tokens.clear();
+
+    whisper_scoped_stage stage(*stats, WHISPER_STAGE_MEL);
+
+    chunkStats.assign(1, ChunkStats());
+    ChunkStats& chunk = chunkStats[0];
+    stream->mel.push(samples, (int) n_samples, getMelPool(), melScratch, assets->filters);
+    stream->mel.materialize(tflite->input, melScratch[0], assets->filters);
+    chunk.startSample = stream->mel.window_start_frame() * WHISPER_HOP_LENGTH;
+    chunk.numSamples = stream->mel.window_samples();
+    chunk.melTimeUs = stage.end();
+    return true;
+}
+
+size_t TFLiteEngine::advanceStream(LiveStream *stream, size_t n_samples) {
+    const int frames = std::min((int) (n_samples / WHISPER_HOP_LENGTH), stream->mel.frames());
+    stream->mel.advance(frames);
+    return (size_t) frames * WHISPER_HOP_LENGTH;
+}
+
+size_t TFLiteEngine::getStreamSamples(const LiveStream *stream) const {
+    return stream->mel.window_samples();
+}
+
+void TFLiteEngine::closeStream(LiveStream *stream) {
+    delete stream;
+}
+
+std::string TFLiteEngine::transcribeFile(const char *waveFile) {
+    chunkStats.clear();
+
+    FileSession* session = openFile(waveFile);
+    if (session == nullptr) {
+        tokens.clear();
+        return "";
+    }
+
+    std::string text;
+    while (hasNextChunk(session) && !cancelled) {
+        text += nextChunk(*session);
+    }
+    if (cancelled) {
+        LOGD("Transcription cancelled after %zu of %zu chunks", session->next, session->totalChunks);
+    }
+
+    chunkStats = session->chunkStats;
+    tokens = session->tokens;
+    closeFile(session);
+    return text;
+}
+
+void TFLiteEngine::freeModel() {
+    // Release this engine's interpreter; the shared model and vocab are freed with their last user
+    tflite.reset();
+    assets.reset();
+    melStream.reset();
 }
@@ -1,22 +1,183 @@
 #ifndef _TFLITEENGINE_H_
 #define _TFLITEENGINE_H_
 
+#include <atomic>
+#include <cstdint>
+#include <functional>
+#include <memory>
 #include <string>
 #include <vector>
 
+class WorkerPool;
+class whisper_cache;
+class whisper_mel_stream;
+struct whisper_mel_scratch;
+struct whisper_assets;
+struct whisper_tflite;
+struct whisper_stats;
+
+// Timings of the last loadModel call, in microseconds
+struct ModelLoadStats {
+    long mapTimeUs = 0;          // open and mmap the model file
+    long buildTimeUs = 0;        // verify and build the flatbuffer model
+    long interpreterTimeUs = 0;  // build the interpreter and allocate tensors
+    long totalTimeUs = 0;
+    long modelBytes = 0;
+    bool sharedModel = false;    // the mapped model was reused from another engine
+    long delegateTimeUs = 0;     // apply the XNNPACK delegate, including weight packing
+    bool xnnpack = false;        // the XNNPACK delegate is applied
+    bool sharedWeights = false;  // packed weights were reused from another engine
+    int numThreads = 0;          // interpreter and delegate threads, fixed at load
+};
+
+// Per-chunk timings of a transcription, in microseconds. A buffer is a single chunk.
+struct ChunkStats {
+    long startSample = 0;      // first sample of the chunk in the recording
+    long numSamples = 0;       // samples of speech (and padding) in the chunk
+    long skippedSamples = 0;   // silence trimmed or skipped by the VAD, never sent to the encoder
+    long melTimeUs = 0;        // mel spectrogram, computed ahead on the producer thread for files
+    long waitTimeUs = 0;       // time inference waited for the mel of this chunk
+    long inferenceTimeUs = 0;  // interpreter Invoke
+    long decodeTimeUs = 0;     // token ids to text
+    long overlapSamples = 0;   // audio shared with the previous chunk, whose tokens are not repeated
+    bool cacheHit = false;     // tokens read from the transcript cache, no mel or inference
+};
+
 class TFLiteEngine {
 public:
-    TFLiteEngine() {};
-    ~TFLiteEngine() {};
+    TFLiteEngine();
+    ~TFLiteEngine();
 
-    int loadModel(const char *modelPath, const bool isMultilingual);
+    // vocabPath is a filters_vocab_*.bin file, mapped and shared like the model
+    int loadModel(const char *modelPath, const char *vocabPath, const bool isMultilingual);
+    // Map the model from [offset, offset + length) of an open file, e.g. an uncompressed
+    // asset inside the APK. key identifies the model for sharing between engines.
+    // The descriptor is not kept and can be closed once this returns.
+    int loadModel(const char *key, int fd, long offset, long length, const char *vocabPath,
+                  const bool isMultilingual);
+    const ModelLoadStats& getLoadStats() const { return loadStats; }
     void freeModel();
 
-    std::string transcribeBuffer(std::vector<float> samples);
+    // Number of threads used for the mel spectrogram, and for inference by models loaded
+    // afterwards (0 = hardware concurrency)
+    void setNumThreads(int numThreads);
+
+    // Trim silence before inference and skip inputs without speech (on by default)
+    void setVadEnabled(bool enabled) { vadEnabled = enabled; }
+    bool isVadEnabled() const { return vadEnabled; }
+
+    // Audio shared by consecutive chunks of a file (0, the default, for none). Fixed slices all
+    // overlap; with the VAD only chunks split inside speech do, the others start after a
+    // silence. The duplicated tokens at each seam are found by aligning the two chunks' tokens.
+    void setChunkOverlap(int overlapMs);
+
+    // Keep the tokens of every file chunk in dir, keyed by a hash of the audio sent to the
+    // encoder and of the model, so a file transcribed again (or grown since) only runs
+    // inference on new chunks. Least recently used entries go beyond maxBytes; engines using
+    // the same directory share it. nullptr or "" turns the cache off (the default).
+    void setCache(const char* dir, size_t maxBytes);
+
+    // Samples read by transcribeBuffer, 30 seconds at 16 kHz; the rest is ignored
+    static constexpr size_t MAX_BUFFER_SAMPLES = 16000 * 30;
+
+    // Transcribe up to 30 seconds of audio read in place from samples. The text is UTF-8.
+    std::string transcribeBuffer(const float *samples, size_t n_samples);
+    std::string transcribeBuffer(const int16_t *samples, size_t n_samples);
+    std::string transcribeBuffer(const std::vector<float>& samples) {
+        return transcribeBuffer(samples.data(), samples.size());
+    }
+
+    // transcribeBuffer in two steps, so a caller can release the audio as soon as the mel
+    // spectrogram is in the input tensor and before the (much longer) inference.
+    // computeInput returns false when there is nothing to run (no model or no speech).
+    bool computeInput(const float *samples, size_t n_samples);
+    // Engine-owned buffer for audio that cannot be read in place, e.g. a Java array copied out
+    // before the mel spectrogram (which may wait on other work). Valid until the next call.
+    float* getSampleBuffer(size_t n_samples) {
+        pcmScratch.resize(n_samples);
+        return pcmScratch.data();
+    }
+    std::string runInference();
     std::string transcribeFile(const char* waveFile);
+    // Chunks of the last transcribeFile, or the single chunk of the last buffer
+    const std::vector<ChunkStats>& getChunkStats() const { return chunkStats; }
+
+    // transcribeFile one chunk at a time, so other transcriptions can run on this engine
+    // between two chunks. Sessions are independent, each one computes the mel spectrogram of
+    // its next chunk ahead on its own thread. openFile returns nullptr when the file cannot be
+    // read; every session must be closed, before the model is freed.
+    struct FileSession;
+    FileSession* openFile(const char* waveFile);
+    bool hasNextChunk(const FileSession* session) const;
+    std::string transcribeNextChunk(FileSession* session);
+    // Stats and text token ids of the chunks transcribed so far
+    const std::vector<ChunkStats>& getChunkStats(const FileSession* session) const;
+    const std::vector<int>& getTokens(const FileSession* session) const;
+    // Length of the recording in samples
+    size_t getTotalSamples(const FileSession* session) const;
+    void closeFile(FileSession* session);
+
+    // Live audio decoded as a growing window of up to 30 seconds. pushStream adds audio and
+    // puts the whole window in the input tensor like computeInput, runInference then decodes
+    // it; only the mel frames of the new audio are computed, the others are kept from earlier
+    // pushes. advanceStream drops audio from the start of the window (rounded down to whole
+    // mel frames) and returns the samples dropped. Streams must be closed before the model is
+    // freed.
+    struct LiveStream;
+    LiveStream* openStream();
+    bool pushStream(LiveStream* stream, const float* samples, size_t n_samples);
+    size_t advanceStream(LiveStream* stream, size_t n_samples);
+    // Samples of audio in the window
+    size_t getStreamSamples(const LiveStream* stream) const;
+    void closeStream(LiveStream* stream);
+
+    // Abort the transcription in progress from any thread: the file pipeline stops before the
+    // next chunk and a running Invoke stops at its next operator; the text decoded so far is
+    // returned. The flag stays set until clearCancel(), so a cancel that lands just before a
+    // transcription starts is not lost: the caller clears it when it hands out the engine.
+    void cancel() { cancelled = true; }
+    void clearCancel() { cancelled = false; }
+    bool isCancelled() const { return cancelled; }
+
+    // Text token ids of the last transcription, in order
+    const std::vector<int>& getTokens() const { return tokens; }
+
+    // Flat vocab: token i is bytes[offsets[i], offsets[i + 1]) (UTF-8 pieces, not always whole
+    // characters). Empty until a model is loaded.
+    bool getVocab(const char **bytes, const uint32_t **offsets, int *n_tokens) const;
+
+    // Per-stage latency histograms since the engine was created or resetStats was called
+    const whisper_stats& getStats() const { return *stats; }
+    void resetStats();
 
 private:
-    // Add any private members or helper functions as needed
+    WorkerPool& getMelPool();
+    void applyXnnpack(whisper_tflite& engine, int threads);
+    void startProducer(FileSession& session);
+    std::string nextChunk(FileSession& session);
+    // Appends the text to text, false when Invoke failed or was cancelled
+    bool invoke(ChunkStats& chunk, std::string& text);
+
+    // Vocab, filters and the model flatbuffer are shared read-only with other engines,
+    // the interpreter and every buffer below belong to this engine only
+    std::shared_ptr<const whisper_assets> assets;
+    std::unique_ptr<whisper_tflite> tflite;
+
+    ModelLoadStats loadStats;
+    std::unique_ptr<whisper_stats> stats;
+
+    int numThreads = 0;
+    bool vadEnabled = true;
+    size_t overlapSamples = 0;
+    std::shared_ptr<whisper_cache> cache;
+    std::atomic<bool> cancelled{false};
+    std::shared_ptr<WorkerPool> melPool; // file sessions keep the pool they started with
+    std::vector<whisper_mel_scratch> melScratch;
+    std::unique_ptr<whisper_mel_stream> melStream;
+    std::vector<float> pcmScratch;
+
+    std::vector<ChunkStats> chunkStats;
+    std::vector<int> tokens;
 };
 
 #endif // _TFLITEENGINE_H_
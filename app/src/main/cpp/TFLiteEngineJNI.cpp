@@ -1,5 +1,79 @@
 #include <jni.h>
+#include <cstdint>
+#include <string>
+#include <vector>
 #include "TFLiteEngine.h"
+#include "trace.h"
+
+// NewStringUTF expects modified UTF-8 and rejects invalid sequences, which a cut-off byte-level
+// BPE piece can produce. Decode standard UTF-8 here, replacing invalid bytes with U+FFFD.
+static jstring newStringFromUtf8(JNIEnv *env, const std::string& text) {
+    std::vector<jchar> utf16;
+    utf16.reserve(text.size());
+    const unsigned char *p = reinterpret_cast<const unsigned char *>(text.data());
+    const unsigned char *end = p + text.size();
+    while (p < end) {
+        uint32_t c = *p;
+        int extra = c < 0x80 ? 0 : (c >> 5) == 0x6 ? 1 : (c >> 4) == 0xE ? 2 : (c >> 3) == 0x1E ? 3 : -1;
+        if (extra < 0 || end - p <= extra) {
+            utf16.push_back(0xFFFD);
+            p++;
+            continue;
+        }
+        c = extra == 0 ? c : c & (0x3F >> extra);
+        bool valid = true;
+        for (int i = 1; i <= extra; i++) {
+            if ((p[i] & 0xC0) != 0x80) {
+                valid = false;
+                break;
+            }
+            c = (c << 6) | (p[i] & 0x3F);
+        }
+        static const uint32_t min[] = {0, 0x80, 0x800, 0x10000};
+        if (!valid || c < min[extra] || c > 0x10FFFF || (c >= 0xD800 && c <= 0xDFFF)) {
+            utf16.push_back(0xFFFD);
+            p++;
+            continue;
+        }
+        if (c >= 0x10000) {
+            c -= 0x10000;
+            utf16.push_back(0xD800 + (c >> 10));
+            utf16.push_back(0xDC00 + (c & 0x3FF));
+        } else {
+            utf16.push_back(c);
+        }
+        p += extra + 1;
+    }
+    return env->NewString(utf16.data(), utf16.size());
+}
+
+// Flatten chunk stats as
+// (startSample, numSamples, skippedSamples, melTimeUs, waitTimeUs, inferenceTimeUs, decodeTimeUs,
+// overlapSamples, cacheHit)
+static jlongArray newChunkStatsArray(JNIEnv *env, const std::vector<ChunkStats>& stats) {
+    std::vector<jlong> values;
+    values.reserve(stats.size() * 9);
+    for (const ChunkStats& chunk : stats) {
+        values.push_back(chunk.startSample);
+        values.push_back(chunk.numSamples);
+        values.push_back(chunk.skippedSamples);
+        values.push_back(chunk.melTimeUs);
+        values.push_back(chunk.waitTimeUs);
+        values.push_back(chunk.inferenceTimeUs);
+        values.push_back(chunk.decodeTimeUs);
+        values.push_back(chunk.overlapSamples);
+        values.push_back(chunk.cacheHit ? 1 : 0);
+    }
+    jlongArray result = env->NewLongArray(values.size());
+    env->SetLongArrayRegion(result, 0, values.size(), values.data());
+    return result;
+}
+
+static jintArray newIntArray(JNIEnv *env, const std::vector<int>& values) {
+    jintArray result = env->NewIntArray(values.size());
+    env->SetIntArrayRegion(result, 0, values.size(), reinterpret_cast<const jint *>(values.data()));
+    return result;
+}
 
 extern "C" {
 
@@ -13,14 +87,163 @@ Java_com_example_voicecatch_1ver2_engine_WhisperEngineNative_createTFLiteEngine(
 
 // JNI method to load the model
 JNIEXPORT jint JNICALL
-Java_com_example_voicecatch_1ver2_engine_WhisperEngineNative_loadModel(JNIEnv *env, jobject thiz, jlong nativePtr, jstring modelPath, jboolean isMultilingual) {
+Java_com_example_voicecatch_1ver2_engine_WhisperEngineNative_loadModel(JNIEnv *env, jobject thiz, jlong nativePtr, jstring modelPath, jstring vocabPath, jboolean isMultilingual) {
     TFLiteEngine *engine = reinterpret_cast<TFLiteEngine *>(nativePtr);
     const char *cModelPath = env->GetStringUTFChars(modelPath, NULL);
-    int result = engine->loadModel(cModelPath, isMultilingual);
+    const char *cVocabPath = env->GetStringUTFChars(vocabPath, NULL);
+    int result = engine->loadModel(cModelPath, cVocabPath, isMultilingual);
+    env->ReleaseStringUTFChars(vocabPath, cVocabPath);
     env->ReleaseStringUTFChars(modelPath, cModelPath);
     return static_cast<jint>(result);
 }
 
+// JNI method to map the model from an open file descriptor, e.g. an uncompressed APK asset
+JNIEXPORT jint JNICALL
+Java_com_example_voicecatch_1ver2_engine_WhisperEngineNative_loadModelFromFd(JNIEnv *env, jobject thiz, jlong nativePtr, jstring key, jint fd, jlong offset, jlong length, jstring vocabPath, jboolean isMultilingual) {
+    TFLiteEngine *engine = reinterpret_cast<TFLiteEngine *>(nativePtr);
+    const char *cKey = env->GetStringUTFChars(key, NULL);
+    const char *cVocabPath = env->GetStringUTFChars(vocabPath, NULL);
+    int result = engine->loadModel(cKey, fd, offset, length, cVocabPath, isMultilingual);
+    env->ReleaseStringUTFChars(vocabPath, cVocabPath);
+    env->ReleaseStringUTFChars(key, cKey);
+    return static_cast<jint>(result);
+}
+
+// JNI method to get the timings of the last model load
+JNIEXPORT jlongArray JNICALL
+Java_com_example_voicecatch_1ver2_engine_WhisperEngineNative_getLoadStats(JNIEnv *env, jobject thiz, jlong nativePtr) {
+    TFLiteEngine *engine = reinterpret_cast<TFLiteEngine *>(nativePtr);
+    const ModelLoadStats& stats = engine->getLoadStats();
+    const jlong values[] = {
+            stats.mapTimeUs,
+            stats.buildTimeUs,
+            stats.interpreterTimeUs,
+            stats.totalTimeUs,
+            stats.modelBytes,
+            stats.sharedModel ? 1 : 0,
+            stats.delegateTimeUs,
+            stats.xnnpack ? 1 : 0,
+            stats.sharedWeights ? 1 : 0,
+            stats.numThreads
+    };
+    const jsize count = sizeof(values) / sizeof(values[0]);
+    jlongArray result = env->NewLongArray(count);
+    env->SetLongArrayRegion(result, 0, count, values);
+    return result;
+}
+
+// JNI method to get the per-chunk timings of the last file or buffer transcription
+JNIEXPORT jlongArray JNICALL
+Java_com_example_voicecatch_1ver2_engine_WhisperEngineNative_getChunkStats(JNIEnv *env, jobject thiz, jlong nativePtr) {
+    TFLiteEngine *engine = reinterpret_cast<TFLiteEngine *>(nativePtr);
+    return newChunkStatsArray(env, engine->getChunkStats());
+}
+
+// JNI method to get the per-stage latency histograms, flattened per whisper_stage as
+// (count, sumUs, maxUs, WHISPER_STATS_BUCKETS bucket counts)
+JNIEXPORT jlongArray JNICALL
+Java_com_example_voicecatch_1ver2_engine_WhisperEngineNative_getStats(JNIEnv *env, jobject thiz, jlong nativePtr) {
+    TFLiteEngine *engine = reinterpret_cast<TFLiteEngine *>(nativePtr);
+    const whisper_stats& stats = engine->getStats();
+    std::vector<jlong> values;
+    values.reserve(WHISPER_STAGE_COUNT * (3 + WHISPER_STATS_BUCKETS));
+    for (const whisper_histogram& stage : stats.stages) {
+        values.push_back(stage.count.load());
+        values.push_back(stage.sum_us.load());
+        values.push_back(stage.max_us.load());
+        for (const auto& bucket : stage.buckets) {
+            values.push_back(bucket.load());
+        }
+    }
+    jlongArray result = env->NewLongArray(values.size());
+    env->SetLongArrayRegion(result, 0, values.size(), values.data());
+    return result;
+}
+
+// JNI method to clear the latency histograms
+JNIEXPORT void JNICALL
+Java_com_example_voicecatch_1ver2_engine_WhisperEngineNative_resetStats(JNIEnv *env, jobject thiz, jlong nativePtr) {
+    TFLiteEngine *engine = reinterpret_cast<TFLiteEngine *>(nativePtr);
+    engine->resetStats();
+}
+
+// JNI method to get the text token ids of the last transcription
+JNIEXPORT jintArray JNICALL
+Java_com_example_voicecatch_1ver2_engine_WhisperEngineNative_getTokens(JNIEnv *env, jobject thiz, jlong nativePtr) {
+    TFLiteEngine *engine = reinterpret_cast<TFLiteEngine *>(nativePtr);
+    return newIntArray(env, engine->getTokens());
+}
+
+// JNI method to get the bytes of all tokens as one blob
+JNIEXPORT jbyteArray JNICALL
+Java_com_example_voicecatch_1ver2_engine_WhisperEngineNative_getVocabBytes(JNIEnv *env, jobject thiz, jlong nativePtr) {
+    TFLiteEngine *engine = reinterpret_cast<TFLiteEngine *>(nativePtr);
+    const char *bytes;
+    const uint32_t *offsets;
+    int n_tokens;
+    if (!engine->getVocab(&bytes, &offsets, &n_tokens)) {
+        return NULL;
+    }
+    jbyteArray result = env->NewByteArray(offsets[n_tokens]);
+    env->SetByteArrayRegion(result, 0, offsets[n_tokens], reinterpret_cast<const jbyte *>(bytes));
+    return result;
+}
+
+// JNI method to get the n_tokens + 1 offsets of the tokens in the blob
+JNIEXPORT jintArray JNICALL
+Java_com_example_voicecatch_1ver2_engine_WhisperEngineNative_getVocabOffsets(JNIEnv *env, jobject thiz, jlong nativePtr) {
+    TFLiteEngine *engine = reinterpret_cast<TFLiteEngine *>(nativePtr);
+    const char *bytes;
+    const uint32_t *offsets;
+    int n_tokens;
+    if (!engine->getVocab(&bytes, &offsets, &n_tokens)) {
+        return NULL;
+    }
+    jintArray result = env->NewIntArray(n_tokens + 1);
+    env->SetIntArrayRegion(result, 0, n_tokens + 1, reinterpret_cast<const jint *>(offsets));
+    return result;
+}
+
+// JNI method to enable or disable the silence pre-gate
+JNIEXPORT void JNICALL
+Java_com_example_voicecatch_1ver2_engine_WhisperEngineNative_setVadEnabled(JNIEnv *env, jobject thiz, jlong nativePtr, jboolean enabled) {
+    TFLiteEngine *engine = reinterpret_cast<TFLiteEngine *>(nativePtr);
+    engine->setVadEnabled(enabled);
+}
+
+JNIEXPORT jboolean JNICALL
+Java_com_example_voicecatch_1ver2_engine_WhisperEngineNative_isVadEnabled(JNIEnv *env, jobject thiz, jlong nativePtr) {
+    TFLiteEngine *engine = reinterpret_cast<TFLiteEngine *>(nativePtr);
+    return engine->isVadEnabled() ? JNI_TRUE : JNI_FALSE;
+}
+
+// JNI method to set the audio shared by consecutive chunks of a file
+JNIEXPORT void JNICALL
+Java_com_example_voicecatch_1ver2_engine_WhisperEngineNative_setChunkOverlap(JNIEnv *env, jobject thiz, jlong nativePtr, jint overlapMs) {
+    TFLiteEngine *engine = reinterpret_cast<TFLiteEngine *>(nativePtr);
+    engine->setChunkOverlap(overlapMs);
+}
+
+// JNI method to set the transcript cache directory, null to turn it off
+JNIEXPORT void JNICALL
+Java_com_example_voicecatch_1ver2_engine_WhisperEngineNative_setCache(JNIEnv *env, jobject thiz, jlong nativePtr, jstring dir, jlong maxBytes) {
+    TFLiteEngine *engine = reinterpret_cast<TFLiteEngine *>(nativePtr);
+    if (dir == NULL) {
+        engine->setCache(nullptr, 0);
+        return;
+    }
+    const char *cDir = env->GetStringUTFChars(dir, NULL);
+    engine->setCache(cDir, (size_t) maxBytes);
+    env->ReleaseStringUTFChars(dir, cDir);
+}
+
+// JNI method to set the number of native worker threads
+JNIEXPORT void JNICALL
+Java_com_example_voicecatch_1ver2_engine_WhisperEngineNative_setNumThreads(JNIEnv *env, jobject thiz, jlong nativePtr, jint numThreads) {
+    TFLiteEngine *engine = reinterpret_cast<TFLiteEngine *>(nativePtr);
+    engine->setNumThreads(numThreads);
+}
+
 // JNI method to free the model
 JNIEXPORT void JNICALL
 Java_com_example_voicecatch_1ver2_engine_WhisperEngineNative_freeModel(JNIEnv *env, jobject thiz, jlong nativePtr) {
@@ -34,14 +257,37 @@ JNIEXPORT jstring JNICALL
 Java_com_example_voicecatch_1ver2_engine_WhisperEngineNative_transcribeBuffer(JNIEnv *env, jobject thiz, jlong nativePtr, jfloatArray samples) {
     TFLiteEngine *engine = reinterpret_cast<TFLiteEngine *>(nativePtr);
 
-    // Convert jfloatArray to std::vector<float>
-    jsize len = env->GetArrayLength(samples);
-    jfloat *data = env->GetFloatArrayElements(samples, 0);
-    std::vector<float> sampleVector(data, data + len);
-    env->ReleaseFloatArrayElements(samples, data, 0);
+    // Copied (at most 30 s, about a millisecond) rather than pinned: the mel spectrogram waits on
+    // the worker pool, which a file session may hold for a whole chunk, and a critical region
+    // would stall the GC that long. Direct buffers are read in place.
+    const jsize len = std::min(env->GetArrayLength(samples), (jsize) TFLiteEngine::MAX_BUFFER_SAMPLES);
+    float *data = engine->getSampleBuffer(len);
+    env->GetFloatArrayRegion(samples, 0, len, data);
+    bool ready = engine->computeInput(data, len);
 
-    std::string result = engine->transcribeBuffer(sampleVector);
-    return env->NewStringUTF(result.c_str());
+    std::string result = ready ? engine->runInference() : "";
+    return newStringFromUtf8(env, result);
+}
+
+// JNI method to transcribe [offset, offset + length) of a direct FloatBuffer (PCM_FLOAT)
+// or ShortBuffer (PCM_16) in place
+JNIEXPORT jstring JNICALL
+Java_com_example_voicecatch_1ver2_engine_WhisperEngineNative_transcribeDirectBuffer(JNIEnv *env, jobject thiz, jlong nativePtr, jobject buffer, jint offset, jint length, jboolean pcm16) {
+    TFLiteEngine *engine = reinterpret_cast<TFLiteEngine *>(nativePtr);
+
+    void *address = env->GetDirectBufferAddress(buffer);
+    jlong capacity = env->GetDirectBufferCapacity(buffer);
+    if (address == NULL || offset < 0 || length < 0 || (jlong) offset + length > capacity) {
+        return newStringFromUtf8(env, "");
+    }
+
+    std::string result;
+    if (pcm16) {
+        result = engine->transcribeBuffer(static_cast<const int16_t *>(address) + offset, length);
+    } else {
+        result = engine->transcribeBuffer(static_cast<const float *>(address) + offset, length);
+    }
+    return newStringFromUtf8(env, result);
 }
 
 // JNI method to transcribe audio file
@@ -51,7 +297,120 @@ Java_com_example_voicecatch_1ver2_engine_WhisperEngineNative_transcribeFile(JNIE
     const char *cWaveFile = env->GetStringUTFChars(waveFile, NULL);
     std::string result = engine->transcribeFile(cWaveFile);
     env->ReleaseStringUTFChars(waveFile, cWaveFile);
-    return env->NewStringUTF(result.c_str());
+    return newStringFromUtf8(env, result);
+}
+
+// JNI method to open a file for chunk by chunk transcription; returns the session or 0
+JNIEXPORT jlong JNICALL
+Java_com_example_voicecatch_1ver2_engine_WhisperEngineNative_openFile(JNIEnv *env, jobject thiz, jlong nativePtr, jstring waveFile) {
+    TFLiteEngine *engine = reinterpret_cast<TFLiteEngine *>(nativePtr);
+    const char *cWaveFile = env->GetStringUTFChars(waveFile, NULL);
+    TFLiteEngine::FileSession *session = engine->openFile(cWaveFile);
+    env->ReleaseStringUTFChars(waveFile, cWaveFile);
+    return reinterpret_cast<jlong>(session);
+}
+
+JNIEXPORT jboolean JNICALL
+Java_com_example_voicecatch_1ver2_engine_WhisperEngineNative_hasNextChunk(JNIEnv *env, jobject thiz, jlong nativePtr, jlong sessionPtr) {
+    TFLiteEngine *engine = reinterpret_cast<TFLiteEngine *>(nativePtr);
+    TFLiteEngine::FileSession *session = reinterpret_cast<TFLiteEngine::FileSession *>(sessionPtr);
+    return engine->hasNextChunk(session) ? JNI_TRUE : JNI_FALSE;
+}
+
+JNIEXPORT jstring JNICALL
+Java_com_example_voicecatch_1ver2_engine_WhisperEngineNative_transcribeNextChunk(JNIEnv *env, jobject thiz, jlong nativePtr, jlong sessionPtr) {
+    TFLiteEngine *engine = reinterpret_cast<TFLiteEngine *>(nativePtr);
+    TFLiteEngine::FileSession *session = reinterpret_cast<TFLiteEngine::FileSession *>(sessionPtr);
+    return newStringFromUtf8(env, engine->transcribeNextChunk(session));
+}
+
+JNIEXPORT jlongArray JNICALL
+Java_com_example_voicecatch_1ver2_engine_WhisperEngineNative_getSessionChunkStats(JNIEnv *env, jobject thiz, jlong nativePtr, jlong sessionPtr) {
+    TFLiteEngine *engine = reinterpret_cast<TFLiteEngine *>(nativePtr);
+    TFLiteEngine::FileSession *session = reinterpret_cast<TFLiteEngine::FileSession *>(sessionPtr);
+    return newChunkStatsArray(env, engine->getChunkStats(session));
+}
+
+JNIEXPORT jintArray JNICALL
+Java_com_example_voicecatch_1ver2_engine_WhisperEngineNative_getSessionTokens(JNIEnv *env, jobject thiz, jlong nativePtr, jlong sessionPtr) {
+    TFLiteEngine *engine = reinterpret_cast<TFLiteEngine *>(nativePtr);
+    TFLiteEngine::FileSession *session = reinterpret_cast<TFLiteEngine::FileSession *>(sessionPtr);
+    return newIntArray(env, engine->getTokens(session));
+}
+
+JNIEXPORT jlong JNICALL
+Java_com_example_voicecatch_1ver2_engine_WhisperEngineNative_getSessionTotalSamples(JNIEnv *env, jobject thiz, jlong nativePtr, jlong sessionPtr) {
+    TFLiteEngine *engine = reinterpret_cast<TFLiteEngine *>(nativePtr);
+    return (jlong) engine->getTotalSamples(reinterpret_cast<TFLiteEngine::FileSession *>(sessionPtr));
+}
+
+JNIEXPORT void JNICALL
+Java_com_example_voicecatch_1ver2_engine_WhisperEngineNative_closeFile(JNIEnv *env, jobject thiz, jlong nativePtr, jlong sessionPtr) {
+    TFLiteEngine *engine = reinterpret_cast<TFLiteEngine *>(nativePtr);
+    engine->closeFile(reinterpret_cast<TFLiteEngine::FileSession *>(sessionPtr));
+}
+
+JNIEXPORT jlong JNICALL
+Java_com_example_voicecatch_1ver2_engine_WhisperEngineNative_openStream(JNIEnv *env, jobject thiz, jlong nativePtr) {
+    TFLiteEngine *engine = reinterpret_cast<TFLiteEngine *>(nativePtr);
+    return reinterpret_cast<jlong>(engine->openStream());
+}
+
+// JNI method to add live audio to a stream and decode its window
+JNIEXPORT jstring JNICALL
+Java_com_example_voicecatch_1ver2_engine_WhisperEngineNative_pushStream(JNIEnv *env, jobject thiz, jlong nativePtr, jlong streamPtr, jfloatArray samples) {
+    TFLiteEngine *engine = reinterpret_cast<TFLiteEngine *>(nativePtr);
+    TFLiteEngine::LiveStream *stream = reinterpret_cast<TFLiteEngine::LiveStream *>(streamPtr);
+
+    // Only the new audio crosses JNI, the earlier part of the window stays as mel frames.
+    // Copied rather than pinned, like transcribeBuffer.
+    const jsize len = env->GetArrayLength(samples);
+    float *data = engine->getSampleBuffer(len);
+    env->GetFloatArrayRegion(samples, 0, len, data);
+    bool ready = engine->pushStream(stream, data, len);
+
+    std::string result = ready ? engine->runInference() : "";
+    return newStringFromUtf8(env, result);
+}
+
+JNIEXPORT jint JNICALL
+Java_com_example_voicecatch_1ver2_engine_WhisperEngineNative_advanceStream(JNIEnv *env, jobject thiz, jlong nativePtr, jlong streamPtr, jint numSamples) {
+    TFLiteEngine *engine = reinterpret_cast<TFLiteEngine *>(nativePtr);
+    TFLiteEngine::LiveStream *stream = reinterpret_cast<TFLiteEngine::LiveStream *>(streamPtr);
+    return (jint) engine->advanceStream(stream, numSamples > 0 ? numSamples : 0);
+}
+
+JNIEXPORT jint JNICALL
+Java_com_example_voicecatch_1ver2_engine_WhisperEngineNative_getStreamSamples(JNIEnv *env, jobject thiz, jlong nativePtr, jlong streamPtr) {
+    TFLiteEngine *engine = reinterpret_cast<TFLiteEngine *>(nativePtr);
+    return (jint) engine->getStreamSamples(reinterpret_cast<TFLiteEngine::LiveStream *>(streamPtr));
+}
+
+JNIEXPORT void JNICALL
+Java_com_example_voicecatch_1ver2_engine_WhisperEngineNative_closeStream(JNIEnv *env, jobject thiz, jlong nativePtr, jlong streamPtr) {
+    TFLiteEngine *engine = reinterpret_cast<TFLiteEngine *>(nativePtr);
+    engine->closeStream(reinterpret_cast<TFLiteEngine::LiveStream *>(streamPtr));
+}
+
+// JNI method to cancel the transcription in progress, called from another thread
+JNIEXPORT void JNICALL
+Java_com_example_voicecatch_1ver2_engine_WhisperEngineNative_cancel(JNIEnv *env, jobject thiz, jlong nativePtr) {
+    TFLiteEngine *engine = reinterpret_cast<TFLiteEngine *>(nativePtr);
+    engine->cancel();
+}
+
+// JNI method to clear a cancel before the next transcription
+JNIEXPORT void JNICALL
+Java_com_example_voicecatch_1ver2_engine_WhisperEngineNative_clearCancel(JNIEnv *env, jobject thiz, jlong nativePtr) {
+    TFLiteEngine *engine = reinterpret_cast<TFLiteEngine *>(nativePtr);
+    engine->clearCancel();
+}
+
+// JNI method to check whether the last transcription was cancelled
+JNIEXPORT jboolean JNICALL
+Java_com_example_voicecatch_1ver2_engine_WhisperEngineNative_isCancelled(JNIEnv *env, jobject thiz, jlong nativePtr) {
+    TFLiteEngine *engine = reinterpret_cast<TFLiteEngine *>(nativePtr);
+    return engine->isCancelled() ? JNI_TRUE : JNI_FALSE;
 }
 
 } // extern "C"
@@ -0,0 +1,174 @@
+#ifndef _CACHE_H_
+#define _CACHE_H_
+
+#include <cstddef>
+#include <cstdint>
+#include <cstdio>
+#include <cstring>
+#include <list>
+#include <map>
+#include <mutex>
+#include <string>
+#include <vector>
+#include <dirent.h>
+#include <fcntl.h>
+#include <sys/stat.h>
+#include <unistd.h>
+
+#define WHISPER_CACHE_MAGIC 0x57544f4b  // "WTOK"
+#define WHISPER_CACHE_SUFFIX ".tok"
+
+// 64-bit hash of a byte range (multiply-xorshift over 8-byte words), fast enough to run on
+// every chunk of a recording. Not cryptographic: a key collision needs the same model too.
+inline uint64_t whisper_hash(const void* data, size_t size, uint64_t seed = 0) {
+    const uint64_t m = 0x9e3779b97f4a7c15ULL;
+    uint64_t h = seed ^ (size * m);
+    const unsigned char* p = static_cast<const unsigned char*>(data);
+    size_t i = 0;
+    for (; i + 8 <= size; i += 8) {
+        uint64_t w;
+        memcpy(&w, p + i, 8);
+        w *= m;
+        w ^= w >> 32;
+        h = (h ^ w) * m;
+        h ^= h >> 29;
+    }
+    uint64_t w = 0;
+    memcpy(&w, p + i, size - i);
+    h = (h ^ (w * m)) * m;
+    return h ^ (h >> 32);
+}
+
+// Text tokens of transcribed chunks on disk, one small file per (model, audio) hash pair.
+// Least recently used entries (by file modification time, touched on every hit) are deleted
+// when the files exceed max_bytes. Shared by every engine using the same directory.
+class whisper_cache {
+public:
+    whisper_cache(const std::string& dir, size_t max_bytes) : dir(dir), max_bytes(max_bytes) {
+        mkdir(dir.c_str(), 0700);
+        scan();
+    }
+
+    bool get(uint64_t model, uint64_t audio, std::vector<int>& tokens) {
+        std::lock_guard<std::mutex> lock(mutex);
+        const std::string name = entry_name(model, audio);
+        auto it = index.find(name);
+        if (it == index.end() || !read(path(name), tokens)) {
+            return false;
+        }
+        // most recently used: front of the list and of the file times, for the next scan
+        lru.splice(lru.begin(), lru, it->second);
+        utimensat(AT_FDCWD, path(name).c_str(), nullptr, 0);
+        return true;
+    }
+
+    void put(uint64_t model, uint64_t audio, const std::vector<int>& tokens) {
+        std::lock_guard<std::mutex> lock(mutex);
+        const std::string name = entry_name(model, audio);
+        if (index.count(name) > 0) {
+            return;
+        }
+
+        // written to a temporary name, so a crash never leaves a truncated entry behind
+        const std::string tmp = path(name) + ".tmp";
+        FILE* f = fopen(tmp.c_str(), "wb");
+        if (f == nullptr) {
+            return;
+        }
+        const uint32_t header[2] = {WHISPER_CACHE_MAGIC, (uint32_t) tokens.size()};
+        bool ok = fwrite(header, sizeof(header), 1, f) == 1;
+        if (ok && !tokens.empty()) {
+            ok = fwrite(tokens.data(), sizeof(int), tokens.size(), f) == tokens.size();
+        }
+        ok = fclose(f) == 0 && ok;
+        if (!ok || rename(tmp.c_str(), path(name).c_str()) != 0) {
+            unlink(tmp.c_str());
+            return;
+        }
+
+        const size_t size = sizeof(header) + tokens.size() * sizeof(int);
+        lru.push_front({name, size});
+        index[name] = lru.begin();
+        total_bytes += size;
+        evict();
+    }
+
+    size_t size_bytes() const { return total_bytes; }
+
+private:
+    struct entry {
+        std::string name;
+        size_t size;
+    };
+
+    std::string path(const std::string& name) const { return dir + "/" + name; }
+
+    static std::string entry_name(uint64_t model, uint64_t audio) {
+        char name[64];
+        snprintf(name, sizeof(name), "%016llx-%016llx" WHISPER_CACHE_SUFFIX,
+                 (unsigned long long) model, (unsigned long long) audio);
+        return name;
+    }
+
+    static bool read(const std::string& path, std::vector<int>& tokens) {
+        FILE* f = fopen(path.c_str(), "rb");
+        if (f == nullptr) {
+            return false;
+        }
+        uint32_t header[2] = {0, 0};
+        bool ok = fread(header, sizeof(header), 1, f) == 1 && header[0] == WHISPER_CACHE_MAGIC;
+        if (ok) {
+            tokens.resize(header[1]);
+            ok = tokens.empty() || fread(tokens.data(), sizeof(int), tokens.size(), f) == tokens.size();
+        }
+        fclose(f);
+        return ok;
+    }
+
+    // Entries left by earlier runs, most recently used first
+    void scan() {
+        DIR* d = opendir(dir.c_str());
+        if (d == nullptr) {
+            return;
+        }
+        std::multimap<int64_t, entry> by_time;
+        const size_t suffix = strlen(WHISPER_CACHE_SUFFIX);
+        while (dirent* e = readdir(d)) {
+            const std::string name = e->d_name;
+            struct stat st;
+            if (name.size() <= suffix || name.compare(name.size() - suffix, suffix, WHISPER_CACHE_SUFFIX) != 0 ||
+                stat(path(name).c_str(), &st) != 0) {
+                continue;
+            }
+            const int64_t mtime = (int64_t) st.st_mtim.tv_sec * 1000000000LL + st.st_mtim.tv_nsec;
+            by_time.insert({-mtime, {name, (size_t) st.st_size}});
+        }
+        closedir(d);
+
+        for (auto& it : by_time) {
+            lru.push_back(it.second);
+            index[it.second.name] = std::prev(lru.end());
+            total_bytes += it.second.size;
+        }
+        evict();
+    }
+
+    void evict() {
+        while (total_bytes > max_bytes && !lru.empty()) {
+            const entry& oldest = lru.back();
+            unlink(path(oldest.name).c_str());
+            total_bytes -= oldest.size;
+            index.erase(oldest.name);
+            lru.pop_back();
+        }
+    }
+
+    const std::string dir;
+    const size_t max_bytes;
+    std::mutex mutex;
+    std::list<entry> lru;  // most recently used first
+    std::map<std::string, std::list<entry>::iterator> index;
+    size_t total_bytes = 0;
+};
+
+#endif // _CACHE_H_
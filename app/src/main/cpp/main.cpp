@@ -1,5 +1,6 @@
 #include <iostream>
 #include "TFLiteEngine.h"
+#include "trace.h"
 
 int main() {
     TFLiteEngine engine;
@@ -10,8 +11,9 @@ int main() {
     if (isMultilingual) {
         modelPath = "../../assets/fast-whisper-base-ko.tflite";
     }
+    const char* vocabPath = "../../assets/filters_vocab_multilingual.bin";
 
-    int result = engine.loadModel(modelPath, isMultilingual);
+    int result = engine.loadModel(modelPath, vocabPath, isMultilingual);
     if (result != 0) {
         std::cerr << "Error loading the TFLite model or vocabulary." << std::endl;
         return 1;
@@ -22,6 +24,7 @@ int main() {
     //audioFilePath = "../resources/MicInput.wav";
 	audioFilePath = "../english_test_3_bili.wav";
     std::string transcription = engine.transcribeFile(audioFilePath);
+    whisper_log_dump(stdout);
     if (!transcription.empty()) {
         std::cout << "Transcription: " << transcription << std::endl;
     } else {
@@ -0,0 +1,250 @@
+#ifndef _RFFT_H_
+#define _RFFT_H_
+
+#include <cmath>
+#include <vector>
+
+// Precomputed plan for the forward FFT of a real sequence of even length N (N = 400 for the
+// mel STFT). The input is packed into a complex sequence of length N/2 which is transformed
+// with a mixed-radix (4, 2, 3, 5, generic) Stockham FFT, then split into the N/2 + 1
+// non-redundant bins. All twiddles are computed once; execute() does not allocate.
+struct rfft_plan {
+    struct stage {
+        int radix;
+        int n;        // sub-sequence length at this stage
+        int stride;   // product of the radices of the previous stages
+        int twiddle;  // offset in twiddles: (n / radix) * (radix - 1) complex values
+        int roots;    // offset in roots for radices without a specialized butterfly
+    };
+
+    int n = 0;        // real input length
+    int m = 0;        // complex transform length, n / 2
+    std::vector<stage> stages;
+    std::vector<float> twiddles;  // per-stage twiddles, interleaved re/im
+    std::vector<float> split;     // e^(-2*pi*i*k/n) for k = 0..m, interleaved re/im
+    std::vector<float> roots;     // e^(-2*pi*i*j/radix) tables for radices without a butterfly
+
+    explicit rfft_plan(int size = 0) {
+        if (size > 0) {
+            init(size);
+        }
+    }
+
+    void init(int size) {
+        n = size;
+        m = size / 2;
+        stages.clear();
+        twiddles.clear();
+        split.clear();
+        roots.clear();
+
+        // factorize m, preferring the larger specialized butterflies
+        int rest = m;
+        int stride = 1;
+        const int preferred[] = {4, 2, 3, 5};
+        while (rest > 1) {
+            int radix = 0;
+            for (int r : preferred) {
+                if (rest % r == 0) {
+                    radix = r;
+                    break;
+                }
+            }
+            if (radix == 0) {
+                for (radix = 7; rest % radix != 0; radix += 2) {}
+            }
+
+            stage st{radix, rest, stride, (int) twiddles.size() / 2, (int) roots.size() / 2};
+            if (radix > 5) {
+                for (int j = 0; j < radix; j++) {
+                    const double theta = -2.0 * M_PI * j / radix;
+                    roots.push_back((float) cos(theta));
+                    roots.push_back((float) sin(theta));
+                }
+            }
+            const int sub = rest / radix;
+            for (int p = 0; p < sub; p++) {
+                for (int k = 1; k < radix; k++) {
+                    const double theta = -2.0 * M_PI * p * k / rest;
+                    twiddles.push_back((float) cos(theta));
+                    twiddles.push_back((float) sin(theta));
+                }
+            }
+            stages.push_back(st);
+
+            rest = sub;
+            stride *= radix;
+        }
+
+        for (int k = 0; k <= m; k++) {
+            const double theta = -2.0 * M_PI * k / n;
+            split.push_back((float) cos(theta));
+            split.push_back((float) sin(theta));
+        }
+    }
+
+    // Floats of scratch memory execute() needs
+    int work_size() const { return 4 * m; }
+
+    // in: n real samples, out: (n/2 + 1) complex bins interleaved re/im, work: work_size() floats
+    void execute(const float* in, float* out, float* work) const {
+        float* x = work;
+        float* y = work + 2 * m;
+
+        // pack even/odd samples as real/imaginary parts
+        for (int i = 0; i < 2 * m; i++) {
+            x[i] = in[i];
+        }
+
+        for (const stage& st : stages) {
+            run_stage(st, x, y);
+            float* t = x;
+            x = y;
+            y = t;
+        }
+
+        // split the packed spectrum into the spectrum of the real input
+        for (int k = 0; k <= m; k++) {
+            const int k1 = (k == m) ? 0 : k;
+            const int k2 = (k == 0) ? 0 : m - k;
+            const float zr = x[2 * k1], zi = x[2 * k1 + 1];
+            const float cr = x[2 * k2], ci = -x[2 * k2 + 1];
+
+            const float er = 0.5f * (zr + cr), ei = 0.5f * (zi + ci);
+            const float dr = 0.5f * (zr - cr), di = 0.5f * (zi - ci);
+            // odd part: (z - conj) / 2i, rotated by the split twiddle
+            const float or_ = di, oi = -dr;
+            const float wr = split[2 * k], wi = split[2 * k + 1];
+
+            out[2 * k + 0] = er + or_ * wr - oi * wi;
+            out[2 * k + 1] = ei + or_ * wi + oi * wr;
+        }
+    }
+
+private:
+    static inline void cmul(float ar, float ai, float br, float bi, float& r, float& i) {
+        r = ar * br - ai * bi;
+        i = ar * bi + ai * br;
+    }
+
+    // One decimation-in-frequency Stockham pass: for every p < n/radix and q < stride,
+    // DFT of x[q + stride*(p + j*n/radix)], j < radix, twiddled and stored at y[q + stride*(radix*p + k)]
+    void run_stage(const stage& st, const float* x, float* y) const {
+        const int r = st.radix;
+        const int s = st.stride;
+        const int sub = st.n / r;
+        const float* tw = twiddles.data() + 2 * st.twiddle;
+
+        for (int p = 0; p < sub; p++) {
+            const float* w = tw + 2 * p * (r - 1);
+            for (int q = 0; q < s; q++) {
+                const float* a = x + 2 * (q + s * p);
+                float* b = y + 2 * (q + s * r * p);
+                const int ia = 2 * s * sub;  // distance between butterfly inputs
+                const int ib = 2 * s;        // distance between butterfly outputs
+
+                switch (r) {
+                    case 2: butterfly2(a, ia, b, ib, w); break;
+                    case 4: butterfly4(a, ia, b, ib, w); break;
+                    case 3: butterfly3(a, ia, b, ib, w); break;
+                    case 5: butterfly5(a, ia, b, ib, w); break;
+                    default: butterfly_generic(r, roots.data() + 2 * st.roots, a, ia, b, ib, w); break;
+                }
+            }
+        }
+    }
+
+    static inline void store(float* b, int k, int ib, const float* w, float re, float im) {
+        if (k == 0) {
+            b[0] = re;
+            b[1] = im;
+        } else {
+            cmul(re, im, w[2 * (k - 1)], w[2 * (k - 1) + 1], b[k * ib], b[k * ib + 1]);
+        }
+    }
+
+    static void butterfly2(const float* a, int ia, float* b, int ib, const float* w) {
+        const float a0r = a[0], a0i = a[1];
+        const float a1r = a[ia], a1i = a[ia + 1];
+        store(b, 0, ib, w, a0r + a1r, a0i + a1i);
+        store(b, 1, ib, w, a0r - a1r, a0i - a1i);
+    }
+
+    static void butterfly3(const float* a, int ia, float* b, int ib, const float* w) {
+        const float c = -0.5f;
+        const float sn = 0.86602540378443864676f; // sin(2*pi/3)
+        const float a0r = a[0], a0i = a[1];
+        const float a1r = a[ia], a1i = a[ia + 1];
+        const float a2r = a[2 * ia], a2i = a[2 * ia + 1];
+
+        const float tr = a1r + a2r, ti = a1i + a2i;
+        const float ur = a1r - a2r, ui = a1i - a2i;
+        const float mr = a0r + c * tr, mi = a0i + c * ti;
+
+        store(b, 0, ib, w, a0r + tr, a0i + ti);
+        store(b, 1, ib, w, mr + sn * ui, mi - sn * ur);
+        store(b, 2, ib, w, mr - sn * ui, mi + sn * ur);
+    }
+
+    static void butterfly4(const float* a, int ia, float* b, int ib, const float* w) {
+        const float a0r = a[0], a0i = a[1];
+        const float a1r = a[ia], a1i = a[ia + 1];
+        const float a2r = a[2 * ia], a2i = a[2 * ia + 1];
+        const float a3r = a[3 * ia], a3i = a[3 * ia + 1];
+
+        const float s02r = a0r + a2r, s02i = a0i + a2i;
+        const float d02r = a0r - a2r, d02i = a0i - a2i;
+        const float s13r = a1r + a3r, s13i = a1i + a3i;
+        const float d13r = a1r - a3r, d13i = a1i - a3i;
+
+        store(b, 0, ib, w, s02r + s13r, s02i + s13i);
+        store(b, 1, ib, w, d02r + d13i, d02i - d13r);   // d02 - i*d13
+        store(b, 2, ib, w, s02r - s13r, s02i - s13i);
+        store(b, 3, ib, w, d02r - d13i, d02i + d13r);   // d02 + i*d13
+    }
+
+    static void butterfly5(const float* a, int ia, float* b, int ib, const float* w) {
+        const float c1 = 0.30901699437494742410f;  // cos(2*pi/5)
+        const float c2 = -0.80901699437494742410f; // cos(4*pi/5)
+        const float s1 = 0.95105651629515357212f;  // sin(2*pi/5)
+        const float s2 = 0.58778525229247312917f;  // sin(4*pi/5)
+
+        const float a0r = a[0], a0i = a[1];
+        const float a1r = a[ia], a1i = a[ia + 1];
+        const float a2r = a[2 * ia], a2i = a[2 * ia + 1];
+        const float a3r = a[3 * ia], a3i = a[3 * ia + 1];
+        const float a4r = a[4 * ia], a4i = a[4 * ia + 1];
+
+        const float t1r = a1r + a4r, t1i = a1i + a4i;
+        const float t2r = a2r + a3r, t2i = a2i + a3i;
+        const float t3r = a1r - a4r, t3i = a1i - a4i;
+        const float t4r = a2r - a3r, t4i = a2i - a3i;
+
+        const float m1r = a0r + c1 * t1r + c2 * t2r, m1i = a0i + c1 * t1i + c2 * t2i;
+        const float m2r = a0r + c2 * t1r + c1 * t2r, m2i = a0i + c2 * t1i + c1 * t2i;
+        const float n1r = s1 * t3r + s2 * t4r, n1i = s1 * t3i + s2 * t4i;
+        const float n2r = s2 * t3r - s1 * t4r, n2i = s2 * t3i - s1 * t4i;
+
+        store(b, 0, ib, w, a0r + t1r + t2r, a0i + t1i + t2i);
+        store(b, 1, ib, w, m1r + n1i, m1i - n1r);   // m1 - i*n1
+        store(b, 2, ib, w, m2r + n2i, m2i - n2r);   // m2 - i*n2
+        store(b, 3, ib, w, m2r - n2i, m2i + n2r);   // m2 + i*n2
+        store(b, 4, ib, w, m1r - n1i, m1i + n1r);   // m1 + i*n1
+    }
+
+    static void butterfly_generic(int r, const float* root, const float* a, int ia, float* b, int ib, const float* w) {
+        for (int k = 0; k < r; k++) {
+            float re = 0.0f, im = 0.0f;
+            for (int j = 0; j < r; j++) {
+                const int e = (j * k) % r;
+                float pr, pi;
+                cmul(a[j * ia], a[j * ia + 1], root[2 * e], root[2 * e + 1], pr, pi);
+                re += pr;
+                im += pi;
+            }
+            store(b, k, ib, w, re, im);
+        }
+    }
+};
+
+#endif // _RFFT_H_
@@ -0,0 +1,106 @@
+#ifndef _SEGMENTER_H_
+#define _SEGMENTER_H_
+
+#include <algorithm>
+#include <cstddef>
+#include <cstdint>
+#include <vector>
+
+#include "vad.h"
+
+#define WHISPER_SEGMENT_SEARCH_FRAMES 156  // ~5 s before the window limit searched for a cut
+
+// Range of samples [begin, end)
+struct whisper_segment {
+    size_t begin;
+    size_t end;
+};
+
+// Speech segments packed into one encoder window, in order
+struct whisper_window {
+    std::vector<whisper_segment> segments;
+    size_t n_samples = 0;
+};
+
+// Splits a recording into encoder windows from the VAD frame levels of the whole file.
+// Speech runs (padded and merged like whisper_vad::speech_range) shorter than a window are
+// packed together so every window carries as much speech as possible; runs longer than a
+// window are cut at the quietest frame shortly before the limit instead of mid-word.
+class whisper_segmenter {
+public:
+    explicit whisper_segmenter(const whisper_vad& vad) : vad(vad) {}
+
+    // Analyze the next frame of the recording (WHISPER_VAD_FRAME_SIZE samples, shorter at the end)
+    void push_frame(const float* frame, int n) {
+        frame_db.push_back(whisper_vad::frame_db(frame, n));
+        frame_speech.push_back(vad.is_speech(frame, n) ? 1 : 0);
+    }
+
+    std::vector<whisper_window> windows(size_t n_samples, size_t max_samples) const {
+        const size_t n_frames = frame_speech.size();
+        const size_t max_frames = max_samples / WHISPER_VAD_FRAME_SIZE;
+
+        // padded speech runs, merged when the padding overlaps
+        std::vector<whisper_segment> runs;
+        for (size_t f = 0; f < n_frames; ) {
+            if (!frame_speech[f]) {
+                f++;
+                continue;
+            }
+            size_t end = f;
+            while (end < n_frames && frame_speech[end]) {
+                end++;
+            }
+            const size_t begin = f > (size_t) vad.pad_frames ? f - vad.pad_frames : 0;
+            const size_t padded_end = std::min(end + vad.pad_frames, n_frames);
+            if (!runs.empty() && begin <= runs.back().end) {
+                runs.back().end = padded_end;
+            } else {
+                runs.push_back({begin, padded_end});
+            }
+            f = end;
+        }
+
+        // cut runs longer than a window at the quietest frame near the limit
+        std::vector<whisper_segment> pieces;
+        for (whisper_segment run : runs) {
+            while (run.end - run.begin > max_frames) {
+                const size_t limit = run.begin + max_frames;
+                const size_t search = std::min((size_t) WHISPER_SEGMENT_SEARCH_FRAMES, max_frames / 2);
+                size_t cut = limit;
+                for (size_t f = limit - search; f < limit; f++) {
+                    if (frame_db[f] < frame_db[cut - 1]) {
+                        cut = f + 1;
+                    }
+                }
+                // the quietest frame closes this piece
+                pieces.push_back({run.begin, cut});
+                run.begin = cut;
+            }
+            pieces.push_back(run);
+        }
+
+        // pack pieces greedily into windows
+        std::vector<whisper_window> result;
+        for (const whisper_segment& piece : pieces) {
+            const size_t begin = piece.begin * WHISPER_VAD_FRAME_SIZE;
+            const size_t end = std::min(piece.end * WHISPER_VAD_FRAME_SIZE, n_samples);
+            if (end <= begin) {
+                continue;
+            }
+            if (result.empty() || result.back().n_samples + (end - begin) > max_samples) {
+                result.emplace_back();
+            }
+            result.back().segments.push_back({begin, end});
+            result.back().n_samples += end - begin;
+        }
+        return result;
+    }
+
+private:
+    const whisper_vad& vad;
+    std::vector<float> frame_db;
+    std::vector<uint8_t> frame_speech;
+};
+
+#endif // _SEGMENTER_H_
@@ -0,0 +1,173 @@
+#ifndef _TRACE_H_
+#define _TRACE_H_
+
+#include <atomic>
+#include <chrono>
+#include <cstdarg>
+#include <cstdint>
+#include <cstdio>
+#include <mutex>
+
+#if defined(__ANDROID__)
+#include <android/log.h>
+#include <android/trace.h>
+#endif
+
+#define WHISPER_LOG_TAG "TFLiteEngine"
+
+// Logging: logcat on Android. Host builds keep info/debug lines in a ring buffer that
+// whisper_log_dump() prints on demand, only errors go straight to stderr.
+#if defined(__ANDROID__)
+#define LOGD(...) __android_log_print(ANDROID_LOG_DEBUG, WHISPER_LOG_TAG, __VA_ARGS__)
+#define LOGI(...) __android_log_print(ANDROID_LOG_INFO, WHISPER_LOG_TAG, __VA_ARGS__)
+#define LOGE(...) __android_log_print(ANDROID_LOG_ERROR, WHISPER_LOG_TAG, __VA_ARGS__)
+#else
+#define WHISPER_LOG_RING_LINES 128
+#define WHISPER_LOG_LINE_SIZE 256
+
+struct whisper_log_ring {
+    std::mutex mutex;
+    char lines[WHISPER_LOG_RING_LINES][WHISPER_LOG_LINE_SIZE];
+    uint64_t next = 0;
+};
+
+inline whisper_log_ring& whisper_log_buffer() {
+    static whisper_log_ring ring;
+    return ring;
+}
+
+inline void whisper_log(char level, const char* format, ...) {
+    whisper_log_ring& ring = whisper_log_buffer();
+    std::lock_guard<std::mutex> lock(ring.mutex);
+    char* line = ring.lines[ring.next++ % WHISPER_LOG_RING_LINES];
+    line[0] = level;
+    line[1] = ' ';
+    va_list args;
+    va_start(args, format);
+    vsnprintf(line + 2, WHISPER_LOG_LINE_SIZE - 2, format, args);
+    va_end(args);
+    if (level == 'E') {
+        fprintf(stderr, "%s: %s\n", WHISPER_LOG_TAG, line + 2);
+    }
+}
+
+// Print the buffered lines, oldest first
+inline void whisper_log_dump(FILE* out) {
+    whisper_log_ring& ring = whisper_log_buffer();
+    std::lock_guard<std::mutex> lock(ring.mutex);
+    const uint64_t first = ring.next > WHISPER_LOG_RING_LINES ? ring.next - WHISPER_LOG_RING_LINES : 0;
+    for (uint64_t i = first; i < ring.next; i++) {
+        fprintf(out, "%s\n", ring.lines[i % WHISPER_LOG_RING_LINES]);
+    }
+}
+
+#define LOGD(...) whisper_log('D', __VA_ARGS__)
+#define LOGI(...) whisper_log('I', __VA_ARGS__)
+#define LOGE(...) whisper_log('E', __VA_ARGS__)
+#endif
+
+inline int64_t whisper_now_us() {
+    return std::chrono::duration_cast<std::chrono::microseconds>(
+            std::chrono::steady_clock::now().time_since_epoch()).count();
+}
+
+// Stages with a latency histogram; the order is part of the getStats() JNI layout
+enum whisper_stage {
+    WHISPER_STAGE_SEGMENT,  // level pass and segmentation of a file
+    WHISPER_STAGE_MEL,      // VAD and mel spectrogram of one window
+    WHISPER_STAGE_WAIT,     // inference waiting for the mel of the next window
+    WHISPER_STAGE_INVOKE,   // interpreter Invoke
+    WHISPER_STAGE_DECODE,   // token ids to text
+    WHISPER_STAGE_COUNT
+};
+
+inline const char* whisper_stage_name(whisper_stage stage) {
+    static const char* names[WHISPER_STAGE_COUNT] = {
+            "whisper.segment", "whisper.mel", "whisper.wait", "whisper.invoke", "whisper.decode"
+    };
+    return names[stage];
+}
+
+// Bucket b counts latencies in [2^b, 2^(b+1)) us (bucket 0 also counts 0 us); the last
+// bucket collects everything from ~8.4 s up
+#define WHISPER_STATS_BUCKETS 24
+
+struct whisper_histogram {
+    std::atomic<uint64_t> count{0};
+    std::atomic<uint64_t> sum_us{0};
+    std::atomic<uint64_t> max_us{0};
+    std::atomic<uint64_t> buckets[WHISPER_STATS_BUCKETS];
+
+    whisper_histogram() { reset(); }
+
+    void record(uint64_t us) {
+        int bucket = 0;
+        for (uint64_t v = us; v > 1 && bucket < WHISPER_STATS_BUCKETS - 1; v >>= 1) {
+            bucket++;
+        }
+        buckets[bucket].fetch_add(1, std::memory_order_relaxed);
+        count.fetch_add(1, std::memory_order_relaxed);
+        sum_us.fetch_add(us, std::memory_order_relaxed);
+        uint64_t max = max_us.load(std::memory_order_relaxed);
+        while (us > max && !max_us.compare_exchange_weak(max, us, std::memory_order_relaxed)) {}
+    }
+
+    void reset() {
+        count = 0;
+        sum_us = 0;
+        max_us = 0;
+        for (auto& bucket : buckets) {
+            bucket = 0;
+        }
+    }
+};
+
+// Per-engine latency histograms, safe to update from the pipeline threads concurrently
+struct whisper_stats {
+    whisper_histogram stages[WHISPER_STAGE_COUNT];
+
+    void reset() {
+        for (auto& stage : stages) {
+            stage.reset();
+        }
+    }
+};
+
+// Times a stage: an ATrace section (visible in Perfetto / systrace) on Android, and a
+// histogram sample when the scope ends
+class whisper_scoped_stage {
+public:
+    whisper_scoped_stage(whisper_stats& stats, whisper_stage stage)
+            : stats(stats), stage(stage), start_us(whisper_now_us()) {
+#if defined(__ANDROID__)
+        ATrace_beginSection(whisper_stage_name(stage));
+#endif
+    }
+
+    ~whisper_scoped_stage() { end(); }
+
+    // End the stage early; returns its duration
+    int64_t end() {
+        if (!ended) {
+            ended = true;
+            elapsed_us = whisper_now_us() - start_us;
+#if defined(__ANDROID__)
+            ATrace_endSection();
+#endif
+            stats.stages[stage].record(elapsed_us);
+        }
+        return elapsed_us;
+    }
+
+    whisper_scoped_stage(const whisper_scoped_stage&) = delete;
+    whisper_scoped_stage& operator=(const whisper_scoped_stage&) = delete;
+
+private:
+    whisper_stats& stats;
+    const whisper_stage stage;
+    const int64_t start_us;
+    int64_t elapsed_us = 0;
+    bool ended = false;
+};
+
+#endif // _TRACE_H_
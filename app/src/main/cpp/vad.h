@@ -0,0 +1,78 @@
+#ifndef _VAD_H_
+#define _VAD_H_
+
+#include <algorithm>
+#include <cmath>
+#include <cstddef>
+
+#define WHISPER_VAD_FRAME_SIZE 512   // 32 ms at 16 kHz
+#define WHISPER_VAD_THRESHOLD_DB -35.0f
+#define WHISPER_VAD_LOUD_DB 10.0f    // above threshold + this, a frame is speech whatever its ZCR
+#define WHISPER_VAD_MAX_ZCR 0.35f
+#define WHISPER_VAD_PAD_FRAMES 8     // ~250 ms kept around speech
+
+// Energy / zero-crossing voice activity detection on 32 ms frames. A frame is speech when its
+// RMS level is above the threshold and it is not noise-like (hiss and hum near the threshold
+// have a high zero crossing rate); clearly loud frames are always speech.
+struct whisper_vad {
+    float threshold_db = WHISPER_VAD_THRESHOLD_DB;
+    float loud_db = WHISPER_VAD_LOUD_DB;
+    float max_zcr = WHISPER_VAD_MAX_ZCR;
+    int pad_frames = WHISPER_VAD_PAD_FRAMES;
+
+    // RMS level of a frame in dB
+    static float frame_db(const float* frame, int n) {
+        double energy = 0.0;
+        for (int i = 0; i < n; i++) {
+            energy += frame[i] * frame[i];
+        }
+        const double rms = std::sqrt(energy / (n > 0 ? n : 1));
+        return (float) (20.0 * std::log10(rms + 1e-10));
+    }
+
+    // Fraction of sign changes between consecutive samples
+    static float frame_zcr(const float* frame, int n) {
+        int crossings = 0;
+        for (int i = 1; i < n; i++) {
+            crossings += (frame[i - 1] >= 0.0f) != (frame[i] >= 0.0f);
+        }
+        return n > 1 ? (float) crossings / (n - 1) : 0.0f;
+    }
+
+    bool is_speech(const float* frame, int n) const {
+        const float db = frame_db(frame, n);
+        if (db < threshold_db) {
+            return false;
+        }
+        return db >= threshold_db + loud_db || frame_zcr(frame, n) <= max_zcr;
+    }
+
+    // Speech part of samples as [begin, end), padded by pad_frames on both sides.
+    // Returns false when there is no speech at all.
+    bool speech_range(const float* samples, size_t n_samples, size_t& begin, size_t& end) const {
+        const size_t n_frames = (n_samples + WHISPER_VAD_FRAME_SIZE - 1) / WHISPER_VAD_FRAME_SIZE;
+        size_t first = n_frames;
+        size_t last = 0;
+        for (size_t f = 0; f < n_frames; f++) {
+            const size_t offset = f * WHISPER_VAD_FRAME_SIZE;
+            const int n = (int) std::min((size_t) WHISPER_VAD_FRAME_SIZE, n_samples - offset);
+            if (is_speech(samples + offset, n)) {
+                if (first == n_frames) {
+                    first = f;
+                }
+                last = f;
+            }
+        }
+        if (first == n_frames) {
+            return false;
+        }
+
+        first = first > (size_t) pad_frames ? first - pad_frames : 0;
+        last = std::min(last + pad_frames, n_frames - 1);
+        begin = first * WHISPER_VAD_FRAME_SIZE;
+        end = std::min((last + 1) * WHISPER_VAD_FRAME_SIZE, n_samples);
+        return true;
+    }
+};
+
+#endif // _VAD_H_
@@ -1,93 +1,212 @@
-#include <iostream>
-#include <fstream>
+#ifndef _WAV_UTIL_H_
+#define _WAV_UTIL_H_
+
+#include <algorithm>
 #include <vector>
 #include <cstdint>
 #include <cstring>
+#include <fcntl.h>
+#include <sys/mman.h>
+#include <sys/stat.h>
+#include <unistd.h>
 
-#pragma pack(push, 1)  // Ensure that struct members are packed tightly
-
-// Define the WAV file header structure
-struct WAVHeader {
-    char riff_header[4];
-    uint32_t wav_size;
-    char wave_header[4];
-    char fmt_header[4];
-    uint32_t fmt_chunk_size;
-    uint16_t audio_format;
-    uint16_t num_channels;
-    uint32_t sample_rate;
-    uint32_t byte_rate;
-    uint16_t block_align;
-    uint16_t bits_per_sample;
-};
+#include "trace.h"
 
-#pragma pack(pop)  // Restore default struct packing
+#define WAVE_FORMAT_PCM 1
+#define WAVE_FORMAT_IEEE_FLOAT 3
+#define WAVE_FORMAT_EXTENSIBLE 0xFFFE
 
-std::vector<float> readWAVFile(const char* filename) {
-    // Open the WAV file for binary reading
-    std::ifstream wav_file(filename, std::ios::binary);
-    
-    if (!wav_file.is_open()) {
-        std::cerr << "Failed to open file: " << filename << std::endl;
-        return std::vector<float>();
+// Read-only view of a WAV file. The file is memory-mapped and the RIFF chunks are walked to
+// find the real `fmt ` and `data` chunks (LIST/fact/padding chunks and non-44 byte headers are
+// fine). Samples are converted to mono float on demand with read(), so memory use does not
+// depend on the length of the file.
+class WavReader {
+public:
+    WavReader() = default;
+    ~WavReader() { close(); }
+
+    WavReader(const WavReader&) = delete;
+    WavReader& operator=(const WavReader&) = delete;
+
+    bool open(const char* filename) {
+        close();
+
+        int fd = ::open(filename, O_RDONLY | O_CLOEXEC);
+        if (fd < 0) {
+            LOGE("Failed to open file: %s", filename);
+            return false;
+        }
+        struct stat st{};
+        if (fstat(fd, &st) != 0 || st.st_size < 12) {
+            LOGE("Not a valid WAV file: %s", filename);
+            ::close(fd);
+            return false;
+        }
+        mapping_size = st.st_size;
+        mapping = mmap(nullptr, mapping_size, PROT_READ, MAP_SHARED, fd, 0);
+        ::close(fd); // the mapping stays valid
+        if (mapping == MAP_FAILED) {
+            LOGE("Failed to map file: %s", filename);
+            return false;
+        }
+        // windows are read front to back
+        madvise(mapping, mapping_size, MADV_SEQUENTIAL);
+
+        if (!parse()) {
+            LOGE("Not a valid WAV file: %s", filename);
+            close();
+            return false;
+        }
+
+        LOGD("%s: %s, %u channels, %u Hz, %u bits", filename,
+             audio_format == WAVE_FORMAT_PCM ? "PCM" : "IEEE Float", num_channels, sample_rate, bits_per_sample);
+        return true;
+    }
+
+    void close() {
+        if (mapping != MAP_FAILED) {
+            munmap(mapping, mapping_size);
+        }
+        mapping = MAP_FAILED;
+        mapping_size = 0;
+        data = nullptr;
+        num_frames = 0;
     }
 
-    // Read the WAV header
-    WAVHeader wav_header;
-    wav_file.read(reinterpret_cast<char*>(&wav_header), sizeof(wav_header));
+    bool is_open() const { return data != nullptr; }
+    uint32_t get_sample_rate() const { return sample_rate; }
+    uint16_t get_num_channels() const { return num_channels; }
 
-    // Check if it's a valid WAV file
-    if (strncmp(wav_header.riff_header, "RIFF", 4) != 0 ||
-        strncmp(wav_header.wave_header, "WAVE", 4) != 0 ||
-        strncmp(wav_header.fmt_header, "fmt ", 4) != 0) {
-        std::cerr << "Not a valid WAV file: " << filename << std::endl;
-        return std::vector<float>();
+    // Number of sample frames (one sample per channel) in the data chunk
+    size_t frames() const { return num_frames; }
+
+    // Convert frames [start, start + n) to mono float into out; returns the frames read
+    size_t read(size_t start, size_t n, float* out) const {
+        if (start >= num_frames) {
+            return 0;
+        }
+        n = std::min(n, num_frames - start);
+
+        const uint8_t* src = data + start * block_align;
+        if (audio_format == WAVE_FORMAT_PCM) {
+            for (size_t i = 0; i < n; i++, src += block_align) {
+                float sum = 0.0f;
+                for (int c = 0; c < num_channels; c++) {
+                    int16_t sample;
+                    std::memcpy(&sample, src + 2 * c, sizeof(sample));
+                    sum += sample;
+                }
+                out[i] = sum / (32768.0f * num_channels);
+            }
+        } else {
+            for (size_t i = 0; i < n; i++, src += block_align) {
+                float sum = 0.0f;
+                for (int c = 0; c < num_channels; c++) {
+                    float sample;
+                    std::memcpy(&sample, src + 4 * c, sizeof(sample));
+                    sum += sample;
+                }
+                out[i] = sum / num_channels;
+            }
+        }
+        return n;
+    }
+
+private:
+    static uint32_t read_u32(const uint8_t* p) {
+        uint32_t v;
+        std::memcpy(&v, p, sizeof(v));
+        return v;
+    }
+
+    static uint16_t read_u16(const uint8_t* p) {
+        uint16_t v;
+        std::memcpy(&v, p, sizeof(v));
+        return v;
     }
 
+    bool parse() {
+        const uint8_t* base = static_cast<const uint8_t*>(mapping);
+        const uint8_t* end = base + mapping_size;
+        if (std::memcmp(base, "RIFF", 4) != 0 || std::memcmp(base + 8, "WAVE", 4) != 0) {
+            return false;
+        }
+
+        bool has_fmt = false;
+        const uint8_t* p = base + 12;
+        while (end - p >= 8) {
+            const uint8_t* body = p + 8;
+            size_t size = read_u32(p + 4);
 
-   // Determine the audio format
-    std::string audio_format_str;
-    switch (wav_header.audio_format) {
-        case 1:
-            audio_format_str = "PCM";
-            break;
-        case 3:
-            audio_format_str = "IEEE Float";
-            break;
-        // Add more cases for other audio formats as needed
-        default:
-            audio_format_str = "Unknown";
-            break;
+            if (std::memcmp(p, "fmt ", 4) == 0 && size >= 16 && end - body >= 16) {
+                audio_format = read_u16(body);
+                num_channels = read_u16(body + 2);
+                sample_rate = read_u32(body + 4);
+                block_align = read_u16(body + 12);
+                bits_per_sample = read_u16(body + 14);
+                if (audio_format == WAVE_FORMAT_EXTENSIBLE && size >= 40 && end - body >= 40) {
+                    audio_format = read_u16(body + 24); // first two bytes of the sub format GUID
+                }
+                has_fmt = true;
+            } else if (std::memcmp(p, "data", 4) == 0) {
+                // a recording that was not finalized has a 0 or too large data size
+                size_t available = end - body;
+                if (size == 0 || size > available) {
+                    size = available;
+                }
+                data = body;
+                data_size = size;
+                break;
+            }
+
+            // chunks are padded to an even size
+            size_t advance = 8 + size + (size & 1);
+            if ((size_t) (end - p) < advance) {
+                break;
+            }
+            p += advance;
+        }
+
+        if (!has_fmt || data == nullptr || num_channels == 0) {
+            return false;
+        }
+        const bool pcm16 = audio_format == WAVE_FORMAT_PCM && bits_per_sample == 16;
+        const bool float32 = audio_format == WAVE_FORMAT_IEEE_FLOAT && bits_per_sample == 32;
+        if (!pcm16 && !float32) {
+            LOGE("Unsupported WAV format %u, %u bits", audio_format, bits_per_sample);
+            return false;
+        }
+        if (block_align < num_channels * bits_per_sample / 8) {
+            return false;
+        }
+        num_frames = data_size / block_align;
+        return true;
     }
 
-    // Print information from the header
-    std::cout << "Audio Format: " << audio_format_str << std::endl;
-    std::cout << "Num Channels: " << wav_header.num_channels << std::endl;
-    std::cout << "Sample Rate: " << wav_header.sample_rate << std::endl;
-    std::cout << "Bits Per Sample: " << wav_header.bits_per_sample << std::endl;
-
-    // Calculate the number of samples
-    uint32_t num_samples = wav_header.wav_size / wav_header.block_align;
-
-	// convert pcm 16 to float
-	std::vector<float> float_samples(num_samples);
-	if (wav_header.audio_format == 1) {
-		// Read audio samples into a vector of int16_t
-		std::vector<int16_t> pcm16_samples(num_samples);
-		wav_file.read(reinterpret_cast<char*>(pcm16_samples.data()), wav_header.wav_size);
-
-		// Convert int16_t samples to float samples
-		for (uint32_t i = 0; i < num_samples; i++) {
-			float_samples[i] = static_cast<float>(pcm16_samples[i]) / static_cast<float>(INT16_MAX);
-		}
-	} else {
-		// Read audio samples into a vector of float
-		wav_file.read(reinterpret_cast<char*>(float_samples.data()), wav_header.wav_size);
-	}
-
-    // Close the file
-    wav_file.close();
-
-    // Return the float_samples vector
+    void* mapping = MAP_FAILED;
+    size_t mapping_size = 0;
+
+    const uint8_t* data = nullptr;
+    size_t data_size = 0;
+    size_t num_frames = 0;
+
+    uint16_t audio_format = 0;
+    uint16_t num_channels = 0;
+    uint32_t sample_rate = 0;
+    uint16_t block_align = 0;
+    uint16_t bits_per_sample = 0;
+};
+
+// Read a whole WAV file as mono float samples
+std::vector<float> readWAVFile(const char* filename) {
+    WavReader reader;
+    if (!reader.open(filename)) {
+        return std::vector<float>();
+    }
+
+    std::vector<float> float_samples(reader.frames());
+    reader.read(0, float_samples.size(), float_samples.data());
     return float_samples;
-}
\ No newline at end of file
+}
+
+#endif // _WAV_UTIL_H_
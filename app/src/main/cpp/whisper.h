@@ -1,6 +1,7 @@
 #ifndef _WHISPER_H_
 #define _WHISPER_H_
 
+#include <cstdint>
 #include <iostream>
 #include <fstream>
 #include <vector>
@@ -9,6 +10,21 @@
 #include <map>
 #include <string>
 #include <memory>
+#include <cstring>
+#include <algorithm>
+#include <mutex>
+#include <fcntl.h>
+#include <sys/mman.h>
+#include <sys/stat.h>
+#include <unistd.h>
+
+#if defined(__ARM_NEON) || defined(__ARM_NEON__)
+#include <arm_neon.h>
+#endif
+
+#include "rfft.h"
+#include "trace.h"
+#include "worker_pool.h"
 
 // Define constants
 #define WHISPER_SAMPLE_RATE 16000
@@ -22,15 +38,68 @@
 struct whisper_vocab;
 struct whisper_filters;
 struct whisper_mel;
-const char* whisper_token_to_str(int token);
+struct whisper_mel_scratch;
+void whisper_append_token(const whisper_vocab& vocab, int token, std::string& text);
 bool log_mel_spectrogram(const float* samples, const int n_samples, const int sample_rate,
                         const int fft_size, const int fft_step, const int n_mel,
-                        const int n_threads, const whisper_filters& filters, whisper_mel& mel);
+                        WorkerPool& pool, std::vector<whisper_mel_scratch>& scratch,
+                        const whisper_filters& filters, whisper_mel& mel);
+
+// Read-only mapping of [offset, offset + length) of a file. The pages are shared, loaded on
+// first use and can be reclaimed by the kernel instead of living in private heap memory.
+struct whisper_mapping {
+    void* mapping = MAP_FAILED;  // page aligned start of the mapping
+    size_t mapping_size = 0;
+    const char* data = nullptr;  // offset inside the mapping
+    size_t size = 0;
+
+    whisper_mapping() = default;
+    whisper_mapping(const whisper_mapping&) = delete;
+    whisper_mapping& operator=(const whisper_mapping&) = delete;
+
+    ~whisper_mapping() {
+        if (mapping != MAP_FAILED) {
+            munmap(mapping, mapping_size);
+        }
+    }
+
+    // The descriptor is not kept and can be closed once this returns
+    bool map(int fd, long offset, long length) {
+        // mmap offsets must be page aligned, assets inside the APK usually are not
+        const long page_size = sysconf(_SC_PAGESIZE);
+        const long aligned_offset = offset - (offset % page_size);
+        const size_t delta = offset - aligned_offset;
+
+        mapping_size = delta + length;
+        mapping = mmap(nullptr, mapping_size, PROT_READ, MAP_SHARED, fd, aligned_offset);
+        if (mapping == MAP_FAILED) {
+            return false;
+        }
+        data = static_cast<const char*>(mapping) + delta;
+        size = length;
+        return true;
+    }
+
+    // Map a whole file
+    bool map(const char* path) {
+        int fd = open(path, O_RDONLY | O_CLOEXEC);
+        if (fd < 0) {
+            return false;
+        }
+        struct stat st{};
+        bool mapped = fstat(fd, &st) == 0 && st.st_size > 0 && map(fd, 0, st.st_size);
+        close(fd); // the mapping stays valid
+        return mapped;
+    }
+};
 
 // whisper_vocab structure
 struct whisper_vocab {
 
-    std::map<int, std::string> id_to_token;
+    // (int32 length, bytes) entries of the vocab file, read in place from the mapped asset
+    const char* entries = nullptr;
+    size_t entries_size = 0;
+    int n_vocab = 0;
 
     int n_vocab_additional = 51864; 
 
@@ -44,45 +113,153 @@ struct whisper_vocab {
     static const int token_translwordate = 50358;
     static const int token_transcribe = 50359;
 
-    // Reset the whisper_vocab structure
-    void reset() {
-        id_to_token.clear();
-        n_vocab_additional = 51864;
-        token_eot = 50256;
-        token_sot = 50257;
-        token_prev = 50360;
-        token_solm = 50361;
-        token_not = 50362;
-        token_beg = 50363;
+    whisper_vocab() = default;
+    whisper_vocab(const whisper_vocab&) = delete;
+    whisper_vocab& operator=(const whisper_vocab&) = delete;
+
+    // Token bytes in one contiguous blob: token i is bytes()[offsets()[i], offsets()[i + 1]).
+    // Tokens are byte-level BPE pieces, so a piece may hold part of a UTF-8 sequence.
+    // The blob is built on first use, loading a model only records where the entries are.
+    const std::vector<char>& bytes() const {
+        std::call_once(indexed, [this] { build_index(); });
+        return flat_bytes;
+    }
+
+    const std::vector<uint32_t>& offsets() const {
+        std::call_once(indexed, [this] { build_index(); });
+        return flat_offsets;
     }
+
+    int size() const { return (int) offsets().size() - 1; }
+
+private:
+    void add_token(const char* data, size_t len) const {
+        flat_bytes.insert(flat_bytes.end(), data, data + len);
+        flat_offsets.push_back(flat_bytes.size());
+    }
+
+    void build_index() const {
+        flat_bytes.reserve(entries_size);
+        flat_offsets.reserve(n_vocab_additional + 1);
+
+        const char* p = entries;
+        const char* end = entries + entries_size;
+        for (int i = 0; i < n_vocab; i++) {
+            int len = 0;
+            if (end - p >= (long) sizeof(len)) {
+                std::memcpy(&len, p, sizeof(len));
+                p += sizeof(len);
+            }
+            if (len < 0 || len > end - p) {
+                LOGE("Truncated vocab at token %d", i);
+                len = 0;
+                p = end;
+            }
+            add_token(p, len);
+            p += len;
+        }
+
+        // add additional vocab ids
+        for (int i = n_vocab; i < n_vocab_additional; i++) {
+            std::string word;
+            if (i > token_beg) {
+                word = "[_TT_" + std::to_string(i - token_beg) + "]";
+            } else if (i == token_eot) {
+                word = "[_EOT_]";
+            } else if (i == token_sot) {
+                word = "[_SOT_]";
+            } else if (i == token_prev) {
+                word = "[_PREV_]";
+            } else if (i == token_not) {
+                word = "[_NOT_]";
+            } else if (i == token_beg) {
+                word = "[_BEG_]";
+            } else {
+                word = "[_extra_token_" + std::to_string(i) + "]";
+            }
+            add_token(word.data(), word.size());
+        }
+        LOGD("Indexed %d tokens", (int) flat_offsets.size() - 1);
+    }
+
+    mutable std::once_flag indexed;
+    mutable std::vector<char> flat_bytes;
+    mutable std::vector<uint32_t> flat_offsets{0};
 };
 
-// Global whisper_vocab instance
-whisper_vocab g_vocab;
+// Model flatbuffer, immutable once built and shared by every engine loading the same file
+struct whisper_model {
+    whisper_mapping file;
+    std::unique_ptr<tflite::FlatBufferModel> model;
+    uint64_t identity = 0; // hash of the file size, head and tail; keys the transcript cache
+
+    // XNNPACK weights packed by the first engine and looked up by the delegates of the others.
+    // The cache is filled and finalized under delegate_mutex; it lives as long as the model,
+    // so an engine reloading the same model while another one holds it does not repack.
+    mutable std::mutex delegate_mutex;
+    mutable TfLiteXNNPackDelegateWeightsCache* weights_cache = nullptr;
+    mutable bool weights_cache_finalized = false;
+
+    ~whisper_model() {
+        if (weights_cache != nullptr) {
+            TfLiteXNNPackDelegateWeightsCacheDelete(weights_cache);
+        }
+        model.reset(); // the flatbuffer points into the mapping
+    }
+};
 
-// whisper_tflite structure
+// whisper_tflite structure, one interpreter per engine
 struct whisper_tflite {
-    char* buffer = nullptr;
-    long size = 0;
-    std::unique_ptr<tflite::FlatBufferModel> model;
+    std::shared_ptr<const whisper_model> model;
     tflite::ops::builtin::BuiltinOpResolver resolver;
+    // declared before the interpreter, which must be destroyed first
+    std::unique_ptr<TfLiteDelegate, void (*)(TfLiteDelegate*)> delegate{nullptr, TfLiteXNNPackDelegateDelete};
     std::unique_ptr<tflite::Interpreter> interpreter;
-    float* input;
+    float* input = nullptr;
 
     bool is_whisper_tflite_initialized = false;
 };
 
-whisper_tflite g_whisper_tflite;
-
 // whisper_filters structure
 struct whisper_filters {
     int n_mel;
     int n_fft;
 
-    std::vector<float> data;
-};
+    // Dense n_mel x n_fft matrix, read in place from the mapped asset
+    const float* data = nullptr;
+
+    // Sparse form of data: filter j covers bins [start[j], start[j] + length[j])
+    // with its weights at weights[offset[j]]
+    std::vector<int> start;
+    std::vector<int> length;
+    std::vector<int> offset;
+    std::vector<float> weights;
+
+    // Convert the dense n_mel x n_fft matrix into the sparse form
+    void build_sparse() {
+        start.assign(n_mel, 0);
+        length.assign(n_mel, 0);
+        offset.assign(n_mel, 0);
+        weights.clear();
+
+        for (int j = 0; j < n_mel; j++) {
+            const float* row = data + j * n_fft;
+            int first = 0;
+            int last = n_fft - 1;
+            while (first < n_fft && row[first] == 0.0f) {
+                first++;
+            }
+            while (last >= first && row[last] == 0.0f) {
+                last--;
+            }
 
-whisper_filters filters;
+            start[j] = first < n_fft ? first : 0;
+            length[j] = last - first + 1 > 0 ? last - first + 1 : 0;
+            offset[j] = weights.size();
+            weights.insert(weights.end(), row + start[j], row + start[j] + length[j]);
+        }
+    }
+};
 
 // whisper_mel structure
 struct whisper_mel {
@@ -92,7 +269,20 @@ struct whisper_mel {
     std::vector<float> data;
 };
 
-whisper_mel mel;
+// Vocab and mel filters, immutable once loaded and shared by every engine. Both point into
+// the mapped filters_vocab file, which lives as long as they do.
+struct whisper_assets {
+    whisper_mapping file;
+    whisper_vocab vocab;
+    whisper_filters filters;
+};
+
+// Per-worker FFT buffers, owned by the engine and reused across chunks
+struct whisper_mel_scratch {
+    std::vector<float> fft_in;
+    std::vector<float> fft_out;
+    std::vector<float> fft_work;
+};
 
 // Print a vector of float values
 void print(const std::vector<float>& a) {
@@ -102,181 +292,338 @@ void print(const std::vector<float>& a) {
         std::cout << a.at(i) << ' ';
 }
 
-// Convert a token to a string
-const char* whisper_token_to_str(int token) {
-    return g_vocab.id_to_token.at(token).c_str();
+// Append the bytes of a token to text
+void whisper_append_token(const whisper_vocab& vocab, int token, std::string& text) {
+    const std::vector<uint32_t>& offsets = vocab.offsets();
+    if (token >= 0 && token < (int) offsets.size() - 1) {
+        text.append(vocab.bytes().data() + offsets[token], offsets[token + 1] - offsets[token]);
+    }
 }
 
-// Naive Discrete Fourier Transform
-void dft(const std::vector<float>& in, std::vector<float>& out) {
-    int N = in.size();
-    out.resize(N * 2);
-
-    for (int k = 0; k < N; k++) {
-        float re = 0;
-        float im = 0;
-
-        for (int n = 0; n < N; n++) {
-            float angle = 2 * M_PI * k * n / N;
-            re += in[n] * cos(angle);
-            im -= in[n] * sin(angle);
+// Overlapping chunks: the tail of the previous chunk's tokens and the head of the next chunk's
+// are aligned on their longest common run, and the tokens of next up to where previous ends are
+// duplicates. Only the tokens the shared audio can hold are searched: overlap_fraction (shared
+// samples over chunk samples) of next, with some slack, at the end of previous and the start of
+// next, so a phrase repeated elsewhere in the two chunks is never taken for the seam. Returns how
+// many leading tokens of next to drop, at most that many, 0 when no run of at least
+// WHISPER_OVERLAP_MIN_TOKENS matches (the seam is kept as is rather than guessed).
+#define WHISPER_OVERLAP_SEARCH_TOKENS 48
+#define WHISPER_OVERLAP_MIN_TOKENS 2
+#define WHISPER_OVERLAP_SLACK_TOKENS 4
+
+inline size_t whisper_overlap_tokens(const int* previous, size_t n_previous, const int* next, size_t n_next,
+                                     float overlap_fraction) {
+    // speech is not spread evenly, allow half as many tokens again as the fraction gives
+    const size_t limit = std::min((size_t) WHISPER_OVERLAP_SEARCH_TOKENS,
+                                  (size_t) std::ceil(std::max(overlap_fraction, 0.0f) * n_next * 1.5f) +
+                                  WHISPER_OVERLAP_SLACK_TOKENS);
+    const size_t n_tail = std::min(n_previous, limit);
+    const size_t n_head = std::min(n_next, limit);
+    const int* tail = previous + n_previous - n_tail;
+
+    // run[i][j]: length of the common run ending at tail[i - 1] and next[j - 1]
+    std::vector<uint16_t> run((n_tail + 1) * (n_head + 1), 0);
+    size_t best = 0, best_tail_end = 0, best_next_end = 0;
+    for (size_t i = 1; i <= n_tail; i++) {
+        for (size_t j = 1; j <= n_head; j++) {
+            if (tail[i - 1] != next[j - 1]) {
+                continue;
+            }
+            const size_t len = run[(i - 1) * (n_head + 1) + j - 1] + 1;
+            run[i * (n_head + 1) + j] = (uint16_t) len;
+            // on a tie the run latest in previous wins, it is closest to the seam
+            if (len > best || (len == best && i > best_tail_end)) {
+                best = len;
+                best_tail_end = i;
+                best_next_end = j;
+            }
         }
+    }
+    if (best < WHISPER_OVERLAP_MIN_TOKENS) {
+        return 0;
+    }
+
+    // tokens of previous after the run are the ones of next after it as well
+    return std::min(n_head, best_next_end + (n_tail - best_tail_end));
+}
 
-        out[k * 2 + 0] = re;
-        out[k * 2 + 1] = im;
+// Dot product of a mel filter with the power spectrum, vectorized where available
+static inline float whisper_dot(const float* a, const float* b, int n) {
+    int i = 0;
+#if defined(__ARM_NEON) || defined(__ARM_NEON__)
+    float32x4_t acc0 = vdupq_n_f32(0.0f);
+    float32x4_t acc1 = vdupq_n_f32(0.0f);
+    for (; i + 8 <= n; i += 8) {
+        acc0 = vmlaq_f32(acc0, vld1q_f32(a + i), vld1q_f32(b + i));
+        acc1 = vmlaq_f32(acc1, vld1q_f32(a + i + 4), vld1q_f32(b + i + 4));
     }
+    acc0 = vaddq_f32(acc0, acc1);
+    float32x2_t acc2 = vadd_f32(vget_low_f32(acc0), vget_high_f32(acc0));
+    float sum = vget_lane_f32(vpadd_f32(acc2, acc2), 0);
+#else
+    // independent accumulators let the compiler keep the loop in SIMD registers
+    float s0 = 0.0f, s1 = 0.0f, s2 = 0.0f, s3 = 0.0f;
+    for (; i + 4 <= n; i += 4) {
+        s0 += a[i + 0] * b[i + 0];
+        s1 += a[i + 1] * b[i + 1];
+        s2 += a[i + 2] * b[i + 2];
+        s3 += a[i + 3] * b[i + 3];
+    }
+    float sum = (s0 + s1) + (s2 + s3);
+#endif
+    for (; i < n; i++) {
+        sum += a[i] * b[i];
+    }
+    return sum;
 }
 
-// Cooley-Tukey FFT
-void fft(const std::vector<float>& in, std::vector<float>& out) {
-    out.resize(in.size() * 2);
+// Log10 mel value of a frame with no signal (power clamped to 1e-10)
+#define WHISPER_MEL_SILENCE -10.0f
 
-    int N = in.size();
+// Periodic Hann window of the STFT, computed once per process
+static const std::vector<float>& whisper_hann() {
+    static const std::vector<float> hann = [] {
+        std::vector<float> w(WHISPER_N_FFT);
+        for (int i = 0; i < WHISPER_N_FFT; i++) {
+            w[i] = 0.5 * (1.0 - cos((2.0 * M_PI * i) / WHISPER_N_FFT));
+        }
+        return w;
+    }();
+    return hann;
+}
 
-    if (N == 1) {
-        out[0] = in[0];
-        out[1] = 0;
-        return;
-    }
+// Twiddles are computed once per process; the plan is read-only and shared by all workers
+static const rfft_plan& whisper_fft_plan() {
+    static const rfft_plan plan(WHISPER_N_FFT);
+    return plan;
+}
 
-    if (N % 2 == 1) {
-        dft(in, out);
-        return;
+// Raw (un-normalized) log mel values of one STFT frame. samples holds n_avail samples of the
+// frame (zero padded up to WHISPER_N_FFT); value j is written to out[j * out_stride].
+static void whisper_mel_frame(const float* samples, int n_avail, whisper_mel_scratch& scratch,
+                              const whisper_filters& filters, float* out, int out_stride) {
+    const int fft_size = WHISPER_N_FFT;
+    const int n_fft = 1 + fft_size / 2;
+    const std::vector<float>& hann = whisper_hann();
+    const rfft_plan& plan = whisper_fft_plan();
+
+    std::vector<float>& fft_in = scratch.fft_in;
+    std::vector<float>& fft_out = scratch.fft_out;
+    std::vector<float>& fft_work = scratch.fft_work;
+    fft_in.resize(fft_size);
+    fft_out.resize(2 * n_fft);
+    fft_work.resize(plan.work_size());
+
+    // apply Hanning window
+    for (int j = 0; j < fft_size; j++) {
+        if (j < n_avail) {
+            fft_in[j] = hann[j] * samples[j];
+        } else {
+            fft_in[j] = 0.0;
+        }
     }
 
-    std::vector<float> even;
-    std::vector<float> odd;
+    // FFT -> mag^2
+    plan.execute(fft_in.data(), fft_out.data(), fft_work.data());
 
-    for (int i = 0; i < N; i++) {
-        if (i % 2 == 0) {
-            even.push_back(in[i]);
-        } else {
-            odd.push_back(in[i]);
-        }
+    for (int j = 0; j < n_fft; j++) {
+        fft_out[j] = (fft_out[2 * j + 0] * fft_out[2 * j + 0] + fft_out[2 * j + 1] * fft_out[2 * j + 1]);
     }
 
-    std::vector<float> even_fft;
-    std::vector<float> odd_fft;
+    // fold the mirrored half of the spectrum (equal to the first half for real input)
+    for (int j = 1; j < fft_size / 2; j++) {
+        fft_out[j] *= 2.0f;
+    }
 
-    fft(even, even_fft);
-    fft(odd, odd_fft);
+    // mel spectrogram, only over the non-zero bins of each filter
+    for (int j = 0; j < filters.n_mel; j++) {
+        double sum = whisper_dot(fft_out.data() + filters.start[j],
+                                 filters.weights.data() + filters.offset[j], filters.length[j]);
 
-    for (int k = 0; k < N / 2; k++) {
-        float theta = 2 * M_PI * k / N;
+        if (sum < 1e-10) {
+            sum = 1e-10;
+        }
 
-        float re = cos(theta);
-        float im = -sin(theta);
+        out[j * out_stride] = log10(sum);
+    }
+}
+
+// Clamp to (max - 8) and scale, writing the encoder input layout n_mel x n_len
+static void whisper_mel_normalize(const float* raw, int n_mel, int n_len, float* out) {
+    double mmax = -1e20;
+    for (int i = 0; i < n_mel * n_len; i++) {
+        if (raw[i] > mmax) {
+            mmax = raw[i];
+        }
+    }
 
-        float re_odd = odd_fft[2 * k + 0];
-        float im_odd = odd_fft[2 * k + 1];
+    mmax -= 8.0;
 
-        out[2 * k + 0] = even_fft[2 * k + 0] + re * re_odd - im * im_odd;
-        out[2 * k + 1] = even_fft[2 * k + 1] + re * im_odd + im * re_odd;
+    for (int i = 0; i < n_mel * n_len; i++) {
+        double v = raw[i];
+        if (v < mmax) {
+            v = mmax;
+        }
 
-        out[2 * (k + N / 2) + 0] = even_fft[2 * k + 0] - re * re_odd + im * im_odd;
-        out[2 * (k + N / 2) + 1] = even_fft[2 * k + 1] - re * im_odd - im * re_odd;
+        out[i] = (v + 4.0) / 4.0;
     }
 }
 
 // Log mel spectrogram computation
 bool log_mel_spectrogram(const float* samples, const int n_samples, const int sample_rate,
                         const int fft_size, const int fft_step, const int n_mel,
-                        const int n_threads, const whisper_filters& filters, whisper_mel& mel) {
-    std::vector<float> hann;
-    hann.resize(fft_size);
-
-    for (int i = 0; i < fft_size; i++) {
-        hann[i] = 0.5 * (1.0 - cos((2.0 * M_PI * i) / fft_size));
+                        WorkerPool& pool, std::vector<whisper_mel_scratch>& scratch,
+                        const whisper_filters& filters, whisper_mel& mel) {
+    if (fft_size != WHISPER_N_FFT) {
+        LOGE("Unsupported FFT size: %d", fft_size);
+        return false;
     }
 
     mel.n_mel = n_mel;
     mel.n_len = (n_samples) / fft_step;
     mel.data.resize(mel.n_mel * mel.n_len);
 
-    // std::cout << "n_mel: " << mel.n_mel << std::endl;
-    // std::cout << "n_len: " << mel.n_len << std::endl;
-
-    const int n_fft = 1 + fft_size / 2;
-
-    std::vector<std::thread> workers(n_threads);
-    for (int iw = 0; iw < n_threads; ++iw) {
-        workers[iw] = std::thread([&](int ith) {
-            std::vector<float> fft_in;
-            fft_in.resize(fft_size);
-            for (int i = 0; i < fft_size; i++) {
-                fft_in[i] = 0.0;
-            }
+    scratch.resize(pool.size());
+    pool.run([&](int ith, int n_threads) {
+        for (int i = ith; i < mel.n_len; i += n_threads) {
+            const int offset = i * fft_step;
+            whisper_mel_frame(samples + offset, n_samples - offset, scratch[ith], filters,
+                              mel.data.data() + i, mel.n_len);
+        }
+    });
 
-            std::vector<float> fft_out;
-            fft_out.resize(2 * fft_size);
+    // clamping and normalization
+    whisper_mel_normalize(mel.data.data(), mel.n_mel, mel.n_len, mel.data.data());
 
-            for (int i = ith; i < mel.n_len; i += n_threads) {
-                const int offset = i * fft_step;
+    return true;
+}
 
-                // apply Hanning window
-                for (int j = 0; j < fft_size; j++) {
-                    if (offset + j < n_samples) {
-                        fft_in[j] = hann[j] * samples[offset + j];
-                    } else {
-                        fft_in[j] = 0.0;
-                    }
-                }
+// Stateful mel spectrogram for audio that arrives in pieces. Frames are computed as soon as
+// their 400-sample window is complete and kept (un-normalized) in a rolling
+// WHISPER_N_MEL x WHISPER_MEL_LEN window; only the last WHISPER_N_FFT - WHISPER_HOP_LENGTH
+// samples (plus any partial hop) are retained between pushes. materialize() writes the encoder
+// input for the current window; frames past the end of the audio are the constant silence
+// value and cost nothing.
+class whisper_mel_stream {
+public:
+    whisper_mel_stream() : raw(WHISPER_N_MEL * WHISPER_MEL_LEN) {}
 
-                // FFT -> mag^2
-                fft(fft_in, fft_out);
+    void reset() {
+        pending.clear();
+        n_frames = 0;
+        first_frame = 0;
+        next_frame = 0;
+        total_samples = 0;
+    }
 
-                for (int j = 0; j < fft_size; j++) {
-                    fft_out[j] = (fft_out[2 * j + 0] * fft_out[2 * j + 0] + fft_out[2 * j + 1] * fft_out[2 * j + 1]);
-                }
+    // Complete frames currently in the window
+    int frames() const { return n_frames; }
 
-                for (int j = 1; j < fft_size / 2; j++) {
-                    fft_out[j] += fft_out[fft_size - j];
-                }
+    // Absolute index of the first frame of the window
+    long window_start_frame() const { return first_frame; }
 
-                // mel spectrogram
-                for (int j = 0; j < mel.n_mel; j++) {
-                    double sum = 0.0;
+    // Samples of audio from the start of the window to the end of the pushed audio
+    long window_samples() const { return total_samples - first_frame * WHISPER_HOP_LENGTH; }
 
-                    for (int k = 0; k < n_fft; k++) {
-                        sum += fft_out[k] * filters.data[j * n_fft + k];
-                    }
+    // Append audio and compute every frame that became complete. Frames that lie entirely in
+    // samples are read in place; only the incomplete tail (< WHISPER_N_FFT samples) is copied.
+    void push(const float* samples, int n_samples, WorkerPool& pool,
+              std::vector<whisper_mel_scratch>& scratch, const whisper_filters& filters) {
+        // frames starting in pending may reach WHISPER_N_FFT samples into the new audio
+        const long n_old = pending.size();
+        if (n_old > 0) {
+            pending.insert(pending.end(), samples, samples + std::min(n_samples, WHISPER_N_FFT));
+        }
+        const long n_total = n_old + n_samples;
+        total_samples += n_samples;
 
-                    if (sum < 1e-10) {
-                        sum = 1e-10;
-                    }
+        int n_new = 0;
+        if (n_total >= WHISPER_N_FFT) {
+            n_new = 1 + (int) ((n_total - WHISPER_N_FFT) / WHISPER_HOP_LENGTH);
+        }
 
-                    sum = log10(sum);
+        // more than a window of new frames: only the newest WHISPER_MEL_LEN matter
+        int skip = n_new > WHISPER_MEL_LEN ? n_new - WHISPER_MEL_LEN : 0;
+        if (skip > 0) {
+            advance(n_frames);
+            first_frame += skip;
+            next_frame += skip;
+            n_new -= skip;
+        }
+        if (n_frames + n_new > WHISPER_MEL_LEN) {
+            advance(n_frames + n_new - WHISPER_MEL_LEN);
+        }
 
-                    mel.data[j * mel.n_len + i] = sum;
-                }
+        // start of a frame: the retained samples followed by the new ones
+        auto frame_at = [&](long start) -> const float* {
+            return start < n_old ? pending.data() + start : samples + (start - n_old);
+        };
+
+        const int column = n_frames;
+        scratch.resize(pool.size());
+        pool.run([&](int ith, int n_threads) {
+            for (int i = ith; i < n_new; i += n_threads) {
+                whisper_mel_frame(frame_at((long) (skip + i) * WHISPER_HOP_LENGTH), WHISPER_N_FFT, scratch[ith],
+                                  filters, raw.data() + column + i, WHISPER_MEL_LEN);
             }
-        }, iw);
-    }
-
-    // Wait for all threads to finish
-    for (int iw = 0; iw < n_threads; ++iw) {
-        workers[iw].join();
+        });
+        n_frames += n_new;
+        next_frame += n_new;
+
+        // keep the samples of the first frame not computed yet
+        const long consumed = (long) (skip + n_new) * WHISPER_HOP_LENGTH;
+        if (consumed >= n_old) {
+            pending.assign(samples + (consumed - n_old), samples + n_samples);
+        } else {
+            // the next frame is incomplete, so pending already holds all of the new samples
+            pending.erase(pending.begin(), pending.begin() + consumed);
+        }
     }
 
-    // clamping and normalization
-    double mmax = -1e20;
-    for (int i = 0; i < mel.n_mel * mel.n_len; i++) {
-        if (mel.data[i] > mmax) {
-            mmax = mel.data[i];
+    // Drop the oldest frames of the window (slide it forward)
+    void advance(int n) {
+        if (n <= 0) {
+            return;
+        }
+        if (n > n_frames) {
+            n = n_frames;
         }
+        for (int j = 0; j < WHISPER_N_MEL; j++) {
+            float* row = raw.data() + j * WHISPER_MEL_LEN;
+            std::memmove(row, row + n, (n_frames - n) * sizeof(float));
+        }
+        n_frames -= n;
+        first_frame += n;
     }
 
-    mmax -= 8.0;
+    // Normalized WHISPER_N_MEL x WHISPER_MEL_LEN encoder input for the current window
+    void materialize(float* out, whisper_mel_scratch& scratch, const whisper_filters& filters) {
+        // frames that start inside the pushed audio but run past its end are zero padded
+        int column = n_frames;
+        long offset = 0;
+        while (column < WHISPER_MEL_LEN && offset < (long) pending.size()) {
+            whisper_mel_frame(pending.data() + offset, pending.size() - offset, scratch, filters,
+                              raw.data() + column, WHISPER_MEL_LEN);
+            column++;
+            offset += WHISPER_HOP_LENGTH;
+        }
 
-    for (int i = 0; i < mel.n_mel * mel.n_len; i++) {
-        if (mel.data[i] < mmax) {
-            mel.data[i] = mmax;
+        // the remaining frames only see padding
+        for (int j = 0; j < WHISPER_N_MEL; j++) {
+            float* row = raw.data() + j * WHISPER_MEL_LEN;
+            std::fill(row + column, row + WHISPER_MEL_LEN, WHISPER_MEL_SILENCE);
         }
 
-        mel.data[i] = (mel.data[i] + 4.0) / 4.0;
+        whisper_mel_normalize(raw.data(), WHISPER_N_MEL, WHISPER_MEL_LEN, out);
     }
 
-    return true;
-}
+private:
+    std::vector<float> raw;      // n_mel x WHISPER_MEL_LEN, columns [0, n_frames) are complete
+    std::vector<float> pending;  // samples from the start of frame next_frame onwards
+    int n_frames = 0;
+    long first_frame = 0;        // absolute index of column 0
+    long next_frame = 0;         // absolute index of the first frame not computed yet
+    long total_samples = 0;
+};
 
 #endif // _WHISPER_H_
@@ -0,0 +1,94 @@
+#ifndef _WORKER_POOL_H_
+#define _WORKER_POOL_H_
+
+#include <condition_variable>
+#include <cstdint>
+#include <functional>
+#include <mutex>
+#include <thread>
+#include <vector>
+
+// Fixed set of worker threads that live as long as the owning engine.
+// run() hands the same task to every worker (the calling thread acts as worker 0)
+// and returns once all of them have finished, replacing per-call thread create/join.
+class WorkerPool {
+public:
+    explicit WorkerPool(int n_threads) : n_threads(n_threads < 1 ? 1 : n_threads) {
+        for (int ith = 1; ith < this->n_threads; ith++) {
+            threads.emplace_back(&WorkerPool::workerLoop, this, ith);
+        }
+    }
+
+    ~WorkerPool() {
+        {
+            std::lock_guard<std::mutex> lock(mutex);
+            stopping = true;
+        }
+        cv_start.notify_all();
+        for (auto& thread : threads) {
+            thread.join();
+        }
+    }
+
+    WorkerPool(const WorkerPool&) = delete;
+    WorkerPool& operator=(const WorkerPool&) = delete;
+
+    int size() const { return n_threads; }
+
+    // Run task(ith, nth) on all workers and wait for completion
+    void run(const std::function<void(int, int)>& fn) {
+        std::lock_guard<std::mutex> run_lock(run_mutex);
+
+        {
+            std::lock_guard<std::mutex> lock(mutex);
+            task = &fn;
+            pending = n_threads - 1;
+            generation++;
+        }
+        cv_start.notify_all();
+
+        fn(0, n_threads);
+
+        std::unique_lock<std::mutex> lock(mutex);
+        cv_done.wait(lock, [this] { return pending == 0; });
+        task = nullptr;
+    }
+
+private:
+    void workerLoop(int ith) {
+        uint64_t seen = 0;
+        while (true) {
+            const std::function<void(int, int)>* fn;
+            {
+                std::unique_lock<std::mutex> lock(mutex);
+                cv_start.wait(lock, [&] { return stopping || generation != seen; });
+                if (stopping) {
+                    return;
+                }
+                seen = generation;
+                fn = task;
+            }
+
+            (*fn)(ith, n_threads);
+
+            std::lock_guard<std::mutex> lock(mutex);
+            if (--pending == 0) {
+                cv_done.notify_one();
+            }
+        }
+    }
+
+    const int n_threads;
+    std::vector<std::thread> threads;
+
+    std::mutex run_mutex;
+    std::mutex mutex;
+    std::condition_variable cv_start;
+    std::condition_variable cv_done;
+    const std::function<void(int, int)>* task = nullptr;
+    uint64_t generation = 0;
+    int pending = 0;
+    bool stopping = false;
+};
+
+#endif // _WORKER_POOL_H_
@@ -1,9 +1,25 @@
 package com.example.voicecatch_ver2
 
 import android.app.Application
+import com.example.voicecatch_ver2.asr.WhisperLoader
 
 class SpamApplication : Application() {
     val textClassifier by lazy {
         TextClassifier(applicationContext)
     }
-}
\ No newline at end of file
+
+    // Whisper 모델은 앱 시작 시 백그라운드에서 로드 및 워밍업 (getReady()로 완료 대기)
+    val whisperLoader by lazy {
+        WhisperLoader(applicationContext, WHISPER_MODEL, WHISPER_VOCAB, true)
+    }
+
+    override fun onCreate() {
+        super.onCreate()
+        whisperLoader.start()
+    }
+
+    companion object {
+        const val WHISPER_MODEL = "fast-whisper-base-ko.tflite"
+        const val WHISPER_VOCAB = "filters_vocab_multilingual.bin"
+    }
+}
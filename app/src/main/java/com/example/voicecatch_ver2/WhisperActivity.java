@@ -6,7 +6,6 @@ import android.content.ClipboardManager;
 import android.content.Context;
 import android.content.Intent;
 import android.content.pm.PackageManager;
-import android.content.res.AssetManager;
 import android.database.Cursor;
 import android.net.Uri;
 import android.os.Bundle;
@@ -25,9 +24,13 @@ import androidx.appcompat.app.AppCompatActivity;
 import androidx.core.content.ContextCompat;
 
 import com.google.android.material.floatingactionbutton.FloatingActionButton;
+import com.example.voicecatch_ver2.asr.LiveSession;
+import com.example.voicecatch_ver2.asr.PartialTranscript;
 import com.example.voicecatch_ver2.asr.Player;
 import com.example.voicecatch_ver2.asr.Recorder;
+import com.example.voicecatch_ver2.asr.TranscriptionResult;
 import com.example.voicecatch_ver2.asr.Whisper;
+import com.example.voicecatch_ver2.asr.WhisperLoader;
 import com.example.voicecatch_ver2.utils.WaveUtil;
 
 import java.io.File;
@@ -35,13 +38,12 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.util.Locale;
+import java.util.concurrent.CompletableFuture;
 
 public class WhisperActivity extends AppCompatActivity {
 
     private static final String TAG = "MainActivity";
-    private static final String DEFAULT_MODEL_TO_USE = "fast-whisper-base-ko.tflite";
-    private static final String MULTILINGUAL_VOCAB_FILE = "filters_vocab_multilingual.bin";
-    private static final String[] EXTENSIONS_TO_COPY = {"tflite", "bin", "wav"};
     private static final int FILE_SELECT_CODE = 1;
 
     // Whisper UI 및 로직 변수들
@@ -58,11 +60,14 @@ public class WhisperActivity extends AppCompatActivity {
     private Player mPlayer = null;
     private Recorder mRecorder = null;
     private Whisper mWhisper = null;
+    // 이 화면에서 시작한 파일 변환 (다른 화면의 작업이나 BACKLOG는 건드리지 않음)
+    private CompletableFuture<TranscriptionResult> mTranscription = null;
+    // 녹음 중 실시간 변환 (녹음 스레드에서 write 하므로 volatile)
+    private volatile LiveSession mLiveSession = null;
+    private final StringBuilder mLiveText = new StringBuilder();
 
     private File sdcardDataFolder = null;
     private File selectedWaveFile = null;
-    private File selectedTfliteFile = null;
-    private long startTime = 0;
     private final Handler handler = new Handler(Looper.getMainLooper());
 
     // Bert UI 및 로직 변수들 (통합)
@@ -78,13 +83,11 @@ public class WhisperActivity extends AppCompatActivity {
         // 1. 모든 UI 요소 초기화 (가장 먼저 수행)
         initializeUI();
 
-        // 2. 파일 및 모델 경로 설정
+        // 2. 파일 경로 설정 (에셋 복사와 모델 로드는 SpamApplication에서 백그라운드로 진행)
         sdcardDataFolder = this.getExternalFilesDir(null);
-        copyAssetsToSdcard(this, sdcardDataFolder, EXTENSIONS_TO_COPY);
-        selectedTfliteFile = new File(sdcardDataFolder, DEFAULT_MODEL_TO_USE);
 
         if (spnrTfliteFiles != null) {
-            spnrTfliteFiles.setText(DEFAULT_MODEL_TO_USE);
+            spnrTfliteFiles.setText(SpamApplication.WHISPER_MODEL);
         }
 
         // 3. 기본 오디오 파일 설정
@@ -100,6 +103,20 @@ public class WhisperActivity extends AppCompatActivity {
         checkRecordPermission();
     }
 
+    @Override
+    protected void onDestroy() {
+        LiveSession session = mLiveSession;
+        mLiveSession = null;
+        if (session != null) session.cancel();
+        // Whisper는 앱 전체에서 공유: 이 화면에서 시작한 변환만 취소하고 리스너 해제
+        stopTranscription();
+        if (mWhisper != null) {
+            mWhisper.setListener(null);
+            mWhisper = null;
+        }
+        super.onDestroy();
+    }
+
     private void initializeUI() {
         // Whisper UI
         tvStatus = findViewById(R.id.tvStatus);
@@ -120,6 +137,8 @@ public class WhisperActivity extends AppCompatActivity {
     private void setupDefaultAudioFile() {
         selectedWaveFile = new File(sdcardDataFolder, WaveUtil.RECORDING_FILE);
         if (selectedWaveFile.exists()) {
+            // 녹음 중 비정상 종료된 경우 헤더 크기 복구
+            WaveUtil.repairWaveFile(selectedWaveFile.getAbsolutePath());
             tvSelectedFileName.setText(WaveUtil.RECORDING_FILE);
             btnPlay.setEnabled(true);
             btnTranscribe.setEnabled(true);
@@ -197,7 +216,7 @@ public class WhisperActivity extends AppCompatActivity {
         // Whisper 모듈 초기화
         mPlayer = new Player(this);
         mRecorder = new Recorder(this);
-        initWhisperModel(selectedTfliteFile);
+        waitForWhisper();
         setupRecorderListener();
         setupPlayerListener();
 
@@ -237,11 +256,31 @@ public class WhisperActivity extends AppCompatActivity {
     }
 
 
-    // Whisper 모델 초기화
-    private void initWhisperModel(File modelFile) {
-        File vocabFile = new File(sdcardDataFolder, MULTILINGUAL_VOCAB_FILE);
-        mWhisper = new Whisper(this);
-        mWhisper.loadModel(modelFile, vocabFile, true);
+    // 백그라운드 모델 로드 및 워밍업이 끝나면 Whisper 연결
+    private void waitForWhisper() {
+        WhisperLoader loader = ((SpamApplication) getApplication()).getWhisperLoader();
+        if (loader.getState() != WhisperLoader.State.READY) {
+            tvStatus.setText("Whisper 모델 로드 중...");
+        }
+        loader.getReady().whenComplete((whisper, e) -> handler.post(() -> {
+            if (isDestroyed()) return;
+            if (e != null) {
+                tvStatus.setText("오류: Whisper 모델 로드 실패");
+                return;
+            }
+            initWhisperModel(whisper);
+            WhisperLoader.Timings timings = loader.getTimings();
+            tvStatus.setText(String.format(Locale.US, "Whisper 준비 완료 (%dms)", timings.totalMs));
+            // 첫 실행이면 기본 오디오 파일이 방금 복사됨
+            if (selectedWaveFile == null || !selectedWaveFile.exists()) {
+                setupDefaultAudioFile();
+            }
+        }));
+    }
+
+    // 준비된 Whisper에 리스너 연결
+    private void initWhisperModel(Whisper whisper) {
+        mWhisper = whisper;
         mWhisper.setListener(new Whisper.WhisperListener() {
             @Override
             public void onUpdateReceived(String message) {
@@ -250,15 +289,17 @@ public class WhisperActivity extends AppCompatActivity {
                         tvStatus.setText(message);
                         tvResult.setText("");
                     });
-                    startTime = System.currentTimeMillis();
+                } else if (message.equals(Whisper.MSG_CANCELLED)) {
+                    handler.post(() -> {
+                        tvStatus.setText(message);
+                        btnTranscribe.setEnabled(true);
+                    });
                 }
             }
 
             @Override
             public void onResultReceived(String result) {
-                long timeTaken = System.currentTimeMillis() - startTime;
                 handler.post(() -> {
-                    tvStatus.setText("변환 완료: " + timeTaken + "ms");
                     tvResult.append(result);
 
                     btnTranscribe.setEnabled(true);
@@ -275,6 +316,7 @@ public class WhisperActivity extends AppCompatActivity {
             public void onUpdateReceived(String message) {
                 handler.post(() -> tvStatus.setText(message));
                 if (message.equals(Recorder.MSG_RECORDING)) {
+                    startLiveSession();
                     handler.post(() -> {
                         tvResult.setText("");
                         btnRecord.setText(R.string.stop);
@@ -283,6 +325,10 @@ public class WhisperActivity extends AppCompatActivity {
                         btnTranscribe.setEnabled(false);
                     });
                 } else if (message.equals(Recorder.MSG_RECORDING_DONE)) {
+                    // 남은 구간을 확정하고 스트림 종료
+                    LiveSession session = mLiveSession;
+                    mLiveSession = null;
+                    if (session != null) session.close();
                     handler.post(() -> {
                         btnRecord.setText(R.string.record);
                         selectedWaveFile = new File(sdcardDataFolder, WaveUtil.RECORDING_FILE);
@@ -293,8 +339,31 @@ public class WhisperActivity extends AppCompatActivity {
                 }
             }
             @Override
-            public void onDataReceived(float[] samples) {}
+            public void onDataReceived(float[] samples, int length) {
+                LiveSession session = mLiveSession;
+                if (session != null) session.write(samples, length);
+            }
+        });
+    }
+
+    // 녹음 오디오를 실시간 변환: 확정된 문장 뒤에 최신 부분 결과만 표시
+    private void startLiveSession() {
+        if (mWhisper == null) return;
+        LiveSession session = new LiveSession(mWhisper);
+        handler.post(() -> {
+            mLiveText.setLength(0);
+            session.observe(this::showLiveTranscript);
         });
+        mLiveSession = session;
+    }
+
+    private void showLiveTranscript(PartialTranscript transcript) {
+        if (transcript.isFinal()) {
+            mLiveText.append(transcript.getText());
+            tvResult.setText(mLiveText);
+        } else {
+            tvResult.setText(mLiveText + transcript.getText());
+        }
     }
 
     // Player 리스너 설정
@@ -403,59 +472,20 @@ public class WhisperActivity extends AppCompatActivity {
         if (mWhisper != null) {
             mWhisper.setFilePath(waveFilePath);
             mWhisper.setAction(Whisper.ACTION_TRANSCRIBE);
-            mWhisper.start();
+            CompletableFuture<TranscriptionResult> future = mWhisper.start();
+            mTranscription = future;
+            if (future != null) {
+                // 처리 시간과 실시간 배율(RTF)은 엔진이 측정한 값을 사용
+                future.thenAccept(result -> handler.post(() -> tvStatus.setText(String.format(Locale.US,
+                        "변환 완료: %dms (RTF %.2f, 무음 %.1fs 건너뜀)",
+                        result.processingTimeMs, result.getRealTimeFactor(), result.getSkippedSeconds()))));
+            }
         }
     }
 
     private void stopTranscription() {
-        if (mWhisper != null) mWhisper.stop();
-    }
-
-    private static void copyAssetsToSdcard(Context context, File destFolder, String[] extensions) {
-        // --- 수정된 부분 시작 ---
-        // 1. 에셋 하위 폴더 경로를 지정합니다.
-        final String ASSET_SUBFOLDER = "whisper";
-
-        AssetManager assetManager = context.getAssets();
-        try {
-            // 2. 최상위 폴더("") 대신 지정된 하위 폴더("whisper")의 파일 목록을 가져옵니다.
-            String[] assetFiles = assetManager.list(ASSET_SUBFOLDER);
-
-            if (assetFiles == null || assetFiles.length == 0) {
-                Log.e("CopyAssets", "Asset subfolder '" + ASSET_SUBFOLDER + "' not found or is empty.");
-                return;
-            }
-
-            for (String assetFileName : assetFiles) {
-                for (String extension : extensions) {
-                    if (assetFileName.endsWith("." + extension)) {
-                        // 3. 파일을 열 때도 하위 폴더 경로를 포함한 전체 경로를 사용합니다.
-                        String sourcePath = ASSET_SUBFOLDER + File.separator + assetFileName;
-                        File outFile = new File(destFolder, assetFileName);
-
-                        // 파일이 이미 존재하면 복사하지 않음
-                        if (outFile.exists()) {
-                            Log.d("CopyAssets", assetFileName + " already exists. Skipping.");
-                            break;
-                        }
-
-                        // assets에서 파일을 읽어 대상 폴더에 쓰기
-                        try (InputStream inputStream = assetManager.open(sourcePath);
-                             OutputStream outputStream = new FileOutputStream(outFile)) {
-
-                            byte[] buffer = new byte[1024];
-                            int bytesRead;
-                            while ((bytesRead = inputStream.read(buffer)) != -1) {
-                                outputStream.write(buffer, 0, bytesRead);
-                            }
-                            Log.d("CopyAssets", "Copied " + assetFileName + " to " + destFolder.getAbsolutePath());
-                        }
-                        break; // 일치하는 확장자를 찾았으므로 더 이상 확인할 필요 없음
-                    }
-                }
-            }
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
+        CompletableFuture<TranscriptionResult> future = mTranscription;
+        mTranscription = null;
+        if (future != null) future.cancel(false);
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,178 @@
+package com.example.voicecatch_ver2.asr;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Preallocated single-producer / multi-consumer ring of PCM_16 frames.
+// The capture thread claims a slot, fills it straight from AudioRecord and publishes it with a
+// sequence number. Each consumer owns a Reader that walks the sequence on its own, so readers
+// never block the producer and never block each other. A reader that falls more than
+// `capacity` frames behind loses the oldest frames and the loss is counted as an overrun.
+// Readers copy a slot optimistically and keep the copy only if the producer did not start
+// refilling that slot meanwhile (a seqlock), so a reader may run on any thread.
+public class AudioRingBuffer {
+
+    private final short[] mData;
+    private final int[] mFrameLengths;
+    private final int mFrameSize;
+    private final int mCapacity;
+    private final int mMask;
+
+    // Sequence number of the next frame to be published (== number of frames published so far)
+    private final AtomicLong mWriteSeq = new AtomicLong(0);
+    private final AtomicLong mOverruns = new AtomicLong(0);
+
+    public AudioRingBuffer(int frameSize, int capacityFrames) {
+        if (frameSize <= 0 || capacityFrames <= 0 || Integer.bitCount(capacityFrames) != 1) {
+            throw new IllegalArgumentException("frameSize must be > 0 and capacityFrames a power of two");
+        }
+        mFrameSize = frameSize;
+        mCapacity = capacityFrames;
+        mMask = capacityFrames - 1;
+        mData = new short[frameSize * capacityFrames];
+        mFrameLengths = new int[capacityFrames];
+    }
+
+    public int getFrameSize() {
+        return mFrameSize;
+    }
+
+    public int getCapacity() {
+        return mCapacity;
+    }
+
+    // Backing array of the ring; the producer reads audio directly into it at claimFrame()
+    public short[] array() {
+        return mData;
+    }
+
+    // Producer only: offset in array() of the slot for the next frame. The volatile read keeps
+    // the writes into the slot after the publication of the previous frame, which is what tells
+    // readers that the frame previously held by the slot is gone.
+    public int claimFrame() {
+        return (int) (mWriteSeq.get() & mMask) * mFrameSize;
+    }
+
+    // Producer only: make the claimed slot visible to readers
+    public void publishFrame(int length) {
+        long seq = mWriteSeq.get();
+        mFrameLengths[(int) (seq & mMask)] = Math.min(length, mFrameSize);
+        mWriteSeq.set(seq + 1); // volatile write orders the slot contents before the new sequence
+    }
+
+    public long getWriteSequence() {
+        return mWriteSeq.get();
+    }
+
+    // Total frames lost by all readers of this ring
+    public long getOverrunCount() {
+        return mOverruns.get();
+    }
+
+    // Reset the sequence for a new capture session; no reader may be active
+    public void reset() {
+        mWriteSeq.set(0);
+        mOverruns.set(0);
+    }
+
+    public Reader newReader() {
+        return new Reader(mWriteSeq.get());
+    }
+
+    public final class Reader {
+        private long mNextSeq;
+        private long mOverruns = 0;
+        // Written after every copy, see release()
+        private volatile long mCopiedSeq = -1;
+
+        private Reader(long startSeq) {
+            mNextSeq = startSeq;
+        }
+
+        public long getNextSequence() {
+            return mNextSeq;
+        }
+
+        public long getOverrunCount() {
+            return mOverruns;
+        }
+
+        public int available() {
+            return (int) Math.min(mWriteSeq.get() - mNextSeq, mCapacity - 1);
+        }
+
+        // Read the next frame as PCM_FLOAT into dst at dstOffset (dst must hold getFrameSize()
+        // floats from there). Returns the number of samples, 0 when no frame is pending.
+        public int read(float[] dst, int dstOffset) {
+            while (true) {
+                long seq = acquire();
+                if (seq < 0) return 0;
+
+                int slot = (int) (seq & mMask);
+                int length = mFrameLengths[slot];
+                int base = slot * mFrameSize;
+                for (int i = 0; i < length; i++) {
+                    dst[dstOffset + i] = mData[base + i] / 32768.0f;
+                }
+
+                if (release(seq)) return length;
+            }
+        }
+
+        // Read the next frame as little-endian PCM_16 into dst. Returns the number of samples,
+        // 0 when no frame is pending or dst has no room for a full frame.
+        public int read(ByteBuffer dst) {
+            if (dst.remaining() < mFrameSize * 2) return 0;
+
+            while (true) {
+                long seq = acquire();
+                if (seq < 0) return 0;
+
+                int slot = (int) (seq & mMask);
+                int length = mFrameLengths[slot];
+                int base = slot * mFrameSize;
+                int start = dst.position();
+                ByteOrder order = dst.order();
+                dst.order(ByteOrder.LITTLE_ENDIAN);
+                for (int i = 0; i < length; i++) {
+                    dst.putShort(mData[base + i]);
+                }
+                dst.order(order);
+
+                if (release(seq)) return length;
+                dst.position(start);
+            }
+        }
+
+        // Sequence of the next readable frame, skipping frames the producer already overwrote
+        private long acquire() {
+            long writeSeq = mWriteSeq.get();
+            if (writeSeq - mNextSeq >= mCapacity) {
+                skip(writeSeq - mCapacity + 1 - mNextSeq); // the oldest slot may be getting refilled
+            }
+            return (mNextSeq < writeSeq) ? mNextSeq : -1;
+        }
+
+        // The slot is valid only if the producer did not start reusing it while we were copying.
+        // A volatile read alone does not order the plain loads of the copy before it, so they
+        // could still observe the refill after the check passed. A volatile write may not be
+        // reordered with the loads before it nor with the volatile read after it, which makes
+        // the pair a load-load fence (VarHandle.loadLoadFence() needs API 33).
+        private boolean release(long seq) {
+            mCopiedSeq = seq;
+            if (mWriteSeq.get() - seq >= mCapacity) {
+                skip(1);
+                return false;
+            }
+            mNextSeq = seq + 1;
+            return true;
+        }
+
+        private void skip(long frames) {
+            mNextSeq += frames;
+            mOverruns += frames;
+            AudioRingBuffer.this.mOverruns.addAndGet(frames);
+        }
+    }
+}
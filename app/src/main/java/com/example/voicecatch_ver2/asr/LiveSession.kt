@@ -0,0 +1,294 @@
+package com.example.voicecatch_ver2.asr
+
+import android.util.Log
+import com.example.voicecatch_ver2.engine.LiveStream
+import com.example.voicecatch_ver2.utils.WhisperUtil
+import kotlinx.coroutines.CancellationException
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.Job
+import kotlinx.coroutines.SupervisorJob
+import kotlinx.coroutines.cancel
+import kotlinx.coroutines.channels.BufferOverflow
+import kotlinx.coroutines.channels.Channel
+import kotlinx.coroutines.currentCoroutineContext
+import kotlinx.coroutines.ensureActive
+import kotlinx.coroutines.flow.Flow
+import kotlinx.coroutines.flow.buffer
+import kotlinx.coroutines.flow.channelFlow
+import kotlinx.coroutines.flow.flowOn
+import kotlinx.coroutines.future.await
+import kotlinx.coroutines.launch
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.atomic.AtomicBoolean
+
+// One update of a live transcript. A partial is the current guess for the audio after the
+// committed text and is replaced by the next transcript; a final one is committed text that
+// later transcripts continue after. Offsets of committed text are estimates, decodes have no
+// word timings.
+data class PartialTranscript(
+    val sequence: Long,     // increases with every transcript, gaps are partials dropped for a slow collector
+    val startSample: Long,  // first sample of the text in the live audio
+    val endSample: Long,    // end of the audio the text covers
+    val text: String,
+    val isFinal: Boolean,
+)
+
+// Live transcription of the mic feed as a Flow of transcripts.
+// Audio grows a window of up to 30 seconds in a LiveStream, and the window is decoded again on
+// every hop (LocalAgreement): words on which two consecutive decodes agree are committed, the
+// rest is a partial. Once the window is longer than TRIM_SECONDS, the audio of the committed
+// words is cut at a quiet point and the words the next decode repeats from before the cut are
+// dropped; a window that fills up without agreement is committed whole. The native engine only
+// transforms the new audio of each hop.
+// Decodes run one at a time at LIVE priority, audio that arrives during a decode joins the next
+// one, so a slow device decodes less often rather than falling behind. A collector slower than
+// the decodes gets the newest partial only, while consecutive finals are merged rather than
+// dropped, so latency and memory stay bounded either way.
+class LiveSession(private val whisper: Whisper) {
+
+    fun interface Listener {
+        fun onTranscript(transcript: PartialTranscript)
+    }
+
+    private class AudioBlock(val startSample: Long, val samples: FloatArray)
+
+    // Latest partial and pending committed text, handed to the collector when it is ready
+    private class Outbox {
+        private var final: PartialTranscript? = null
+        private var partial: PartialTranscript? = null
+
+        @Synchronized
+        fun offer(transcript: PartialTranscript) {
+            if (transcript.isFinal) {
+                final = final?.let {
+                    transcript.copy(startSample = it.startSample, text = it.text + transcript.text)
+                } ?: transcript
+                partial = null // stale, the final text covers its audio
+            } else {
+                partial = transcript
+            }
+        }
+
+        @Synchronized
+        fun take(): List<PartialTranscript> {
+            val taken = listOfNotNull(final, partial)
+            final = null
+            partial = null
+            return taken
+        }
+    }
+
+    // Bounded: the oldest audio is dropped when decoding stalls for AUDIO_CAPACITY blocks
+    private val audio = Channel<AudioBlock>(AUDIO_CAPACITY, BufferOverflow.DROP_OLDEST)
+    private val collected = AtomicBoolean(false)
+    private val scope = CoroutineScope(SupervisorJob())
+    private var writtenSamples = 0L // recorder thread only
+    @Volatile private var cancelled = false
+    @Volatile private var inFlight: CompletableFuture<TranscriptionResult>? = null
+
+    // Queue live audio; the samples are copied, so the caller may reuse its buffer
+    fun write(samples: FloatArray, length: Int) {
+        if (length <= 0) return
+        audio.trySend(AudioBlock(writtenSamples, samples.copyOf(length)))
+        writtenSamples += length
+    }
+
+    // End of the audio: the open segment is decoded once more and committed, then the flow completes
+    fun close() {
+        audio.close()
+    }
+
+    // Stop now, the transcripts of the open segment are discarded
+    fun cancel() {
+        cancelled = true
+        audio.close()
+        inFlight?.cancel(false)
+        scope.cancel()
+    }
+
+    // The transcripts of this session; can be collected once
+    val transcripts: Flow<PartialTranscript> = channelFlow {
+        check(collected.compareAndSet(false, true)) { "Live transcripts can be collected once" }
+        val outbox = Outbox()
+        val ready = Channel<Unit>(Channel.CONFLATED)
+        launch {
+            try {
+                decodeLoop { transcript ->
+                    outbox.offer(transcript)
+                    ready.trySend(Unit)
+                }
+            } finally {
+                ready.close()
+            }
+        }
+        while (ready.receiveCatching().isSuccess) {
+            for (transcript in outbox.take()) {
+                send(transcript)
+            }
+        }
+    }.buffer(Channel.RENDEZVOUS).flowOn(Dispatchers.Default)
+
+    // For Java callers: deliver the transcripts on the main thread until the session ends
+    fun observe(listener: Listener): Job = scope.launch(Dispatchers.Main) {
+        transcripts.collect { listener.onTranscript(it) }
+    }
+
+    private suspend fun decodeLoop(emit: (PartialTranscript) -> Unit) {
+        val decoder = Decoder(whisper.openLiveStream(), emit)
+        try {
+            val pending = ArrayDeque<AudioBlock>()
+            while (!cancelled) {
+                val first = audio.receiveCatching().getOrNull() ?: break
+                pending.addLast(first)
+                while (true) {
+                    pending.addLast(audio.tryReceive().getOrNull() ?: break)
+                }
+                decoder.hop(pending)
+            }
+            if (!cancelled) decoder.finish()
+        } finally {
+            whisper.closeLiveStream(decoder.stream)
+        }
+    }
+
+    // LocalAgreement over the decodes of the live window
+    private inner class Decoder(val stream: LiveStream, private val emit: (PartialTranscript) -> Unit) {
+        // copy of the audio in the stream's window, to choose where to cut it
+        private val window = FloatArray(WINDOW_SAMPLES)
+        private var windowStart = 0L
+        private var windowLength = 0
+
+        // audio after the window not in the stream yet, kept when a push is dropped
+        private var unpushed = FloatArray(0)
+        private var pendingAdvance = 0 // samples to drop from the stream's window with the next push
+
+        private val agreement = LocalAgreement(TAIL_WORDS)
+        private var committedEnd = 0L
+        private var sequence = 0L
+
+        suspend fun hop(blocks: ArrayDeque<AudioBlock>) {
+            while (blocks.isNotEmpty()) {
+                val block = blocks.removeFirst()
+                if (block.startSample != windowStart + windowLength + unpushed.size) {
+                    // audio was dropped: what was decoded is committed, the window restarts at the block
+                    decode()
+                    unpushed = FloatArray(0)
+                    flush()
+                    windowStart = block.startSample
+                    committedEnd = maxOf(committedEnd, windowStart)
+                }
+                unpushed += block.samples
+            }
+            if (windowLength + unpushed.size > WINDOW_SAMPLES) {
+                flush()
+            }
+            decode()
+        }
+
+        suspend fun finish() {
+            if (unpushed.isNotEmpty()) decode()
+            flush()
+        }
+
+        private suspend fun decode() {
+            if (unpushed.isEmpty() || cancelled) return
+            val samples = unpushed.copyOf(minOf(unpushed.size, WINDOW_SAMPLES - windowLength))
+            val result = push(samples) ?: return // the stream did not get it, retried next hop
+
+            samples.copyInto(window, windowLength)
+            windowLength += samples.size
+            unpushed = unpushed.copyOfRange(samples.size, unpushed.size)
+            pendingAdvance = 0
+
+            val committed = agreement.update(result.text.split(WHITESPACE).filter { it.isNotEmpty() })
+            if (committed.isNotEmpty()) {
+                // ends at the share of the window of the words committed so far
+                emitFinal(committed, windowStart + windowLength.toLong() * agreement.committed / agreement.hypothesis.size)
+            }
+            emit(PartialTranscript(sequence++, committedEnd, windowStart + windowLength, join(agreement.unstable), false))
+
+            if (windowLength > TRIM_SAMPLES && agreement.committed > 0) {
+                trim()
+            }
+        }
+
+        private fun emitFinal(words: List<String>, end: Long) {
+            emit(PartialTranscript(sequence++, committedEnd, end, join(words), true))
+            committedEnd = maxOf(committedEnd, end)
+        }
+
+        // Commit everything decoded so far and empty the window
+        private fun flush() {
+            val words = agreement.flush()
+            if (words.isNotEmpty()) {
+                emitFinal(words, windowStart + windowLength)
+            }
+            pendingAdvance += windowLength
+            windowStart += windowLength
+            windowLength = 0
+        }
+
+        // Drop the audio of the committed words, at the quietest point shortly before their
+        // estimated end so the next decode repeats a word or two rather than missing one
+        private fun trim() {
+            val estimate = (windowLength.toLong() * agreement.committed / agreement.hypothesis.size).toInt()
+            val from = maxOf(0, estimate - CUT_SEARCH_SAMPLES)
+            var best = from
+            var bestEnergy = Double.MAX_VALUE
+            var frame = from
+            while (frame + CUT_FRAME_SAMPLES <= estimate) {
+                var energy = 0.0
+                for (i in frame until frame + CUT_FRAME_SAMPLES) {
+                    energy += window[i] * window[i]
+                }
+                if (energy < bestEnergy) {
+                    bestEnergy = energy
+                    best = frame + CUT_FRAME_SAMPLES / 2
+                }
+                frame += WhisperUtil.WHISPER_HOP_LENGTH
+            }
+            // whole mel frames, so the native stream drops exactly this much
+            val n = best / WhisperUtil.WHISPER_HOP_LENGTH * WhisperUtil.WHISPER_HOP_LENGTH
+            if (n == 0) return
+
+            window.copyInto(window, 0, n, windowLength)
+            windowLength -= n
+            windowStart += n
+            pendingAdvance += n
+            agreement.cut()
+        }
+
+        // Decode the window with the samples added, or null when the push was dropped or failed
+        private suspend fun push(samples: FloatArray): TranscriptionResult? {
+            val future = whisper.pushLive(stream, pendingAdvance, samples)
+            inFlight = future
+            return try {
+                future.await()
+            } catch (e: CancellationException) {
+                currentCoroutineContext().ensureActive() // our own cancellation goes on
+                null
+            } catch (e: Exception) {
+                Log.e(TAG, "Live decode failed", e)
+                null
+            } finally {
+                inFlight = null
+            }
+        }
+    }
+
+    private fun join(words: List<String>): String =
+        if (words.isEmpty()) "" else words.joinToString(" ", prefix = " ")
+
+    companion object {
+        private const val TAG = "LiveSession"
+        private const val WINDOW_SAMPLES = WhisperUtil.WHISPER_CHUNK_SIZE * WhisperUtil.WHISPER_SAMPLE_RATE
+        private const val TRIM_SECONDS = 20
+        private const val TRIM_SAMPLES = TRIM_SECONDS * WhisperUtil.WHISPER_SAMPLE_RATE
+        private const val CUT_SEARCH_SAMPLES = 2 * WhisperUtil.WHISPER_SAMPLE_RATE
+        private const val CUT_FRAME_SAMPLES = WhisperUtil.WHISPER_SAMPLE_RATE / 10
+        private const val TAIL_WORDS = 16
+        private const val AUDIO_CAPACITY = 32 // recorder blocks of REALTIME_SECONDS
+        private val WHITESPACE = Regex("\\s+")
+    }
+}
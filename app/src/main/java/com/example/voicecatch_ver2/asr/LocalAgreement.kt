@@ -0,0 +1,87 @@
+package com.example.voicecatch_ver2.asr
+
+// Word-level LocalAgreement over consecutive decodes of a live window: words on which two
+// consecutive decodes agree are committed, the rest of the last decode is unstable. After the
+// audio of committed words is cut from the window, the next decode usually repeats a few of
+// them; those are matched against the last committed words instead of being committed again.
+class LocalAgreement(private val tailWords: Int) {
+    // Words of the last decode
+    var hypothesis: List<String> = emptyList()
+        private set
+
+    // Words of hypothesis already committed
+    var committed = 0
+        private set
+
+    // Words of hypothesis not committed yet
+    val unstable: List<String>
+        get() = hypothesis.subList(committed, hypothesis.size)
+
+    private var agreed: List<String>? = null      // words of the decode before, null after a cut
+    private val committedTail = ArrayDeque<String>() // last committed words, to match after a cut
+    private var cut = false
+
+    // Take the words of a new decode; returns the words it commits, empty when none
+    fun update(words: List<String>): List<String> {
+        hypothesis = words
+        val previous = agreed
+        agreed = words
+        if (cut) {
+            // the words before the cut were committed already
+            committed = overlap(committedTail, words)
+            cut = false
+        } else if (previous != null) {
+            val stable = commonPrefix(previous, words)
+            if (stable > committed) {
+                return commit(stable)
+            }
+        }
+        return emptyList()
+    }
+
+    // The audio of the committed words left the window: the next decode starts over
+    fun cut() {
+        agreed = null
+        cut = true
+    }
+
+    // Commit the rest of the last decode and start over with an empty window; returns the
+    // words committed
+    fun flush(): List<String> {
+        val words = if (committed < hypothesis.size) commit(hypothesis.size) else emptyList()
+        hypothesis = emptyList()
+        agreed = null
+        committed = 0
+        cut = false
+        return words
+    }
+
+    // Commit hypothesis words [committed, n)
+    private fun commit(n: Int): List<String> {
+        val words = hypothesis.subList(committed, n)
+        committed = n
+        for (word in words) {
+            committedTail.addLast(word)
+            if (committedTail.size > tailWords) committedTail.removeFirst()
+        }
+        return words
+    }
+
+    companion object {
+        // Words at the start of words that repeat the end of tail
+        @JvmStatic
+        fun overlap(tail: List<String>, words: List<String>): Int {
+            for (k in minOf(tail.size, words.size) downTo 1) {
+                if (tail.subList(tail.size - k, tail.size) == words.subList(0, k)) return k
+            }
+            return 0
+        }
+
+        @JvmStatic
+        fun commonPrefix(a: List<String>, b: List<String>): Int {
+            var n = 0
+            while (n < a.size && n < b.size && a[n] == b[n]) n++
+            return n
+        }
+    }
+}
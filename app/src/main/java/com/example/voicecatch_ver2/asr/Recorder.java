@@ -13,16 +13,14 @@ import androidx.core.app.ActivityCompat;
 
 import com.example.voicecatch_ver2.utils.WaveUtil;
 
-import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.LockSupport;
 import java.util.concurrent.locks.ReentrantLock;
 
 public class Recorder {
@@ -30,7 +28,8 @@ public class Recorder {
     public interface RecorderListener {
         void onUpdateReceived(String message);
 
-        void onDataReceived(float[] samples);
+        // samples is reused by the capture loop once this returns; copy it to keep the data
+        void onDataReceived(float[] samples, int length);
     }
 
     private static final String TAG = "Recorder";
@@ -38,7 +37,10 @@ public class Recorder {
     public static final String ACTION_RECORD = "Record";
     public static final String MSG_RECORDING = "Recording...";
     public static final String MSG_RECORDING_DONE = "Recording done...!";
-    public static final int RECORDING_DURATION = 60; //60 seconds
+    public static final int RECORDING_DURATION = 60 * 60; // 1 hour, the wave file is streamed to disk
+    public static final int FRAME_SIZE = 1600; // 100ms of 16kHz mono audio per ring slot
+    public static final int RING_CAPACITY = 64; // ring slots, 6.4 seconds
+    public static final int REALTIME_SECONDS = 1; // hop of the live transcription window
 
     private final Context mContext;
     private final AtomicBoolean mInProgress = new AtomicBoolean(false);
@@ -53,6 +55,10 @@ public class Recorder {
 
     private final Thread workerThread;
 
+    // Capture ring and consumer buffers, allocated once and reused across recordings
+    private final AudioRingBuffer mAudioBuffer = new AudioRingBuffer(FRAME_SIZE, RING_CAPACITY);
+    private final float[] mRealtimeSamples = new float[16000 * REALTIME_SECONDS];
+
     public Recorder(Context context) {
         this.mContext = context;
 
@@ -100,14 +106,25 @@ public class Recorder {
         return mInProgress.get();
     }
 
+    // Capture ring of the current recording; additional consumers attach with newReader()
+    public AudioRingBuffer getAudioBuffer() {
+        return mAudioBuffer;
+    }
+
     private void sendUpdate(String message) {
         if (mListener != null)
             mListener.onUpdateReceived(message);
     }
 
-    private void sendData(float[] samples) {
+    private void sendData(float[] samples, int length) {
         if (mListener != null)
-            mListener.onDataReceived(samples);
+            mListener.onDataReceived(samples, length);
+    }
+
+    private void notifyFileSaved() {
+        synchronized (fileSavedLock) {
+            fileSavedLock.notify(); // Notify that recording is finished
+        }
     }
 
     private void recordLoop() {
@@ -154,62 +171,166 @@ public class Recorder {
         int audioSource = MediaRecorder.AudioSource.MIC;
 
         int bufferSize = AudioRecord.getMinBufferSize(sampleRateInHz, channelConfig, audioFormat);
-        AudioRecord audioRecord = new AudioRecord(audioSource, sampleRateInHz, channelConfig, audioFormat, bufferSize);
-        audioRecord.startRecording();
+        AudioRecord audioRecord = new AudioRecord(audioSource, sampleRateInHz, channelConfig, audioFormat,
+                Math.max(bufferSize, FRAME_SIZE * bytesPerSample * 2));
 
-        // Calculate maximum byte counts for 30 seconds (for saving)
+        // Calculate maximum byte count for the recording duration (for saving)
         int bytesForOneSecond = sampleRateInHz * bytesPerSample * channels;
-        int bytesForThreeSeconds = bytesForOneSecond * 3;
-        int bytesForThirtySeconds = bytesForOneSecond * 30;
-        int bytesForSixtySeconds = bytesForOneSecond * RECORDING_DURATION;
-
-        ByteArrayOutputStream outputBuffer = new ByteArrayOutputStream(); // Buffer for saving data in wave file
-        ByteArrayOutputStream realtimeBuffer = new ByteArrayOutputStream(); // Buffer for real-time processing
-
-        byte[] audioData = new byte[bufferSize];
-        int totalBytesRead = 0;
-
-        while (mInProgress.get() && totalBytesRead < bytesForSixtySeconds) {
-            int bytesRead = audioRecord.read(audioData, 0, bufferSize);
-            if (bytesRead > 0) {
-                outputBuffer.write(audioData, 0, bytesRead);  // Save all bytes read up to 30 seconds
-                realtimeBuffer.write(audioData, 0, bytesRead); // Accumulate real-time audio data
-                totalBytesRead += bytesRead;
-
-                // Check if realtimeBuffer has more than 3 seconds of data
-                if (realtimeBuffer.size() >= bytesForThreeSeconds) {
-                    float[] samples = convertToFloatArray(ByteBuffer.wrap(realtimeBuffer.toByteArray()));
-                    realtimeBuffer.reset(); // Clear the buffer for the next accumulation
-                    sendData(samples); // Send real-time data for processing
+        long maxBytes = (long) bytesForOneSecond * RECORDING_DURATION;
+
+        // Wave file is written while recording, with the header patched on every flush
+        WaveUtil.StreamWriter waveWriter;
+        try {
+            waveWriter = WaveUtil.openStreamWriter(mWavFilePath, sampleRateInHz, channels, bytesPerSample);
+        } catch (IOException e) {
+            Log.e(TAG, "Error opening wave file...", e);
+            sendUpdate("Failed to create wave file");
+            audioRecord.release();
+            notifyFileSaved();
+            return;
+        }
+
+        // Consumers of the capture ring: wave file data on its own thread, so a slow flush only
+        // uses up ring slots instead of delaying the next read, and real-time processing
+        mAudioBuffer.reset();
+        WaveFileThread waveThread = new WaveFileThread(mAudioBuffer.newReader(), waveWriter);
+        AudioRingBuffer.Reader realtimeReader = mAudioBuffer.newReader();
+        short[] ring = mAudioBuffer.array();
+        int realtimeLength = 0;
+
+        audioRecord.startRecording();
+        waveThread.start();
+
+        long totalBytesRead = 0;
+        while (mInProgress.get() && totalBytesRead < maxBytes) {
+            int offset = mAudioBuffer.claimFrame();
+            int samplesRead = audioRecord.read(ring, offset, FRAME_SIZE);
+            if (samplesRead > 0) {
+                mAudioBuffer.publishFrame(samplesRead);
+                totalBytesRead += samplesRead * bytesPerSample;
+                waveThread.wake();
+
+                if (waveThread.getError() != null) {
+                    sendUpdate("Failed to write wave file");
+                    break;
+                }
+
+                // Accumulate real-time audio data, sending it every REALTIME_SECONDS
+                int n;
+                while ((n = realtimeReader.read(mRealtimeSamples, realtimeLength)) > 0) {
+                    realtimeLength += n;
+                    if (realtimeLength + FRAME_SIZE > mRealtimeSamples.length) {
+                        sendData(mRealtimeSamples, realtimeLength); // Send real-time data for processing
+                        realtimeLength = 0;
+                    }
                 }
             } else {
-                Log.d(TAG, "AudioRecord error, bytes read: " + bytesRead);
+                Log.d(TAG, "AudioRecord error, samples read: " + samplesRead);
                 break;
             }
         }
 
+        if (mAudioBuffer.getOverrunCount() > 0) {
+            Log.w(TAG, "Capture ring overruns: " + mAudioBuffer.getOverrunCount() + " frames");
+        }
+
         audioRecord.stop();
         audioRecord.release();
 
-        // Save recorded audio data to file (up to 30 seconds)
-        WaveUtil.createWaveFile(mWavFilePath, outputBuffer.toByteArray(), sampleRateInHz, channels, bytesPerSample);
+        // The last block is usually shorter than REALTIME_SECONDS; send it before the done
+        // message so live transcription gets the end of the recording too
+        int n;
+        while ((n = realtimeReader.read(mRealtimeSamples, realtimeLength)) > 0) {
+            realtimeLength += n;
+            if (realtimeLength + FRAME_SIZE > mRealtimeSamples.length) {
+                sendData(mRealtimeSamples, realtimeLength);
+                realtimeLength = 0;
+            }
+        }
+        if (realtimeLength > 0) {
+            sendData(mRealtimeSamples, realtimeLength);
+        }
+
+        // Flush the remaining audio data and finalize the header sizes
+        waveThread.finish();
+        try {
+            waveWriter.close();
+        } catch (IOException e) {
+            Log.e(TAG, "Error closing wave file...", e);
+        }
         sendUpdate(MSG_RECORDING_DONE);
 
         // Notify the waiting thread that recording is complete
-        synchronized (fileSavedLock) {
-            fileSavedLock.notify(); // Notify that recording is finished
-        }
+        notifyFileSaved();
 
 //        moveFileToSdcard(mWavFilePath);
     }
 
-    private float[] convertToFloatArray(ByteBuffer buffer) {
-        buffer.order(ByteOrder.nativeOrder());
-        float[] samples = new float[buffer.remaining() / 2];
-        for (int i = 0; i < samples.length; i++) {
-            samples[i] = buffer.getShort() / 32768.0f;
+    // Appends the frames of its ring reader to the wave file until finish(); the capture thread
+    // only wakes it up after each published frame
+    private static final class WaveFileThread extends Thread {
+        private static final long IDLE_WAIT_NANOS = 200_000_000L;
+
+        private final AudioRingBuffer.Reader mReader;
+        private final WaveUtil.StreamWriter mWriter;
+        private volatile boolean mCaptureDone = false;
+        private volatile IOException mError = null;
+
+        WaveFileThread(AudioRingBuffer.Reader reader, WaveUtil.StreamWriter writer) {
+            super("WaveFileWriter");
+            mReader = reader;
+            mWriter = writer;
+        }
+
+        void wake() {
+            LockSupport.unpark(this);
+        }
+
+        // Set when writing failed; the file is not written any further
+        IOException getError() {
+            return mError;
+        }
+
+        // Write what is left in the ring and wait for the thread; the writer is not closed
+        void finish() {
+            mCaptureDone = true;
+            wake();
+            boolean interrupted = false;
+            while (isAlive()) {
+                try {
+                    join();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        @Override
+        public void run() {
+            int bytesPerFrame = FRAME_SIZE * 2; // PCM_16
+            try {
+                while (true) {
+                    // read before draining, so frames published before finish() are all written
+                    boolean done = mCaptureDone;
+                    while (mReader.read(mWriter.buffer(bytesPerFrame)) > 0) {
+                        // the reader fills the writer's buffer directly
+                    }
+                    if (done) {
+                        break;
+                    }
+                    LockSupport.parkNanos(this, IDLE_WAIT_NANOS);
+                }
+            } catch (IOException e) {
+                Log.e(TAG, "Error writing wave file...", e);
+                mError = e;
+            }
+            if (mReader.getOverrunCount() > 0) {
+                Log.w(TAG, "Wave file lost " + mReader.getOverrunCount() + " frames");
+            }
         }
-        return samples;
     }
 
     // Move file from /data/user/0/com.whispertflite/files/MicInput.wav to
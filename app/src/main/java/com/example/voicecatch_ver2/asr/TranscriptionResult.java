@@ -0,0 +1,88 @@
+package com.example.voicecatch_ver2.asr;
+
+import com.example.voicecatch_ver2.engine.ChunkStats;
+import com.example.voicecatch_ver2.utils.WhisperUtil;
+
+import java.util.Collections;
+import java.util.List;
+
+// Text of a transcription job and where its time went
+public class TranscriptionResult {
+    public final String text;
+    public final int[] tokens;                // text token ids, empty when the engine does not report them
+    public final List<ChunkStats> chunkStats; // mel / wait / inference / decode per chunk, empty likewise
+    public final long audioSamples;           // length of the input, 0 when unknown
+    public final long queueTimeMs;            // submitted until its first step ran
+    public final long processingTimeMs;       // first step until the last chunk was decoded, live buffers included
+
+    TranscriptionResult(String text, int[] tokens, List<ChunkStats> chunkStats, long audioSamples,
+                        long queueTimeMs, long processingTimeMs) {
+        this.text = text;
+        this.tokens = tokens != null ? tokens : new int[0];
+        this.chunkStats = chunkStats != null ? Collections.unmodifiableList(chunkStats) : Collections.emptyList();
+        this.audioSamples = audioSamples;
+        this.queueTimeMs = queueTimeMs;
+        this.processingTimeMs = processingTimeMs;
+    }
+
+    public float getAudioSeconds() {
+        return (float) audioSamples / WhisperUtil.WHISPER_SAMPLE_RATE;
+    }
+
+    // Silence the VAD kept away from the encoder
+    public float getSkippedSeconds() {
+        long skipped = 0;
+        for (ChunkStats stats : chunkStats) {
+            skipped += stats.skippedSamples;
+        }
+        return (float) skipped / WhisperUtil.WHISPER_SAMPLE_RATE;
+    }
+
+    // Processing time over audio length, below 1 is faster than real time; 0 when the length is unknown
+    public float getRealTimeFactor() {
+        return audioSamples > 0 ? processingTimeMs / 1000f / getAudioSeconds() : 0;
+    }
+
+    // Chunks answered by the transcript cache without inference
+    public int getCachedChunks() {
+        int cached = 0;
+        for (ChunkStats stats : chunkStats) {
+            if (stats.cacheHit) {
+                cached++;
+            }
+        }
+        return cached;
+    }
+
+    public long getMelTimeUs() {
+        long total = 0;
+        for (ChunkStats stats : chunkStats) {
+            total += stats.melTimeUs;
+        }
+        return total;
+    }
+
+    public long getInferenceTimeUs() {
+        long total = 0;
+        for (ChunkStats stats : chunkStats) {
+            total += stats.inferenceTimeUs;
+        }
+        return total;
+    }
+
+    public long getDecodeTimeUs() {
+        long total = 0;
+        for (ChunkStats stats : chunkStats) {
+            total += stats.decodeTimeUs;
+        }
+        return total;
+    }
+
+    @Override
+    public String toString() {
+        return chunkStats.size() + " chunks (" + getCachedChunks() + " cached), " + getAudioSeconds() + " s audio (" + getSkippedSeconds()
+                + " s skipped), queue " + queueTimeMs + " ms, processing " + processingTimeMs + " ms, mel "
+                + getMelTimeUs() / 1000 + " ms, inference " + getInferenceTimeUs() / 1000 + " ms, decode "
+                + getDecodeTimeUs() / 1000 + " ms, RTF " + getRealTimeFactor();
+    }
+}
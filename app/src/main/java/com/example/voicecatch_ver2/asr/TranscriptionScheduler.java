@@ -0,0 +1,301 @@
+package com.example.voicecatch_ver2.asr;
+
+import android.util.Log;
+
+import com.example.voicecatch_ver2.engine.WhisperEngine;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+// Runs transcription jobs on one worker thread, the only thread that uses the engine.
+// Jobs run by priority (LIVE, then FILE, then BACKLOG) and in order within a priority. A job
+// runs one step at a time (one chunk of a file) and goes back to the front of its queue in
+// between, so a live buffer arriving during a long file waits for one chunk at most.
+public class TranscriptionScheduler {
+    private static final String TAG = "TranscriptionScheduler";
+
+    // Highest priority first
+    public enum Priority {
+        LIVE, FILE, BACKLOG
+    }
+
+    // What submit() does when the queue of the job's priority is full
+    public enum OverflowPolicy {
+        REJECT_NEW,  // the new job is cancelled
+        DROP_OLDEST  // the oldest job that has not started yet is cancelled to make room
+    }
+
+    public abstract static class Job {
+        private final Priority mPriority;
+        private volatile boolean mCancelled = false;
+        private boolean mStarted = false; // guarded by the scheduler lock
+
+        protected Job(Priority priority) {
+            mPriority = priority;
+        }
+
+        public Priority getPriority() {
+            return mPriority;
+        }
+
+        public boolean isCancelled() {
+            return mCancelled;
+        }
+
+        // Jobs that release what other jobs use (a live stream) must run on the worker
+        // whatever happens: they are never cancelled, dropped or rejected by a full queue, and
+        // at shutdown their onCancelled runs on the worker thread once its last step is over
+        protected boolean isCancellable() {
+            return true;
+        }
+
+        // Run the next step on the worker thread; returns true when the job is complete
+        protected abstract boolean step(WhisperEngine engine) throws Exception;
+
+        // Exactly one of these is called when the job ends. onCancelled is called on the
+        // thread that cancelled or dropped the job if it never started, otherwise on the
+        // worker thread, like the others.
+        protected void onCompleted() {}
+        protected void onCancelled() {}
+        protected void onFailed(Exception e) {}
+    }
+
+    private final WhisperEngine mEngine;
+    private final Lock mLock = new ReentrantLock();
+    private final Condition mHasJob = mLock.newCondition();
+    private final ArrayDeque<Job>[] mQueues;
+    private final int[] mCapacity;
+    private final OverflowPolicy[] mPolicy;
+
+    private Job mRunning = null;
+    private boolean mShutdown = false;
+    private boolean mStopped = false; // the worker has left its loop and cancelled what remained
+
+    @SuppressWarnings("unchecked")
+    public TranscriptionScheduler(WhisperEngine engine) {
+        mEngine = engine;
+        int n = Priority.values().length;
+        mQueues = new ArrayDeque[n];
+        mCapacity = new int[n];
+        mPolicy = new OverflowPolicy[n];
+        for (int i = 0; i < n; i++) {
+            mQueues[i] = new ArrayDeque<>();
+            mCapacity[i] = Integer.MAX_VALUE;
+            mPolicy[i] = OverflowPolicy.REJECT_NEW;
+        }
+
+        new Thread(this::workerLoop, TAG).start();
+    }
+
+    // Bound the number of queued jobs of a priority (started jobs waiting for their next step count too)
+    public void setLimit(Priority priority, int capacity, OverflowPolicy policy) {
+        mLock.lock();
+        try {
+            mCapacity[priority.ordinal()] = Math.max(1, capacity);
+            mPolicy[priority.ordinal()] = policy;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    // Queue a job; returns false when it was rejected (its onCancelled has been called)
+    public boolean submit(Job job) {
+        Job dropped = null;
+        boolean accepted = true;
+        mLock.lock();
+        try {
+            ArrayDeque<Job> queue = mQueues[job.mPriority.ordinal()];
+            if (mShutdown) {
+                // cancelled by the worker with the others if it has not stopped yet
+                accepted = !job.isCancellable() && !mStopped;
+            } else if (job.isCancellable() && queue.size() >= mCapacity[job.mPriority.ordinal()]) {
+                if (mPolicy[job.mPriority.ordinal()] == OverflowPolicy.DROP_OLDEST) {
+                    dropped = removeOldestWaiting(queue);
+                }
+                accepted = dropped != null;
+            }
+            if (accepted) {
+                queue.addLast(job);
+                mHasJob.signal();
+            }
+        } finally {
+            mLock.unlock();
+        }
+
+        if (dropped != null) {
+            Log.d(TAG, "Queue of " + job.mPriority + " jobs is full, dropping the oldest");
+            dropped.mCancelled = true;
+            dropped.onCancelled();
+        }
+        if (!accepted) {
+            Log.d(TAG, "Rejected a " + job.mPriority + " job");
+            job.mCancelled = true;
+            job.onCancelled();
+        }
+        return accepted;
+    }
+
+    // Cancel a job: a waiting job is removed, a running one is interrupted in the engine and
+    // a started one ends before its next step
+    public void cancel(Job job) {
+        boolean removed = false;
+        mLock.lock();
+        try {
+            if (job.mCancelled || !job.isCancellable()) {
+                return;
+            }
+            job.mCancelled = true;
+            if (job == mRunning) {
+                mEngine.cancel();
+            } else if (!job.mStarted) {
+                removed = mQueues[job.mPriority.ordinal()].remove(job);
+            }
+        } finally {
+            mLock.unlock();
+        }
+        if (removed) {
+            job.onCancelled();
+        }
+    }
+
+    // Cancel every job of a priority, or of all priorities when priority is null
+    public void cancelAll(Priority priority) {
+        List<Job> jobs = new ArrayList<>();
+        mLock.lock();
+        try {
+            for (ArrayDeque<Job> queue : mQueues) {
+                jobs.addAll(queue);
+            }
+            if (mRunning != null) {
+                jobs.add(mRunning);
+            }
+        } finally {
+            mLock.unlock();
+        }
+        for (Job job : jobs) {
+            if (priority == null || job.mPriority == priority) {
+                cancel(job);
+            }
+        }
+    }
+
+    // Stop the worker: the running job is interrupted and every job still queued is cancelled.
+    // Returns immediately, the worker finishes in the background.
+    public void shutdown() {
+        mLock.lock();
+        try {
+            if (mShutdown) {
+                return;
+            }
+            mShutdown = true;
+            if (mRunning != null && mRunning.isCancellable()) {
+                mRunning.mCancelled = true;
+                mEngine.cancel();
+            }
+            mHasJob.signal();
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    private static Job removeOldestWaiting(ArrayDeque<Job> queue) {
+        for (Iterator<Job> it = queue.iterator(); it.hasNext(); ) {
+            Job job = it.next();
+            if (!job.mStarted && job.isCancellable()) {
+                it.remove();
+                return job;
+            }
+        }
+        return null;
+    }
+
+    // Highest priority job, or null when every queue is empty
+    private Job pollNext() {
+        for (ArrayDeque<Job> queue : mQueues) {
+            Job job = queue.pollFirst();
+            if (job != null) {
+                return job;
+            }
+        }
+        return null;
+    }
+
+    private void workerLoop() {
+        while (true) {
+            Job job = null;
+            mLock.lock();
+            try {
+                while (!mShutdown && (job = pollNext()) == null) {
+                    mHasJob.awaitUninterruptibly();
+                }
+                if (mShutdown) {
+                    break;
+                }
+                mRunning = job;
+                job.mStarted = true;
+                // cleared here and only here: cancel() sets it under the same lock once the job
+                // is running, so a stop between this point and step() is never wiped
+                mEngine.clearCancel();
+            } finally {
+                mLock.unlock();
+            }
+            runStep(job);
+        }
+
+        // Jobs left behind at shutdown
+        List<Job> remaining = new ArrayList<>();
+        mLock.lock();
+        try {
+            for (ArrayDeque<Job> queue : mQueues) {
+                remaining.addAll(queue);
+                queue.clear();
+            }
+            mStopped = true;
+        } finally {
+            mLock.unlock();
+        }
+        for (Job job : remaining) {
+            job.mCancelled = true;
+            job.onCancelled();
+        }
+        Log.d(TAG, "Worker stopped, " + remaining.size() + " jobs cancelled");
+    }
+
+    private void runStep(Job job) {
+        boolean complete = true;
+        Exception failure = null;
+        if (!job.mCancelled) {
+            try {
+                complete = job.step(mEngine);
+            } catch (Exception e) {
+                failure = e;
+            }
+        }
+
+        mLock.lock();
+        try {
+            mRunning = null;
+            if (!complete && failure == null && !job.mCancelled) {
+                // back to the front, jobs of a higher priority that arrived meanwhile go first
+                mQueues[job.mPriority.ordinal()].addFirst(job);
+                return;
+            }
+        } finally {
+            mLock.unlock();
+        }
+
+        if (failure != null) {
+            Log.e(TAG, "Job failed", failure);
+            job.onFailed(failure);
+        } else if (job.mCancelled) {
+            job.onCancelled();
+        } else {
+            job.onCompleted();
+        }
+    }
+}
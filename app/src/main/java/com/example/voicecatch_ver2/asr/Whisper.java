@@ -1,20 +1,29 @@
 package com.example.voicecatch_ver2.asr;
 
 import android.content.Context;
+import android.os.SystemClock;
 import android.util.Log;
 
+import com.example.voicecatch_ver2.asr.TranscriptionScheduler.OverflowPolicy;
+import com.example.voicecatch_ver2.asr.TranscriptionScheduler.Priority;
+import com.example.voicecatch_ver2.engine.ChunkStats;
+import com.example.voicecatch_ver2.engine.FileTranscription;
+import com.example.voicecatch_ver2.engine.LiveStream;
+import com.example.voicecatch_ver2.engine.ModelLoadStats;
 import com.example.voicecatch_ver2.engine.WhisperEngine;
 import com.example.voicecatch_ver2.engine.WhisperEngineJava;
 import com.example.voicecatch_ver2.engine.WhisperEngineNative;
+import com.example.voicecatch_ver2.utils.WhisperUtil;
 
 import java.io.File;
+import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.util.LinkedList;
-import java.util.Queue;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.atomic.AtomicBoolean;
-import java.util.concurrent.locks.Condition;
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReentrantLock;
 
 public class Whisper {
 
@@ -27,6 +36,7 @@ public class Whisper {
     public static final String MSG_PROCESSING = "Processing...";
     public static final String MSG_PROCESSING_DONE = "Processing done...!";
     public static final String MSG_FILE_NOT_FOUND = "Input file doesn't exist..!";
+    public static final String MSG_CANCELLED = "Transcription cancelled";
 
     public static final Action ACTION_TRANSCRIBE = Action.TRANSCRIBE;
     public static final Action ACTION_TRANSLATE = Action.TRANSLATE;
@@ -35,29 +45,41 @@ public class Whisper {
         TRANSLATE, TRANSCRIBE
     }
 
+    // Queue limits per priority: stale live audio is dropped, files beyond the limit are refused
+    private static final int LIVE_QUEUE_CAPACITY = 8;
+    private static final int FILE_QUEUE_CAPACITY = 4;
+    private static final int BACKLOG_QUEUE_CAPACITY = 32;
+
+    // Audio shared by consecutive chunks of a file, so words cut at a seam are transcribed whole
+    private static final int FILE_CHUNK_OVERLAP_MS = 2000;
+
+    // Tokens of transcribed file chunks, so a file transcribed again only runs new chunks.
+    // A chunk is a few hundred bytes; the bound keeps tens of hours of speech.
+    private static final String TRANSCRIPT_CACHE_DIR = "transcripts";
+    private static final long TRANSCRIPT_CACHE_BYTES = 16L * 1024 * 1024;
+
     private final AtomicBoolean mInProgress = new AtomicBoolean(false);
-    private final Queue<float[]> audioBufferQueue = new LinkedList<>();
 
     private final WhisperEngine mWhisperEngine;
+    private final TranscriptionScheduler mScheduler;
     private Action mAction;
     private String mWavFilePath;
     private WhisperListener mUpdateListener;
 
-    private final Lock taskLock = new ReentrantLock();
-    private final Condition hasTask = taskLock.newCondition();
-    private volatile boolean taskAvailable = false;
-
     public Whisper(Context context) {
 //        this.mWhisperEngine = new WhisperEngineJava(context);
         this.mWhisperEngine = new WhisperEngineNative(context);
+        mWhisperEngine.setChunkOverlap(FILE_CHUNK_OVERLAP_MS);
+        if (mWhisperEngine instanceof WhisperEngineNative) {
+            ((WhisperEngineNative) mWhisperEngine).setCache(
+                    new File(context.getCacheDir(), TRANSCRIPT_CACHE_DIR), TRANSCRIPT_CACHE_BYTES);
+        }
 
-        // Start thread for file transcription for file transcription
-        Thread threadTranscbFile = new Thread(this::transcribeFileLoop);
-        threadTranscbFile.start();
-
-        // Start thread for buffer transcription for live mic feed transcription
-        Thread threadTranscbBuffer = new Thread(this::transcribeBufferLoop);
-        threadTranscbBuffer.start();
+        // One worker runs file and live mic feed transcription, live buffers first
+        mScheduler = new TranscriptionScheduler(mWhisperEngine);
+        mScheduler.setLimit(Priority.LIVE, LIVE_QUEUE_CAPACITY, OverflowPolicy.DROP_OLDEST);
+        mScheduler.setLimit(Priority.FILE, FILE_QUEUE_CAPACITY, OverflowPolicy.REJECT_NEW);
+        mScheduler.setLimit(Priority.BACKLOG, BACKLOG_QUEUE_CAPACITY, OverflowPolicy.REJECT_NEW);
     }
 
     public void setListener(WhisperListener listener) {
@@ -77,10 +99,47 @@ public class Whisper {
         }
     }
 
+    // Load a model stored uncompressed in the APK without copying it out; falls back to
+    // modelPath when the engine cannot map assets or the asset is compressed
+    public void loadModelFromAsset(String assetPath, String modelPath, String vocabPath, boolean isMultilingual) {
+        if (mWhisperEngine instanceof WhisperEngineNative) {
+            try {
+                if (((WhisperEngineNative) mWhisperEngine).initializeFromAsset(assetPath, vocabPath, isMultilingual)) {
+                    return;
+                }
+            } catch (IOException e) {
+                Log.w(TAG, "Cannot map asset " + assetPath + ", loading " + modelPath, e);
+            }
+        }
+        loadModel(modelPath, vocabPath, isMultilingual);
+    }
+
     public void unloadModel() {
         mWhisperEngine.deinitialize();
     }
 
+    public boolean isModelLoaded() {
+        return mWhisperEngine.isInitialized();
+    }
+
+    // Timings of the last native model load, null for the Java engine
+    public ModelLoadStats getLoadStats() {
+        if (mWhisperEngine instanceof WhisperEngineNative) {
+            return ((WhisperEngineNative) mWhisperEngine).getLoadStats();
+        }
+        return null;
+    }
+
+    // Run one inference on silence so the first real transcription does not pay for the
+    // first Invoke (lazy kernel preparation, scratch buffers, cold pages of the model).
+    // Queued ahead of any file; the listener is not notified.
+    public CompletableFuture<TranscriptionResult> warmUp() {
+        if (!mWhisperEngine.isInitialized()) {
+            return failed(new IllegalStateException("Engine not initialized"));
+        }
+        return submit(new WarmUpJob());
+    }
+
     public void setAction(Action action) {
         this.mAction = action;
     }
@@ -89,78 +148,339 @@ public class Whisper {
         this.mWavFilePath = wavFile;
     }
 
-    public void start() {
+    // Transcribe the file set with setFilePath; the result goes to the listener and to the
+    // returned future, null when a transcription is already in progress
+    public CompletableFuture<TranscriptionResult> start() {
         if (!mInProgress.compareAndSet(false, true)) {
             Log.d(TAG, "Execution is already in progress...");
-            return;
+            return null;
         }
-        taskLock.lock();
-        try {
-            taskAvailable = true;
-            hasTask.signal();
-        } finally {
-            taskLock.unlock();
+        if (mAction != Action.TRANSCRIBE) {
+//            result = mWhisperEngine.getTranslation(mWavFilePath);
+            Log.d(TAG, "TRANSLATE feature is not implemented");
+            mInProgress.set(false);
+            return null;
+        }
+        CompletableFuture<TranscriptionResult> future = transcribeFile(mWavFilePath, Priority.FILE);
+        future.whenComplete((result, e) -> {
+            mInProgress.set(false);
+            report(result, e);
+        });
+        return future;
+    }
+
+    // Transcribe a file in the background, after any live or interactive work;
+    // the result goes to the listener like the others
+    public boolean enqueueBacklog(String wavFile) {
+        CompletableFuture<TranscriptionResult> future = transcribeFile(wavFile, Priority.BACKLOG);
+        future.whenComplete(this::report);
+        return !future.isDone() || !future.isCompletedExceptionally();
+    }
+
+    // Queue a file. The future completes on the worker thread with the text and timings, fails
+    // with FileNotFoundException or IllegalStateException when the job cannot start, and is
+    // cancelled when the job is cancelled or rejected by a full queue. Cancelling the future
+    // cancels the job.
+    public CompletableFuture<TranscriptionResult> transcribeFile(String wavFile, Priority priority) {
+        if (!mWhisperEngine.isInitialized() || wavFile == null) {
+            return failed(new IllegalStateException("Engine not initialized or file path not set"));
+        }
+        if (!new File(wavFile).exists()) {
+            return failed(new FileNotFoundException(wavFile));
+        }
+        return submit(new FileJob(wavFile, priority));
+    }
+
+    // Queue a buffer of at most 30 seconds ahead of any file; same contract as transcribeFile
+    public CompletableFuture<TranscriptionResult> transcribeBuffer(float[] samples) {
+        if (!mWhisperEngine.isInitialized()) {
+            return failed(new IllegalStateException("Engine not initialized"));
         }
+        return submit(new BufferJob(samples));
     }
 
+    // Live window for pushLive(), released with closeLiveStream()
+    public LiveStream openLiveStream() {
+        return mWhisperEngine.openStream();
+    }
+
+    // Drop advanceSamples from the start of the stream's window, add samples and decode the
+    // window, at LIVE priority. The result's audioSamples is the window length. Once the job has
+    // started its audio is in the stream, so the future completes even when the decode is
+    // interrupted; a cancelled future means the stream is unchanged.
+    public CompletableFuture<TranscriptionResult> pushLive(LiveStream stream, int advanceSamples, float[] samples) {
+        if (!mWhisperEngine.isInitialized()) {
+            return failed(new IllegalStateException("Engine not initialized"));
+        }
+        return submit(new StreamJob(stream, advanceSamples, samples));
+    }
+
+    // Close a stream on the worker thread, after any push still queued for it. The job cannot
+    // be cancelled or dropped, so the stream is never freed while a push is using it.
+    public void closeLiveStream(LiveStream stream) {
+        mScheduler.submit(new TranscriptionScheduler.Job(Priority.LIVE) {
+            @Override
+            protected boolean isCancellable() {
+                return false;
+            }
+
+            @Override
+            protected boolean step(WhisperEngine engine) {
+                stream.close();
+                return true;
+            }
+
+            @Override
+            protected void onCancelled() {
+                // shut down: called on the worker after its last step, or once it has stopped
+                stream.close();
+            }
+        });
+    }
+
+    private CompletableFuture<TranscriptionResult> submit(ResultJob job) {
+        job.mFuture.whenComplete((result, e) -> {
+            if (job.mFuture.isCancelled()) {
+                mScheduler.cancel(job);
+            }
+        });
+        mScheduler.submit(job);
+        return job.mFuture;
+    }
+
+    private static CompletableFuture<TranscriptionResult> failed(Exception e) {
+        CompletableFuture<TranscriptionResult> future = new CompletableFuture<>();
+        future.completeExceptionally(e);
+        return future;
+    }
+
+    // Listener side of a file result
+    private void report(TranscriptionResult result, Throwable e) {
+        if (e instanceof CompletionException && e.getCause() != null) {
+            e = e.getCause();
+        }
+        if (e == null) {
+            Log.d(TAG, "Transcription: " + result);
+            if (mWhisperEngine instanceof WhisperEngineNative) {
+                Log.d(TAG, "Engine stats:\n" + ((WhisperEngineNative) mWhisperEngine).getStats());
+            }
+            sendResult(result.text);
+            sendUpdate(MSG_PROCESSING_DONE);
+        } else if (e instanceof CancellationException) {
+            sendUpdate(MSG_CANCELLED);
+        } else if (e instanceof FileNotFoundException) {
+            sendUpdate(MSG_FILE_NOT_FOUND);
+        } else if (e instanceof IllegalStateException) {
+            sendUpdate(e.getMessage());
+        } else {
+            Log.e(TAG, "Error during transcription", e);
+            sendUpdate("Transcription failed: " + e.getMessage());
+        }
+    }
+
+    // Abort the file transcription in progress, the live buffer being transcribed and the
+    // buffers still queued; their futures are cancelled and the listener gets MSG_CANCELLED
+    // instead of a result
     public void stop() {
         mInProgress.set(false);
+        mScheduler.cancelAll(null);
+    }
+
+    // Stop the worker thread; the instance cannot be used afterwards
+    public void release() {
+        mInProgress.set(false);
+        mScheduler.shutdown();
     }
 
     public boolean isInProgress() {
         return mInProgress.get();
     }
 
-    private void transcribeFileLoop() {
-        while (!Thread.currentThread().isInterrupted()) {
-            taskLock.lock();
-            try {
-                while (!taskAvailable) {
-                    hasTask.await();
+    // A job that completes a future with its text and timings
+    private abstract static class ResultJob extends TranscriptionScheduler.Job {
+        final CompletableFuture<TranscriptionResult> mFuture = new CompletableFuture<>();
+        private final long mSubmitTime = SystemClock.elapsedRealtime();
+        private long mStartTime = 0;
+
+        ResultJob(Priority priority) {
+            super(priority);
+        }
+
+        // Called by every step, the first call starts the processing clock
+        void markStarted() {
+            if (mStartTime == 0) {
+                mStartTime = SystemClock.elapsedRealtime();
+            }
+        }
+
+        void complete(String text, int[] tokens, List<ChunkStats> chunkStats, long audioSamples) {
+            long now = SystemClock.elapsedRealtime();
+            mFuture.complete(new TranscriptionResult(text, tokens, chunkStats, audioSamples,
+                    mStartTime - mSubmitTime, now - mStartTime));
+        }
+
+        // Complete with the stats the engine kept for the buffer it just transcribed
+        void completeFromEngine(WhisperEngine engine, String text, long audioSamples) {
+            if (engine instanceof WhisperEngineNative) {
+                WhisperEngineNative nativeEngine = (WhisperEngineNative) engine;
+                complete(text, nativeEngine.getTokens(), nativeEngine.getChunkStats(), audioSamples);
+            } else {
+                complete(text, null, Collections.emptyList(), audioSamples);
+            }
+        }
+
+        @Override
+        protected void onCancelled() {
+            mFuture.cancel(false);
+        }
+
+        @Override
+        protected void onFailed(Exception e) {
+            mFuture.completeExceptionally(e);
+        }
+    }
+
+    // A file, transcribed one chunk per step so live buffers can run in between
+    private class FileJob extends ResultJob {
+        private final String mWavFile;
+        private final StringBuilder mText = new StringBuilder();
+        private FileTranscription mFile = null;
+
+        FileJob(String wavFile, Priority priority) {
+            super(priority);
+            mWavFile = wavFile;
+        }
+
+        @Override
+        protected boolean step(WhisperEngine engine) throws IOException {
+            markStarted();
+            if (mFile == null) {
+                sendUpdate(MSG_PROCESSING);
+                mFile = engine.openFile(mWavFile);
+                if (mFile == null) {
+                    throw new IOException("Cannot read " + mWavFile);
                 }
-                transcribeFile();
-                taskAvailable = false;
-            } catch (InterruptedException e) {
-                Thread.currentThread().interrupt();
-            } finally {
-                taskLock.unlock();
+            }
+            if (mFile.hasNextChunk()) {
+                mText.append(mFile.transcribeNextChunk());
+            }
+            return !mFile.hasNextChunk();
+        }
+
+        @Override
+        protected void onCompleted() {
+            List<ChunkStats> chunkStats = mFile.getChunkStats();
+            for (ChunkStats stats : chunkStats) {
+                Log.d(TAG, "Chunk " + stats);
+            }
+            int[] tokens = mFile.getTokens();
+            long audioSamples = mFile.getTotalSamples();
+            mFile.close();
+            complete(mText.toString(), tokens, chunkStats, audioSamples);
+        }
+
+        @Override
+        protected void onCancelled() {
+            close();
+            Log.d(TAG, "Transcription of " + mWavFile + " cancelled");
+            super.onCancelled();
+        }
+
+        @Override
+        protected void onFailed(Exception e) {
+            close();
+            super.onFailed(e);
+        }
+
+        private void close() {
+            if (mFile != null) {
+                mFile.close();
             }
         }
     }
 
-    private void transcribeFile() {
-        try {
-            if (mWhisperEngine.isInitialized() && mWavFilePath != null) {
-                File waveFile = new File(mWavFilePath);
-                if (waveFile.exists()) {
-                    long startTime = System.currentTimeMillis();
-                    sendUpdate(MSG_PROCESSING);
-
-                    String result = null;
-                    synchronized (mWhisperEngine) {
-                        if (mAction == Action.TRANSCRIBE) {
-                            result = mWhisperEngine.transcribeFile(mWavFilePath);
-                        } else {
-//                            result = mWhisperEngine.getTranslation(mWavFilePath);
-                            Log.d(TAG, "TRANSLATE feature is not implemented");
-                        }
-                    }
-                    sendResult(result);
-
-                    long timeTaken = System.currentTimeMillis() - startTime;
-                    Log.d(TAG, "Time Taken for transcription: " + timeTaken + "ms");
-                    sendUpdate(MSG_PROCESSING_DONE);
-                } else {
-                    sendUpdate(MSG_FILE_NOT_FOUND);
+    // A buffer, transcribed in a single step
+    private class BufferJob extends ResultJob {
+        private final float[] mSamples;
+
+        BufferJob(float[] samples) {
+            super(Priority.LIVE);
+            mSamples = samples;
+        }
+
+        @Override
+        protected boolean step(WhisperEngine engine) {
+            markStarted();
+            String text = engine.transcribeBuffer(mSamples);
+            if (!isCancelled()) {
+                completeFromEngine(engine, text, mSamples.length);
+            }
+            return true;
+        }
+
+        @Override
+        protected void onCompleted() {
+            // the future was completed in step(), while the engine still held this buffer's stats
+        }
+    }
+
+    // One second of silence with the VAD off, which would otherwise skip it; the encoder
+    // input is padded to 30 seconds either way, so this runs the full model once
+    private static class WarmUpJob extends ResultJob {
+        WarmUpJob() {
+            super(Priority.LIVE);
+        }
+
+        @Override
+        protected boolean step(WhisperEngine engine) {
+            markStarted();
+            float[] silence = new float[WhisperUtil.WHISPER_SAMPLE_RATE];
+            if (engine instanceof WhisperEngineNative) {
+                WhisperEngineNative nativeEngine = (WhisperEngineNative) engine;
+                boolean vadEnabled = nativeEngine.isVadEnabled();
+                nativeEngine.setVadEnabled(false);
+                try {
+                    completeFromEngine(engine, engine.transcribeBuffer(silence), silence.length);
+                } finally {
+                    nativeEngine.setVadEnabled(vadEnabled);
                 }
+                // the stage histograms are for real transcriptions
+                nativeEngine.resetStats();
             } else {
-                sendUpdate("Engine not initialized or file path not set");
+                completeFromEngine(engine, engine.transcribeBuffer(silence), silence.length);
             }
-        } catch (Exception e) {
-            Log.e(TAG, "Error during transcription", e);
-            sendUpdate("Transcription failed: " + e.getMessage());
-        } finally {
-            mInProgress.set(false);
+            return true;
+        }
+
+        @Override
+        protected void onCompleted() {
+            // completed in step(), like a buffer
+        }
+    }
+
+    // One hop of a live stream
+    private class StreamJob extends ResultJob {
+        private final LiveStream mStream;
+        private final int mAdvance;
+        private final float[] mSamples;
+
+        StreamJob(LiveStream stream, int advance, float[] samples) {
+            super(Priority.LIVE);
+            mStream = stream;
+            mAdvance = advance;
+            mSamples = samples;
+        }
+
+        @Override
+        protected boolean step(WhisperEngine engine) {
+            markStarted();
+            if (mAdvance > 0) {
+                mStream.advance(mAdvance);
+            }
+            String text = mStream.push(mSamples);
+            // completed even when interrupted: the stream has the audio either way
+            completeFromEngine(engine, text, mStream.getWindowSamples());
+            return true;
         }
     }
 
@@ -177,36 +497,9 @@ public class Whisper {
     }
 
     /////////////////////// Live MIC feed transcription calls /////////////////////////////////
-    private void transcribeBufferLoop() {
-        while (!Thread.currentThread().isInterrupted()) {
-            float[] samples = readBuffer();
-            if (samples != null) {
-                synchronized (mWhisperEngine) {
-                    String result = mWhisperEngine.transcribeBuffer(samples);
-                    sendResult(result);
-                }
-            }
-        }
-    }
-
+    // Each buffer is transcribed on its own and stale buffers are dropped, not reported, when the
+    // live queue overflows; LiveSession streams ordered transcripts of the same feed instead
     public void writeBuffer(float[] samples) {
-        synchronized (audioBufferQueue) {
-            audioBufferQueue.add(samples);
-            audioBufferQueue.notify();
-        }
-    }
-
-    private float[] readBuffer() {
-        synchronized (audioBufferQueue) {
-            while (audioBufferQueue.isEmpty()) {
-                try {
-                    audioBufferQueue.wait();
-                } catch (InterruptedException e) {
-                    Thread.currentThread().interrupt();
-                    return null;
-                }
-            }
-            return audioBufferQueue.poll();
-        }
+        transcribeBuffer(samples).thenAccept(result -> sendResult(result.text));
     }
 }
@@ -0,0 +1,187 @@
+package com.example.voicecatch_ver2.asr;
+
+import android.content.Context;
+import android.content.res.AssetManager;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.example.voicecatch_ver2.engine.ModelLoadStats;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.CompletableFuture;
+
+// Process-wide Whisper instance, prepared off the main thread: the bundled files are copied
+// out, the model is loaded and one warm-up inference runs before the instance is handed out,
+// so the first transcription runs at steady-state latency
+public class WhisperLoader {
+    private static final String TAG = "WhisperLoader";
+    private static final String ASSET_FOLDER = "whisper";
+    private static final String[] EXTENSIONS_TO_COPY = {"tflite", "bin", "wav"};
+
+    public enum State {
+        IDLE,
+        LOADING,     // copying assets and loading the model
+        WARMING_UP,  // first inference
+        READY,
+        FAILED
+    }
+
+    // Cold start of the model, in milliseconds from start()
+    public static class Timings {
+        public final long copyMs;                // bundled files to the data folder, 0 once copied
+        public final long loadMs;                // engine and model, see loadStats for the stages
+        public final long warmUpMs;              // first inference, including the queue time
+        public final long totalMs;
+        public final ModelLoadStats loadStats;   // null for the Java engine
+        public final TranscriptionResult warmUp; // null when the warm-up failed
+
+        Timings(long copyMs, long loadMs, long warmUpMs, long totalMs, ModelLoadStats loadStats,
+                TranscriptionResult warmUp) {
+            this.copyMs = copyMs;
+            this.loadMs = loadMs;
+            this.warmUpMs = warmUpMs;
+            this.totalMs = totalMs;
+            this.loadStats = loadStats;
+            this.warmUp = warmUp;
+        }
+
+        @Override
+        public String toString() {
+            return "cold start " + totalMs + " ms: copy " + copyMs + " ms, load " + loadMs + " ms, warm-up "
+                    + warmUpMs + " ms" + (warmUp != null ? " (inference " + warmUp.getInferenceTimeUs() / 1000 + " ms)" : "")
+                    + (loadStats != null ? "; " + loadStats : "");
+        }
+    }
+
+    private final Context mContext;
+    private final String mModelName;
+    private final String mVocabName;
+    private final boolean mIsMultilingual;
+    private final CompletableFuture<Whisper> mReady = new CompletableFuture<>();
+    private volatile State mState = State.IDLE;
+    private volatile Timings mTimings = null;
+
+    // modelName and vocabName are files of the "whisper" asset folder
+    public WhisperLoader(Context context, String modelName, String vocabName, boolean isMultilingual) {
+        mContext = context.getApplicationContext();
+        mModelName = modelName;
+        mVocabName = vocabName;
+        mIsMultilingual = isMultilingual;
+    }
+
+    // Start loading on a background thread; later calls do nothing
+    public synchronized void start() {
+        if (mState != State.IDLE) {
+            return;
+        }
+        mState = State.LOADING;
+        Thread thread = new Thread(this::load, TAG);
+        thread.setPriority(Thread.NORM_PRIORITY - 1);
+        thread.start();
+    }
+
+    // Completes with the loaded and warmed up instance, or fails when the model cannot be loaded
+    public CompletableFuture<Whisper> getReady() {
+        return mReady;
+    }
+
+    public State getState() {
+        return mState;
+    }
+
+    // Null until the instance is ready
+    public Timings getTimings() {
+        return mTimings;
+    }
+
+    public String getModelName() {
+        return mModelName;
+    }
+
+    private void load() {
+        final long startTime = SystemClock.elapsedRealtime();
+        try {
+            File dataFolder = mContext.getExternalFilesDir(null);
+            copyAssets(mContext, dataFolder, EXTENSIONS_TO_COPY);
+            final long copyTime = SystemClock.elapsedRealtime();
+
+            // mapped from the APK when stored uncompressed, otherwise read from the copy
+            Whisper whisper = new Whisper(mContext);
+            whisper.loadModelFromAsset(ASSET_FOLDER + File.separator + mModelName,
+                    new File(dataFolder, mModelName).getAbsolutePath(),
+                    new File(dataFolder, mVocabName).getAbsolutePath(), mIsMultilingual);
+            final long loadTime = SystemClock.elapsedRealtime();
+            if (!whisper.isModelLoaded()) {
+                whisper.release();
+                throw new IllegalStateException("Cannot load " + mModelName);
+            }
+
+            mState = State.WARMING_UP;
+            TranscriptionResult warmUp = null;
+            try {
+                warmUp = whisper.warmUp().join();
+            } catch (RuntimeException e) {
+                // the model works without it, only the first transcription is slower
+                Log.w(TAG, "Warm-up failed", e);
+            }
+            final long endTime = SystemClock.elapsedRealtime();
+
+            mTimings = new Timings(copyTime - startTime, loadTime - copyTime, endTime - loadTime,
+                    endTime - startTime, whisper.getLoadStats(), warmUp);
+            Log.i(TAG, mModelName + " " + mTimings);
+            mState = State.READY;
+            mReady.complete(whisper);
+        } catch (RuntimeException e) {
+            Log.e(TAG, "Whisper initialization failed", e);
+            mState = State.FAILED;
+            mReady.completeExceptionally(e);
+        }
+    }
+
+    // Copy the files of the asset folder with the given extensions, those already copied are kept
+    private static void copyAssets(Context context, File destFolder, String[] extensions) {
+        AssetManager assetManager = context.getAssets();
+        try {
+            String[] assetFiles = assetManager.list(ASSET_FOLDER);
+            if (assetFiles == null || assetFiles.length == 0) {
+                Log.e(TAG, "Asset folder '" + ASSET_FOLDER + "' not found or is empty.");
+                return;
+            }
+
+            for (String assetFileName : assetFiles) {
+                for (String extension : extensions) {
+                    if (!assetFileName.endsWith("." + extension)) {
+                        continue;
+                    }
+                    File outFile = new File(destFolder, assetFileName);
+                    if (outFile.exists()) {
+                        Log.d(TAG, assetFileName + " already exists. Skipping.");
+                        break;
+                    }
+
+                    // renamed once complete, so a copy cut short by the process dying is not kept
+                    File tmpFile = new File(destFolder, assetFileName + ".tmp");
+                    try (InputStream inputStream = assetManager.open(ASSET_FOLDER + File.separator + assetFileName);
+                         OutputStream outputStream = new FileOutputStream(tmpFile)) {
+                        byte[] buffer = new byte[64 * 1024];
+                        int bytesRead;
+                        while ((bytesRead = inputStream.read(buffer)) != -1) {
+                            outputStream.write(buffer, 0, bytesRead);
+                        }
+                    }
+                    if (!tmpFile.renameTo(outFile)) {
+                        throw new IOException("Cannot rename " + tmpFile);
+                    }
+                    Log.d(TAG, "Copied " + assetFileName + " to " + destFolder.getAbsolutePath());
+                    break;
+                }
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Cannot copy assets", e);
+        }
+    }
+}
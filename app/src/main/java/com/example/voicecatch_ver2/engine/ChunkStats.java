@@ -0,0 +1,46 @@
+package com.example.voicecatch_ver2.engine;
+
+import java.util.ArrayList;
+import java.util.List;
+
+// Timings of one 30 second chunk of a native transcription, in microseconds.
+// A buffer is transcribed as a single chunk.
+public class ChunkStats {
+    private static final int FIELDS = 9;
+
+    public final long startSample;
+    public final long numSamples;
+    public final long skippedSamples;  // silence trimmed or skipped before inference
+    public final long melTimeUs;       // mel spectrogram, computed ahead of inference
+    public final long waitTimeUs;      // time inference waited for the mel of this chunk
+    public final long inferenceTimeUs; // interpreter Invoke
+    public final long decodeTimeUs;    // token ids to text
+    public final long overlapSamples;  // audio shared with the previous chunk, whose tokens are not repeated
+    public final boolean cacheHit;     // tokens read from the transcript cache, no mel or inference
+
+    ChunkStats(long[] values, int offset) {
+        startSample = values[offset];
+        numSamples = values[offset + 1];
+        skippedSamples = values[offset + 2];
+        melTimeUs = values[offset + 3];
+        waitTimeUs = values[offset + 4];
+        inferenceTimeUs = values[offset + 5];
+        decodeTimeUs = values[offset + 6];
+        overlapSamples = values[offset + 7];
+        cacheHit = values[offset + 8] != 0;
+    }
+
+    static List<ChunkStats> fromArray(long[] values) {
+        List<ChunkStats> stats = new ArrayList<>(values.length / FIELDS);
+        for (int offset = 0; offset + FIELDS <= values.length; offset += FIELDS) {
+            stats.add(new ChunkStats(values, offset));
+        }
+        return stats;
+    }
+
+    @Override
+    public String toString() {
+        return "[" + startSample + ", +" + numSamples + "] overlap " + overlapSamples + ", skipped " + skippedSamples + ", mel " + melTimeUs / 1000 + " ms, wait "
+                + waitTimeUs / 1000 + " ms, inference " + inferenceTimeUs / 1000 + " ms, decode " + decodeTimeUs / 1000 + " ms" + (cacheHit ? ", cached" : "");
+    }
+}
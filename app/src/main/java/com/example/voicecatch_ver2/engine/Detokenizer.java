@@ -0,0 +1,47 @@
+package com.example.voicecatch_ver2.engine;
+
+import java.nio.charset.StandardCharsets;
+
+// Token ids to text on the Java side, from the flat vocab of the native engine.
+// Token bytes are joined first and decoded to UTF-8 once, so Hangul syllables that the
+// byte-level BPE split across tokens are reassembled.
+public class Detokenizer {
+    private final byte[] mBytes;
+    private final int[] mOffsets;
+
+    Detokenizer(byte[] bytes, int[] offsets) {
+        mBytes = bytes;
+        mOffsets = offsets;
+    }
+
+    public int size() {
+        return mOffsets.length - 1;
+    }
+
+    public String decode(int[] tokens) {
+        return decode(tokens, 0, tokens.length);
+    }
+
+    // Decode tokens[from, to); ids outside the vocab are ignored
+    public String decode(int[] tokens, int from, int to) {
+        int length = 0;
+        for (int i = from; i < to; i++) {
+            int token = tokens[i];
+            if (token >= 0 && token < size()) {
+                length += mOffsets[token + 1] - mOffsets[token];
+            }
+        }
+
+        byte[] text = new byte[length];
+        int pos = 0;
+        for (int i = from; i < to; i++) {
+            int token = tokens[i];
+            if (token >= 0 && token < size()) {
+                int n = mOffsets[token + 1] - mOffsets[token];
+                System.arraycopy(mBytes, mOffsets[token], text, pos, n);
+                pos += n;
+            }
+        }
+        return new String(text, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,86 @@
+package com.example.voicecatch_ver2.engine;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+// Per-stage latency histograms of a native engine (see trace.h). Bucket b counts latencies
+// in [2^b, 2^(b+1)) microseconds, so percentiles are accurate to a factor of two.
+public class EngineStats {
+    // Same order as whisper_stage
+    public static final String[] STAGES = {"segment", "mel", "wait", "invoke", "decode"};
+    private static final int BUCKETS = 24;
+
+    public static class Stage {
+        public final String name;
+        public final long count;
+        public final long sumUs;
+        public final long maxUs;
+        private final long[] buckets;
+
+        Stage(String name, long[] values, int offset) {
+            this.name = name;
+            count = values[offset];
+            sumUs = values[offset + 1];
+            maxUs = values[offset + 2];
+            buckets = new long[BUCKETS];
+            System.arraycopy(values, offset + 3, buckets, 0, BUCKETS);
+        }
+
+        public long getMeanUs() {
+            return count > 0 ? sumUs / count : 0;
+        }
+
+        // Upper bound of the bucket holding the given percentile (0..100)
+        public long getPercentileUs(double percentile) {
+            long rank = (long) Math.ceil(count * percentile / 100.0);
+            long seen = 0;
+            for (int b = 0; b < BUCKETS; b++) {
+                seen += buckets[b];
+                if (seen >= rank && seen > 0) {
+                    return Math.min(1L << (b + 1), maxUs);
+                }
+            }
+            return maxUs;
+        }
+
+        @Override
+        public String toString() {
+            return name + ": n=" + count + " mean=" + getMeanUs() / 1000 + "ms p50="
+                    + getPercentileUs(50) / 1000 + "ms p90=" + getPercentileUs(90) / 1000
+                    + "ms max=" + maxUs / 1000 + "ms";
+        }
+    }
+
+    private final List<Stage> mStages;
+
+    EngineStats(long[] values) {
+        List<Stage> stages = new ArrayList<>(STAGES.length);
+        int stride = 3 + BUCKETS;
+        for (int i = 0; i < STAGES.length && (i + 1) * stride <= values.length; i++) {
+            stages.add(new Stage(STAGES[i], values, i * stride));
+        }
+        mStages = Collections.unmodifiableList(stages);
+    }
+
+    public List<Stage> getStages() {
+        return mStages;
+    }
+
+    public Stage getStage(String name) {
+        for (Stage stage : mStages) {
+            if (stage.name.equals(name)) return stage;
+        }
+        return null;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        for (Stage stage : mStages) {
+            if (sb.length() > 0) sb.append('\n');
+            sb.append(stage);
+        }
+        return sb.toString();
+    }
+}
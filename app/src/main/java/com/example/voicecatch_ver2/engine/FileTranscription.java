@@ -0,0 +1,24 @@
+package com.example.voicecatch_ver2.engine;
+
+import java.util.List;
+
+// A file transcribed one chunk at a time, so other work can run on the engine between
+// two chunks. Must be closed, also when it is abandoned before the last chunk.
+public interface FileTranscription extends AutoCloseable {
+    boolean hasNextChunk();
+
+    // Text of the next chunk
+    String transcribeNextChunk();
+
+    // Timings of the chunks transcribed so far (empty when the engine does not report them)
+    List<ChunkStats> getChunkStats();
+
+    // Text token ids of the chunks transcribed so far (empty when the engine does not report them)
+    int[] getTokens();
+
+    // Length of the recording in samples, 0 when the engine does not report it
+    long getTotalSamples();
+
+    @Override
+    void close();
+}
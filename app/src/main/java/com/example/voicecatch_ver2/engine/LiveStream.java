@@ -0,0 +1,18 @@
+package com.example.voicecatch_ver2.engine;
+
+// Live audio decoded as a growing window of up to 30 seconds. Each push adds audio and
+// decodes the whole window, advance() drops audio from its start. Must be closed.
+public interface LiveStream extends AutoCloseable {
+    // Add samples and return the text of the whole window
+    String push(float[] samples);
+
+    // Drop up to numSamples from the start of the window; returns the samples dropped, which may
+    // be rounded down (to whole mel frames for the native engine)
+    int advance(int numSamples);
+
+    // Samples of audio in the window
+    int getWindowSamples();
+
+    @Override
+    void close();
+}
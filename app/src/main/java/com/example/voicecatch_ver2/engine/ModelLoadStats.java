@@ -0,0 +1,37 @@
+package com.example.voicecatch_ver2.engine;
+
+// Timings of the last native model load, in microseconds
+public class ModelLoadStats {
+    public final long mapTimeUs;         // open and mmap the model file
+    public final long buildTimeUs;       // build the flatbuffer model
+    public final long interpreterTimeUs; // build the interpreter and allocate tensors
+    public final long totalTimeUs;
+    public final long modelBytes;
+    public final boolean sharedModel;    // the mapped model was reused from another engine
+    public final long delegateTimeUs;    // apply the XNNPACK delegate, including weight packing
+    public final boolean xnnpack;        // the XNNPACK delegate is applied
+    public final boolean sharedWeights;  // packed weights were reused from another engine
+    public final int numThreads;         // interpreter and delegate threads, fixed at load
+
+    ModelLoadStats(long[] values) {
+        mapTimeUs = values[0];
+        buildTimeUs = values[1];
+        interpreterTimeUs = values[2];
+        totalTimeUs = values[3];
+        modelBytes = values[4];
+        sharedModel = values[5] != 0;
+        delegateTimeUs = values[6];
+        xnnpack = values[7] != 0;
+        sharedWeights = values[8] != 0;
+        numThreads = (int) values[9];
+    }
+
+    @Override
+    public String toString() {
+        return "map " + mapTimeUs / 1000 + " ms, build " + buildTimeUs / 1000
+                + " ms, interpreter " + interpreterTimeUs / 1000 + " ms, xnnpack " + delegateTimeUs / 1000
+                + " ms" + (xnnpack ? (sharedWeights ? " (shared weights)" : "") : " (failed)")
+                + ", total " + totalTimeUs / 1000 + " ms, " + modelBytes / 1024 + " KB"
+                + (sharedModel ? " (shared)" : "") + ", " + numThreads + " threads";
+    }
+}
@@ -0,0 +1,51 @@
+package com.example.voicecatch_ver2.engine;
+
+import java.util.List;
+
+// Seam of two overlapping chunks, same alignment as whisper_overlap_tokens on the native side:
+// the tail of the previous chunk's tokens and the head of the next chunk's are aligned on their
+// longest common run, and the tokens of next up to where previous ends are duplicates. Only the
+// tokens the shared audio can hold are searched, so a phrase repeated elsewhere is not the seam.
+final class TokenOverlap {
+    private static final int SEARCH_TOKENS = 48;
+    private static final int MIN_TOKENS = 2;
+    private static final int SLACK_TOKENS = 4;
+
+    private TokenOverlap() {
+    }
+
+    // Leading tokens of next to drop, 0 when no run of at least MIN_TOKENS matches within the
+    // overlapFraction (shared samples over chunk samples) of the tokens at the seam
+    static int duplicates(List<Integer> previous, List<Integer> next, float overlapFraction) {
+        // speech is not spread evenly, allow half as many tokens again as the fraction gives
+        int limit = Math.min(SEARCH_TOKENS,
+                (int) Math.ceil(Math.max(overlapFraction, 0f) * next.size() * 1.5f) + SLACK_TOKENS);
+        int nTail = Math.min(previous.size(), limit);
+        int nHead = Math.min(next.size(), limit);
+        List<Integer> tail = previous.subList(previous.size() - nTail, previous.size());
+
+        // run[i][j]: length of the common run ending at tail[i - 1] and next[j - 1]
+        int[][] run = new int[nTail + 1][nHead + 1];
+        int best = 0, bestTailEnd = 0, bestNextEnd = 0;
+        for (int i = 1; i <= nTail; i++) {
+            for (int j = 1; j <= nHead; j++) {
+                if (!tail.get(i - 1).equals(next.get(j - 1))) {
+                    continue;
+                }
+                run[i][j] = run[i - 1][j - 1] + 1;
+                // on a tie the run latest in previous wins, it is closest to the seam
+                if (run[i][j] > best || (run[i][j] == best && i > bestTailEnd)) {
+                    best = run[i][j];
+                    bestTailEnd = i;
+                    bestNextEnd = j;
+                }
+            }
+        }
+        if (best < MIN_TOKENS) {
+            return 0;
+        }
+
+        // tokens of previous after the run are the ones of next after it as well
+        return Math.min(nHead, bestNextEnd + (nTail - bestTailEnd));
+    }
+}
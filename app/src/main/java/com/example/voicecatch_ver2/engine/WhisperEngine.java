@@ -1,6 +1,11 @@
 package com.example.voicecatch_ver2.engine;
 
+import com.example.voicecatch_ver2.utils.WhisperUtil;
+
 import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
 
 public interface WhisperEngine {
     boolean isInitialized();
@@ -8,4 +13,92 @@ public interface WhisperEngine {
     void deinitialize();
     String transcribeFile(String wavePath);
     String transcribeBuffer(float[] samples);
+
+    // Audio shared by consecutive chunks of a file, 0 for none. The words at each seam are
+    // transcribed twice and the repeated tokens are dropped by aligning the two chunks.
+    void setChunkOverlap(int overlapMs);
+
+    // Transcribe a file chunk by chunk. Engines that cannot split a file transcribe it
+    // whole as a single chunk.
+    default FileTranscription openFile(String wavePath) {
+        return new FileTranscription() {
+            private boolean mDone = false;
+
+            @Override
+            public boolean hasNextChunk() {
+                return !mDone;
+            }
+
+            @Override
+            public String transcribeNextChunk() {
+                mDone = true;
+                return transcribeFile(wavePath);
+            }
+
+            @Override
+            public List<ChunkStats> getChunkStats() {
+                return Collections.emptyList();
+            }
+
+            @Override
+            public int[] getTokens() {
+                return new int[0];
+            }
+
+            @Override
+            public long getTotalSamples() {
+                return 0;
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+    }
+
+    // Decode live audio as a growing window. Engines without a native stream keep the window
+    // here and transcribe it whole on every push.
+    default LiveStream openStream() {
+        return new LiveStream() {
+            private static final int MAX_SAMPLES = WhisperUtil.WHISPER_SAMPLE_RATE * WhisperUtil.WHISPER_CHUNK_SIZE;
+            private float[] mWindow = new float[0];
+
+            @Override
+            public String push(float[] samples) {
+                // the oldest audio goes when the window would exceed 30 seconds
+                int take = Math.min(samples.length, MAX_SAMPLES);
+                int keep = Math.min(mWindow.length, MAX_SAMPLES - take);
+                float[] window = new float[keep + take];
+                System.arraycopy(mWindow, mWindow.length - keep, window, 0, keep);
+                System.arraycopy(samples, samples.length - take, window, keep, take);
+                mWindow = window;
+                return transcribeBuffer(mWindow);
+            }
+
+            @Override
+            public int advance(int numSamples) {
+                int n = Math.max(0, Math.min(numSamples, mWindow.length));
+                mWindow = Arrays.copyOfRange(mWindow, n, mWindow.length);
+                return n;
+            }
+
+            @Override
+            public int getWindowSamples() {
+                return mWindow.length;
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+    }
+
+    // Abort the transcription in progress; safe to call from any thread.
+    // The aborted call returns early with the text decoded so far.
+    void cancel();
+    // Clear a cancel() before the next transcription. Transcriptions do not clear it themselves,
+    // so a cancel() that lands just before one starts still stops it.
+    void clearCancel();
+    // Whether the last transcription was aborted by cancel()
+    boolean isCancelled();
 }
@@ -22,6 +22,8 @@ import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
 
 public class WhisperEngineJava implements WhisperEngine {
     private final String TAG = "WhisperEngineJava";
@@ -29,7 +31,9 @@ public class WhisperEngineJava implements WhisperEngine {
 
     private final Context mContext;
     private boolean mIsInitialized = false;
-    private Interpreter mInterpreter = null;
+    private volatile Interpreter mInterpreter = null;
+    private volatile boolean mCancelled = false;
+    private int mOverlapSamples = 0;
 //    private GpuDelegate gpuDelegate;
 
     public WhisperEngineJava(Context context) {
@@ -69,18 +73,71 @@ public class WhisperEngineJava implements WhisperEngine {
         }
     }
 
+    @Override
+    public void cancel() {
+        mCancelled = true;
+        Interpreter interpreter = mInterpreter;
+        if (interpreter != null) {
+            interpreter.setCancelled(true);
+        }
+    }
+
+    @Override
+    public void clearCancel() {
+        mCancelled = false;
+        Interpreter interpreter = mInterpreter;
+        if (interpreter != null) {
+            interpreter.setCancelled(false);
+        }
+    }
+
+    @Override
+    public boolean isCancelled() {
+        return mCancelled;
+    }
+
+    @Override
+    public void setChunkOverlap(int overlapMs) {
+        int maxSamples = WhisperUtil.WHISPER_SAMPLE_RATE * WhisperUtil.WHISPER_CHUNK_SIZE / 2;
+        mOverlapSamples = Math.min(Math.max(overlapMs, 0) * (WhisperUtil.WHISPER_SAMPLE_RATE / 1000), maxSamples);
+    }
+
     @Override
     public String transcribeFile(String wavePath) {
-        // Calculate Mel spectrogram
-        Log.d(TAG, "Calculating Mel spectrogram...");
-        float[] melSpectrogram = getMelSpectrogram(wavePath);
-        Log.d(TAG, "Mel spectrogram is calculated...!");
+        // Get samples in PCM_FLOAT format
+        float[] samples = WaveUtil.getSamples(wavePath);
+
+        // 30 second chunks, each one starting mOverlapSamples before the end of the previous
+        int chunkSamples = WhisperUtil.WHISPER_SAMPLE_RATE * WhisperUtil.WHISPER_CHUNK_SIZE;
+        int stride = chunkSamples - mOverlapSamples;
+        List<Integer> tokens = new ArrayList<>();
+        for (int start = 0; start == 0 || start + mOverlapSamples < samples.length; start += stride) {
+            // Calculate Mel spectrogram
+            Log.d(TAG, "Calculating Mel spectrogram...");
+            float[] melSpectrogram = getMelSpectrogram(samples, start, chunkSamples);
+            Log.d(TAG, "Mel spectrogram is calculated...!");
+            if (mCancelled) {
+                break;
+            }
 
-        // Perform inference
-        String result = runInference(melSpectrogram);
-        Log.d(TAG, "Inference is executed...!");
+            // Perform inference
+            List<Integer> chunkTokens = runInference(melSpectrogram);
+            Log.d(TAG, "Inference is executed...!");
 
-        return result;
+            // drop the tokens of the audio the previous chunk already transcribed
+            int duplicates = start > 0 && mOverlapSamples > 0
+                    ? TokenOverlap.duplicates(tokens, chunkTokens, (float) mOverlapSamples / chunkSamples) : 0;
+            tokens.addAll(chunkTokens.subList(duplicates, chunkTokens.size()));
+            if (mCancelled) {
+                break;
+            }
+        }
+
+        StringBuilder result = new StringBuilder();
+        for (int token : tokens) {
+            result.append(mWhisperUtil.getWordFromToken(token));
+        }
+        return result.toString();
     }
 
     @Override
@@ -96,10 +153,13 @@ public class WhisperEngineJava implements WhisperEngine {
         long declaredLength = fileChannel.size();
         ByteBuffer tfliteModel = fileChannel.map(FileChannel.MapMode.READ_ONLY, startOffset, declaredLength);
 
-        // Set the number of threads for inference
+        // Set the number of threads for inference, fixed for the life of the interpreter.
+        // XNNPACK packs the weights once here instead of on the first run.
         Interpreter.Options options = new Interpreter.Options();
         options.setNumThreads(Runtime.getRuntime().availableProcessors());
-//        options.setUseXNNPACK(true);
+        options.setUseXNNPACK(true);
+        // Allows cancel() to stop a running inference
+        options.setCancellable(true);
 
 //        boolean isNNAPI = true;
 //        if (isNNAPI) {
@@ -142,20 +202,19 @@ public class WhisperEngineJava implements WhisperEngine {
         mInterpreter = new Interpreter(tfliteModel, options);
     }
 
-    private float[] getMelSpectrogram(String wavePath) {
-        // Get samples in PCM_FLOAT format
-        float[] samples = WaveUtil.getSamples(wavePath);
-
+    // Mel spectrogram of samples [start, start + length), padded with silence to 30 seconds
+    private float[] getMelSpectrogram(float[] samples, int start, int length) {
         int fixedInputSize = WhisperUtil.WHISPER_SAMPLE_RATE * WhisperUtil.WHISPER_CHUNK_SIZE;
         float[] inputSamples = new float[fixedInputSize];
-        int copyLength = Math.min(samples.length, fixedInputSize);
-        System.arraycopy(samples, 0, inputSamples, 0, copyLength);
+        int copyLength = Math.max(0, Math.min(Math.min(length, fixedInputSize), samples.length - start));
+        System.arraycopy(samples, start, inputSamples, 0, copyLength);
 
         int cores = Runtime.getRuntime().availableProcessors();
         return mWhisperUtil.getMelSpectrogram(inputSamples, inputSamples.length, cores);
     }
 
-    private String runInference(float[] inputData) {
+    // Text tokens of the output, up to the end of text
+    private List<Integer> runInference(float[] inputData) {
         // Create input tensor
         Tensor inputTensor = mInterpreter.getInputTensor(0);
         TensorBuffer inputBuffer = TensorBuffer.createFixedSize(inputTensor.shape(), inputTensor.dataType());
@@ -186,23 +245,31 @@ public class WhisperEngineJava implements WhisperEngine {
 
 //        Log.d(TAG, "Before inference...");
         // Run inference
-        mInterpreter.run(inputBuffer.getBuffer(), outputBuffer.getBuffer());
+        try {
+            mInterpreter.run(inputBuffer.getBuffer(), outputBuffer.getBuffer());
+        } catch (IllegalArgumentException e) {
+            // a cancelled run fails with "Client requested cancel during Invoke()"
+            if (mCancelled) {
+                Log.d(TAG, "Inference cancelled");
+                return new ArrayList<>();
+            }
+            throw e;
+        }
 //        Log.d(TAG, "After inference...");
 
         // Retrieve the results
         int outputLen = outputBuffer.getIntArray().length;
         Log.d(TAG, "output_len: " + outputLen);
-        StringBuilder result = new StringBuilder();
+        List<Integer> tokens = new ArrayList<>();
         for (int i = 0; i < outputLen; i++) {
             int token = outputBuffer.getBuffer().getInt();
             if (token == mWhisperUtil.getTokenEOT())
                 break;
 
-            // Get word for token and Skip additional token
+            // Keep text tokens and Skip additional token
             if (token < mWhisperUtil.getTokenEOT()) {
-                String word = mWhisperUtil.getWordFromToken(token);
-                //Log.d(TAG, "Adding token: " + token + ", word: " + word);
-                result.append(word);
+                //Log.d(TAG, "Adding token: " + token + ", word: " + mWhisperUtil.getWordFromToken(token));
+                tokens.add(token);
             } else {
                 if (token == mWhisperUtil.getTokenTranscribe())
                     Log.d(TAG, "It is Transcription...");
@@ -215,7 +282,7 @@ public class WhisperEngineJava implements WhisperEngine {
             }
         }
 
-        return result.toString();
+        return tokens;
     }
 
     private void printTensorDump(String message, Tensor tensor) {
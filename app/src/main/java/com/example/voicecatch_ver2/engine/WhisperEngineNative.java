@@ -1,14 +1,23 @@
 package com.example.voicecatch_ver2.engine;
 
 import android.content.Context;
+import android.content.res.AssetFileDescriptor;
 import android.util.Log;
 
+import java.io.File;
+import java.io.IOException;
+import java.nio.Buffer;
+import java.nio.FloatBuffer;
+import java.nio.ShortBuffer;
+import java.util.List;
+
 public class WhisperEngineNative implements WhisperEngine {
     private final String TAG = "WhisperEngineNative";
     private final long nativePtr; // Native pointer to the TFLiteEngine instance
 
     private final Context mContext;
     private boolean mIsInitialized = false;
+    private Detokenizer mDetokenizer = null;
 
     public WhisperEngineNative(Context context) {
         mContext = context;
@@ -22,30 +31,237 @@ public class WhisperEngineNative implements WhisperEngine {
 
     @Override
     public boolean initialize(String modelPath, String vocabPath, boolean multilingual) {
-        int ret = loadModel(modelPath, multilingual);
-        Log.d(TAG, "Model is loaded..." + modelPath);
+        mDetokenizer = null;
+        int ret = loadModel(modelPath, vocabPath, multilingual);
+        Log.d(TAG, "Model is loaded..." + modelPath + ": " + getLoadStats());
 
-        mIsInitialized = true;
-        return true;
+        mIsInitialized = (ret == 0);
+        return mIsInitialized;
+    }
+
+    // Map the model straight out of the APK. The asset must be stored uncompressed
+    // (noCompress in build.gradle), otherwise openFd() throws and the caller should copy it out.
+    // vocabPath is the filters_vocab_*.bin file, mapped by the native engine as well.
+    public boolean initializeFromAsset(String assetPath, String vocabPath, boolean multilingual) throws IOException {
+        mDetokenizer = null;
+        int ret;
+        try (AssetFileDescriptor afd = mContext.getAssets().openFd(assetPath)) {
+            ret = loadModelFromFd(nativePtr, "asset:" + assetPath, afd.getParcelFileDescriptor().getFd(),
+                    afd.getStartOffset(), afd.getLength(), vocabPath, multilingual);
+        }
+        Log.d(TAG, "Model is mapped from asset..." + assetPath + ": " + getLoadStats());
+
+        mIsInitialized = (ret == 0);
+        return mIsInitialized;
+    }
+
+    public ModelLoadStats getLoadStats() {
+        return new ModelLoadStats(getLoadStats(nativePtr));
     }
 
     @Override
     public void deinitialize() {
+        mDetokenizer = null;
         freeModel();
     }
 
+    // Number of native worker threads for the mel spectrogram, and for inference of models
+    // initialized afterwards; 0 to use all cores
+    public void setNumThreads(int numThreads) {
+        setNumThreads(nativePtr, numThreads);
+    }
+
+    // Trim silence and skip inference for inputs without speech (on by default)
+    public void setVadEnabled(boolean enabled) {
+        setVadEnabled(nativePtr, enabled);
+    }
+
+    public boolean isVadEnabled() {
+        return isVadEnabled(nativePtr);
+    }
+
+    // With the VAD on, only chunks split inside speech overlap; the others start after a silence
+    @Override
+    public void setChunkOverlap(int overlapMs) {
+        setChunkOverlap(nativePtr, overlapMs);
+    }
+
+    // Keep the tokens of file chunks in dir, keyed by audio and model hashes, so a file
+    // transcribed again only runs inference on chunks it has not seen; least recently used
+    // entries go past maxBytes. null turns the cache off (the default).
+    public void setCache(File dir, long maxBytes) {
+        setCache(nativePtr, dir != null ? dir.getAbsolutePath() : null, maxBytes);
+    }
+
     @Override
     public String transcribeBuffer(float[] samples) {
         return transcribeBuffer(nativePtr, samples);
     }
 
+    // Transcribe samples [offset, offset + length) of a direct buffer in place, without copying
+    public String transcribeBuffer(FloatBuffer samples, int offset, int length) {
+        checkDirect(samples);
+        return transcribeDirectBuffer(nativePtr, samples, offset, length, false);
+    }
+
+    // Same for PCM_16 audio, converted to float on the native side
+    public String transcribeBuffer(ShortBuffer samples, int offset, int length) {
+        checkDirect(samples);
+        return transcribeDirectBuffer(nativePtr, samples, offset, length, true);
+    }
+
+    private static void checkDirect(Buffer samples) {
+        if (!samples.isDirect()) {
+            throw new IllegalArgumentException("samples must be a direct buffer");
+        }
+    }
+
     @Override
     public String transcribeFile(String waveFile) {
         return transcribeFile(nativePtr, waveFile);
     }
 
-    private int loadModel(String modelPath, boolean isMultilingual) {
-        return loadModel(nativePtr, modelPath, isMultilingual);
+    // Returns null when the file cannot be read
+    @Override
+    public FileTranscription openFile(String waveFile) {
+        long session = openFile(nativePtr, waveFile);
+        if (session == 0) {
+            return null;
+        }
+        return new NativeFileTranscription(session);
+    }
+
+    private class NativeFileTranscription implements FileTranscription {
+        private long mSession;
+
+        NativeFileTranscription(long session) {
+            mSession = session;
+        }
+
+        @Override
+        public boolean hasNextChunk() {
+            return mSession != 0 && WhisperEngineNative.this.hasNextChunk(nativePtr, mSession);
+        }
+
+        @Override
+        public String transcribeNextChunk() {
+            return WhisperEngineNative.this.transcribeNextChunk(nativePtr, mSession);
+        }
+
+        @Override
+        public List<ChunkStats> getChunkStats() {
+            return ChunkStats.fromArray(getSessionChunkStats(nativePtr, mSession));
+        }
+
+        @Override
+        public int[] getTokens() {
+            return getSessionTokens(nativePtr, mSession);
+        }
+
+        @Override
+        public long getTotalSamples() {
+            return getSessionTotalSamples(nativePtr, mSession);
+        }
+
+        @Override
+        public void close() {
+            if (mSession != 0) {
+                closeFile(nativePtr, mSession);
+                mSession = 0;
+            }
+        }
+    }
+
+    @Override
+    public LiveStream openStream() {
+        return new NativeLiveStream(openStream(nativePtr));
+    }
+
+    // The window lives on the native side as mel frames, only new audio is transformed
+    // Used on the scheduler's worker; closing may happen from another thread once the worker
+    // has stopped, so the handle is volatile and a closed stream is empty
+    private class NativeLiveStream implements LiveStream {
+        private volatile long mStream;
+
+        NativeLiveStream(long stream) {
+            mStream = stream;
+        }
+
+        @Override
+        public String push(float[] samples) {
+            long stream = mStream;
+            return stream != 0 ? pushStream(nativePtr, stream, samples) : "";
+        }
+
+        @Override
+        public int advance(int numSamples) {
+            long stream = mStream;
+            return stream != 0 ? advanceStream(nativePtr, stream, numSamples) : 0;
+        }
+
+        @Override
+        public int getWindowSamples() {
+            long stream = mStream;
+            return stream != 0 ? getStreamSamples(nativePtr, stream) : 0;
+        }
+
+        @Override
+        public synchronized void close() {
+            long stream = mStream;
+            if (stream != 0) {
+                mStream = 0;
+                closeStream(nativePtr, stream);
+            }
+        }
+    }
+
+    @Override
+    public void cancel() {
+        cancel(nativePtr);
+    }
+
+    @Override
+    public void clearCancel() {
+        clearCancel(nativePtr);
+    }
+
+    @Override
+    public boolean isCancelled() {
+        return isCancelled(nativePtr);
+    }
+
+    // Latency histograms of the mel / invoke / decode stages since creation or resetStats()
+    public EngineStats getStats() {
+        return new EngineStats(getStats(nativePtr));
+    }
+
+    public void resetStats() {
+        resetStats(nativePtr);
+    }
+
+    // Text token ids of the last transcription
+    public int[] getTokens() {
+        return getTokens(nativePtr);
+    }
+
+    // Detokenizer over the vocab of the loaded model, fetched once and cached
+    public synchronized Detokenizer getDetokenizer() {
+        if (mDetokenizer == null) {
+            byte[] bytes = getVocabBytes(nativePtr);
+            int[] offsets = getVocabOffsets(nativePtr);
+            if (bytes == null || offsets == null) return null;
+            mDetokenizer = new Detokenizer(bytes, offsets);
+        }
+        return mDetokenizer;
+    }
+
+    // Per-chunk timings of the last transcribeFile call, or the single chunk of the last buffer
+    public List<ChunkStats> getChunkStats() {
+        return ChunkStats.fromArray(getChunkStats(nativePtr));
+    }
+
+    private int loadModel(String modelPath, String vocabPath, boolean isMultilingual) {
+        return loadModel(nativePtr, modelPath, vocabPath, isMultilingual);
     }
 
     private void freeModel() {
@@ -58,8 +274,37 @@ public class WhisperEngineNative implements WhisperEngine {
 
     // Native methods
     private native long createTFLiteEngine();
-    private native int loadModel(long nativePtr, String modelPath, boolean isMultilingual);
+    private native int loadModel(long nativePtr, String modelPath, String vocabPath, boolean isMultilingual);
+    private native int loadModelFromFd(long nativePtr, String key, int fd, long offset, long length, String vocabPath, boolean isMultilingual);
+    private native long[] getLoadStats(long nativePtr);
     private native void freeModel(long nativePtr);
+    private native void setNumThreads(long nativePtr, int numThreads);
+    private native void setVadEnabled(long nativePtr, boolean enabled);
+    private native boolean isVadEnabled(long nativePtr);
+    private native void setChunkOverlap(long nativePtr, int overlapMs);
+    private native void setCache(long nativePtr, String dir, long maxBytes);
     private native String transcribeBuffer(long nativePtr, float[] samples);
+    private native String transcribeDirectBuffer(long nativePtr, Buffer samples, int offset, int length, boolean pcm16);
     private native String transcribeFile(long nativePtr, String waveFile);
+    private native long[] getChunkStats(long nativePtr);
+    private native long[] getStats(long nativePtr);
+    private native int[] getTokens(long nativePtr);
+    private native byte[] getVocabBytes(long nativePtr);
+    private native int[] getVocabOffsets(long nativePtr);
+    private native void resetStats(long nativePtr);
+    private native void cancel(long nativePtr);
+    private native void clearCancel(long nativePtr);
+    private native long openFile(long nativePtr, String waveFile);
+    private native boolean hasNextChunk(long nativePtr, long session);
+    private native String transcribeNextChunk(long nativePtr, long session);
+    private native long[] getSessionChunkStats(long nativePtr, long session);
+    private native int[] getSessionTokens(long nativePtr, long session);
+    private native long getSessionTotalSamples(long nativePtr, long session);
+    private native void closeFile(long nativePtr, long session);
+    private native boolean isCancelled(long nativePtr);
+    private native long openStream(long nativePtr);
+    private native String pushStream(long nativePtr, long stream, float[] samples);
+    private native int advanceStream(long nativePtr, long stream, int numSamples);
+    private native int getStreamSamples(long nativePtr, long stream);
+    private native void closeStream(long nativePtr, long stream);
 }
@@ -0,0 +1,258 @@
+package com.example.voicecatch_ver2.utils;
+
+// Precomputed plan for the forward FFT of a real sequence of even length n (400 for the mel
+// STFT), same algorithm as rfft.h on the native side. The input is packed into a complex
+// sequence of length n/2, transformed with a mixed-radix (4, 2, 3, 5, generic) Stockham FFT
+// and split into the n/2 + 1 non-redundant bins. The plan is immutable and can be shared
+// between threads; each thread passes its own work array to execute().
+public class RealFftPlan {
+
+    private final int n;
+    private final int m;
+    private final int[] radices;
+    private final int[] lengths;
+    private final int[] strides;
+    private final int[] twiddleOffsets;
+    private final int[] rootOffsets;
+    private final float[] twiddles;
+    private final float[] roots;
+    private final float[] split;
+
+    public RealFftPlan(int n) {
+        if (n < 2 || n % 2 != 0) {
+            throw new IllegalArgumentException("FFT size must be even: " + n);
+        }
+        this.n = n;
+        this.m = n / 2;
+
+        // factorize m, preferring the larger specialized butterflies
+        int[] preferred = {4, 2, 3, 5};
+        int stageCount = 0;
+        int twiddleCount = 0;
+        int rootCount = 0;
+        int[] tmpRadices = new int[32];
+        for (int rest = m; rest > 1; ) {
+            int radix = 0;
+            for (int r : preferred) {
+                if (rest % r == 0) {
+                    radix = r;
+                    break;
+                }
+            }
+            if (radix == 0) {
+                for (radix = 7; rest % radix != 0; radix += 2) ;
+                rootCount += radix;
+            }
+            twiddleCount += (rest / radix) * (radix - 1);
+            tmpRadices[stageCount++] = radix;
+            rest /= radix;
+        }
+
+        radices = new int[stageCount];
+        lengths = new int[stageCount];
+        strides = new int[stageCount];
+        twiddleOffsets = new int[stageCount];
+        rootOffsets = new int[stageCount];
+        twiddles = new float[2 * twiddleCount];
+        roots = new float[2 * rootCount];
+
+        int rest = m;
+        int stride = 1;
+        int tw = 0;
+        int rt = 0;
+        for (int s = 0; s < stageCount; s++) {
+            int radix = tmpRadices[s];
+            radices[s] = radix;
+            lengths[s] = rest;
+            strides[s] = stride;
+            twiddleOffsets[s] = tw;
+            rootOffsets[s] = rt;
+
+            if (radix > 5) {
+                for (int j = 0; j < radix; j++) {
+                    double theta = -2.0 * Math.PI * j / radix;
+                    roots[rt++] = (float) Math.cos(theta);
+                    roots[rt++] = (float) Math.sin(theta);
+                }
+            }
+
+            int sub = rest / radix;
+            for (int p = 0; p < sub; p++) {
+                for (int k = 1; k < radix; k++) {
+                    double theta = -2.0 * Math.PI * p * k / rest;
+                    twiddles[tw++] = (float) Math.cos(theta);
+                    twiddles[tw++] = (float) Math.sin(theta);
+                }
+            }
+
+            rest = sub;
+            stride *= radix;
+        }
+
+        split = new float[2 * (m + 1)];
+        for (int k = 0; k <= m; k++) {
+            double theta = -2.0 * Math.PI * k / n;
+            split[2 * k] = (float) Math.cos(theta);
+            split[2 * k + 1] = (float) Math.sin(theta);
+        }
+    }
+
+    public int getSize() {
+        return n;
+    }
+
+    // Floats of scratch memory execute() needs
+    public int getWorkSize() {
+        return 4 * m;
+    }
+
+    // input: n real samples, output: (n/2 + 1) complex bins interleaved re/im, work: getWorkSize() floats
+    public void execute(float[] input, float[] output, float[] work) {
+        // pack even/odd samples as real/imaginary parts
+        System.arraycopy(input, 0, work, 0, 2 * m);
+
+        int x = 0;
+        int y = 2 * m;
+        for (int s = 0; s < radices.length; s++) {
+            runStage(s, work, x, y);
+            int t = x;
+            x = y;
+            y = t;
+        }
+
+        // split the packed spectrum into the spectrum of the real input
+        for (int k = 0; k <= m; k++) {
+            int k1 = (k == m) ? 0 : k;
+            int k2 = (k == 0) ? 0 : m - k;
+            float zr = work[x + 2 * k1], zi = work[x + 2 * k1 + 1];
+            float cr = work[x + 2 * k2], ci = -work[x + 2 * k2 + 1];
+
+            float er = 0.5f * (zr + cr), ei = 0.5f * (zi + ci);
+            float dr = 0.5f * (zr - cr), di = 0.5f * (zi - ci);
+            // odd part: (z - conj) / 2i, rotated by the split twiddle
+            float or = di, oi = -dr;
+            float wr = split[2 * k], wi = split[2 * k + 1];
+
+            output[2 * k] = er + or * wr - oi * wi;
+            output[2 * k + 1] = ei + or * wi + oi * wr;
+        }
+    }
+
+    // One decimation-in-frequency Stockham pass from work[x..] into work[y..]
+    private void runStage(int s, float[] d, int x, int y) {
+        int r = radices[s];
+        int stride = strides[s];
+        int sub = lengths[s] / r;
+        int ia = 2 * stride * sub; // distance between butterfly inputs
+        int ib = 2 * stride;       // distance between butterfly outputs
+
+        for (int p = 0; p < sub; p++) {
+            int w = twiddleOffsets[s] + 2 * p * (r - 1);
+            for (int q = 0; q < stride; q++) {
+                int a = x + 2 * (q + stride * p);
+                int b = y + 2 * (q + stride * r * p);
+                switch (r) {
+                    case 2: butterfly2(d, a, ia, b, ib, w); break;
+                    case 4: butterfly4(d, a, ia, b, ib, w); break;
+                    case 3: butterfly3(d, a, ia, b, ib, w); break;
+                    case 5: butterfly5(d, a, ia, b, ib, w); break;
+                    default: butterflyGeneric(r, rootOffsets[s], d, a, ia, b, ib, w); break;
+                }
+            }
+        }
+    }
+
+    private void store(float[] d, int b, int k, int ib, int w, float re, float im) {
+        if (k == 0) {
+            d[b] = re;
+            d[b + 1] = im;
+        } else {
+            float wr = twiddles[w + 2 * (k - 1)];
+            float wi = twiddles[w + 2 * (k - 1) + 1];
+            d[b + k * ib] = re * wr - im * wi;
+            d[b + k * ib + 1] = re * wi + im * wr;
+        }
+    }
+
+    private void butterfly2(float[] d, int a, int ia, int b, int ib, int w) {
+        float a0r = d[a], a0i = d[a + 1];
+        float a1r = d[a + ia], a1i = d[a + ia + 1];
+        store(d, b, 0, ib, w, a0r + a1r, a0i + a1i);
+        store(d, b, 1, ib, w, a0r - a1r, a0i - a1i);
+    }
+
+    private void butterfly3(float[] d, int a, int ia, int b, int ib, int w) {
+        final float c = -0.5f;
+        final float sn = 0.86602540378443864676f; // sin(2*pi/3)
+        float a0r = d[a], a0i = d[a + 1];
+        float a1r = d[a + ia], a1i = d[a + ia + 1];
+        float a2r = d[a + 2 * ia], a2i = d[a + 2 * ia + 1];
+
+        float tr = a1r + a2r, ti = a1i + a2i;
+        float ur = a1r - a2r, ui = a1i - a2i;
+        float mr = a0r + c * tr, mi = a0i + c * ti;
+
+        store(d, b, 0, ib, w, a0r + tr, a0i + ti);
+        store(d, b, 1, ib, w, mr + sn * ui, mi - sn * ur);
+        store(d, b, 2, ib, w, mr - sn * ui, mi + sn * ur);
+    }
+
+    private void butterfly4(float[] d, int a, int ia, int b, int ib, int w) {
+        float a0r = d[a], a0i = d[a + 1];
+        float a1r = d[a + ia], a1i = d[a + ia + 1];
+        float a2r = d[a + 2 * ia], a2i = d[a + 2 * ia + 1];
+        float a3r = d[a + 3 * ia], a3i = d[a + 3 * ia + 1];
+
+        float s02r = a0r + a2r, s02i = a0i + a2i;
+        float d02r = a0r - a2r, d02i = a0i - a2i;
+        float s13r = a1r + a3r, s13i = a1i + a3i;
+        float d13r = a1r - a3r, d13i = a1i - a3i;
+
+        store(d, b, 0, ib, w, s02r + s13r, s02i + s13i);
+        store(d, b, 1, ib, w, d02r + d13i, d02i - d13r); // d02 - i*d13
+        store(d, b, 2, ib, w, s02r - s13r, s02i - s13i);
+        store(d, b, 3, ib, w, d02r - d13i, d02i + d13r); // d02 + i*d13
+    }
+
+    private void butterfly5(float[] d, int a, int ia, int b, int ib, int w) {
+        final float c1 = 0.30901699437494742410f;  // cos(2*pi/5)
+        final float c2 = -0.80901699437494742410f; // cos(4*pi/5)
+        final float s1 = 0.95105651629515357212f;  // sin(2*pi/5)
+        final float s2 = 0.58778525229247312917f;  // sin(4*pi/5)
+
+        float a0r = d[a], a0i = d[a + 1];
+        float a1r = d[a + ia], a1i = d[a + ia + 1];
+        float a2r = d[a + 2 * ia], a2i = d[a + 2 * ia + 1];
+        float a3r = d[a + 3 * ia], a3i = d[a + 3 * ia + 1];
+        float a4r = d[a + 4 * ia], a4i = d[a + 4 * ia + 1];
+
+        float t1r = a1r + a4r, t1i = a1i + a4i;
+        float t2r = a2r + a3r, t2i = a2i + a3i;
+        float t3r = a1r - a4r, t3i = a1i - a4i;
+        float t4r = a2r - a3r, t4i = a2i - a3i;
+
+        float m1r = a0r + c1 * t1r + c2 * t2r, m1i = a0i + c1 * t1i + c2 * t2i;
+        float m2r = a0r + c2 * t1r + c1 * t2r, m2i = a0i + c2 * t1i + c1 * t2i;
+        float n1r = s1 * t3r + s2 * t4r, n1i = s1 * t3i + s2 * t4i;
+        float n2r = s2 * t3r - s1 * t4r, n2i = s2 * t3i - s1 * t4i;
+
+        store(d, b, 0, ib, w, a0r + t1r + t2r, a0i + t1i + t2i);
+        store(d, b, 1, ib, w, m1r + n1i, m1i - n1r); // m1 - i*n1
+        store(d, b, 2, ib, w, m2r + n2i, m2i - n2r); // m2 - i*n2
+        store(d, b, 3, ib, w, m2r - n2i, m2i + n2r); // m2 + i*n2
+        store(d, b, 4, ib, w, m1r - n1i, m1i + n1r); // m1 + i*n1
+    }
+
+    private void butterflyGeneric(int r, int root, float[] d, int a, int ia, int b, int ib, int w) {
+        for (int k = 0; k < r; k++) {
+            float re = 0.0f, im = 0.0f;
+            for (int j = 0; j < r; j++) {
+                int e = root + 2 * ((j * k) % r);
+                float xr = d[a + j * ia], xi = d[a + j * ia + 1];
+                re += xr * roots[e] - xi * roots[e + 1];
+                im += xr * roots[e + 1] + xi * roots[e];
+            }
+            store(d, b, k, ib, w, re, im);
+        }
+    }
+}
@@ -2,16 +2,22 @@ package com.example.voicecatch_ver2.utils;
 
 import android.util.Log;
 
+import java.io.Closeable;
+import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
 
 public class WaveUtil {
     public static final String TAG = "WaveUtil";
     public static final String RECORDING_FILE = "MicInput.wav";
+    public static final int WAVE_HEADER_SIZE = 44;
+    private static final int STREAM_BUFFER_SIZE = 64 * 1024; // 2 seconds of 16kHz PCM_16 mono
 
     public static void createWaveFile(String filePath, byte[] samples, int sampleRate, int numChannels, int bytesPerSample) {
         try {
@@ -44,6 +50,136 @@ public class WaveUtil {
         }
     }
 
+    // Open a wave file for incremental writing. The header is written up front with empty sizes,
+    // PCM data is appended through a buffered FileChannel and the RIFF/data sizes are patched on
+    // every flush, so the file on disk stays playable even if the writer is never closed.
+    public static StreamWriter openStreamWriter(String filePath, int sampleRate, int numChannels, int bytesPerSample) throws IOException {
+        return new StreamWriter(filePath, sampleRate, numChannels, bytesPerSample);
+    }
+
+    public static class StreamWriter implements Closeable {
+        private final RandomAccessFile mFile;
+        private final FileChannel mChannel;
+        private final ByteBuffer mBuffer = ByteBuffer.allocateDirect(STREAM_BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        private final ByteBuffer mSizeField = ByteBuffer.allocateDirect(4).order(ByteOrder.LITTLE_ENDIAN);
+        private long mDataSize = 0;
+        private boolean mClosed = false;
+
+        private StreamWriter(String filePath, int sampleRate, int numChannels, int bytesPerSample) throws IOException {
+            mFile = new RandomAccessFile(filePath, "rw");
+            mChannel = mFile.getChannel();
+            mChannel.truncate(0);
+
+            ByteBuffer header = ByteBuffer.wrap(createHeader(0, sampleRate, numChannels, bytesPerSample));
+            while (header.hasRemaining()) {
+                mChannel.write(header);
+            }
+        }
+
+        public long getDataSize() {
+            return mDataSize + mBuffer.position();
+        }
+
+        // Little-endian buffer with at least minRemaining bytes free; callers put PCM into it directly
+        public ByteBuffer buffer(int minRemaining) throws IOException {
+            if (mBuffer.remaining() < minRemaining) {
+                flush();
+            }
+            return mBuffer;
+        }
+
+        public void write(byte[] data, int offset, int length) throws IOException {
+            while (length > 0) {
+                int n = Math.min(length, buffer(1).remaining());
+                mBuffer.put(data, offset, n);
+                offset += n;
+                length -= n;
+            }
+        }
+
+        // Append buffered PCM to the file and update the header sizes
+        public void flush() throws IOException {
+            mBuffer.flip();
+            while (mBuffer.hasRemaining()) {
+                mDataSize += mChannel.write(mBuffer, WAVE_HEADER_SIZE + mDataSize);
+            }
+            mBuffer.clear();
+            patchSizes(mChannel, mSizeField, mDataSize);
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (mClosed) return;
+            mClosed = true;
+            try {
+                flush();
+            } finally {
+                mFile.close();
+            }
+        }
+    }
+
+    // Fix the RIFF/data sizes of a wave file whose writer did not finish (e.g. app crash while
+    // recording). The data size is taken from the file length. Returns true if it was patched.
+    public static boolean repairWaveFile(String filePath) {
+        File file = new File(filePath);
+        if (!file.exists() || file.length() < WAVE_HEADER_SIZE) return false;
+
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            byte[] header = new byte[WAVE_HEADER_SIZE];
+            raf.readFully(header);
+            if (!new String(header, 0, 4, StandardCharsets.US_ASCII).equals("RIFF") ||
+                    !new String(header, 36, 4, StandardCharsets.US_ASCII).equals("data")) {
+                return false;
+            }
+
+            long dataSize = file.length() - WAVE_HEADER_SIZE;
+            int blockAlign = byteArrayToNumber(header, 32, 2);
+            if (blockAlign > 0) {
+                dataSize -= dataSize % blockAlign; // drop a partially written sample
+            }
+            if ((byteArrayToNumber(header, 40, 4) & 0xFFFFFFFFL) == dataSize) return false;
+
+            ByteBuffer sizeField = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN);
+            raf.getChannel().truncate(WAVE_HEADER_SIZE + dataSize);
+            patchSizes(raf.getChannel(), sizeField, dataSize);
+            Log.d(TAG, "Repaired wave header of " + filePath + ", data size: " + dataSize);
+            return true;
+        } catch (IOException e) {
+            Log.e(TAG, "Error repairing " + filePath, e);
+            return false;
+        }
+    }
+
+    private static void patchSizes(FileChannel channel, ByteBuffer sizeField, long dataSize) throws IOException {
+        sizeField.clear();
+        sizeField.putInt(0, (int) (36 + dataSize)); // Total file size - 8 bytes
+        channel.write(sizeField, 4);
+        sizeField.clear();
+        sizeField.putInt(0, (int) dataSize); // Data size
+        channel.write(sizeField, 40);
+    }
+
+    private static byte[] createHeader(int dataSize, int sampleRate, int numChannels, int bytesPerSample) {
+        int audioFormat = (bytesPerSample == 2) ? 1 : (bytesPerSample == 4) ? 3 : 0; // PCM_16 = 1, PCM_FLOAT = 3
+
+        ByteBuffer header = ByteBuffer.allocate(WAVE_HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        header.put("RIFF".getBytes(StandardCharsets.UTF_8)); // Write the "RIFF" chunk descriptor
+        header.putInt(36 + dataSize); // Total file size - 8 bytes
+        header.put("WAVE".getBytes(StandardCharsets.UTF_8)); // Write the "WAVE" format
+        header.put("fmt ".getBytes(StandardCharsets.UTF_8)); // Write the "fmt " sub-chunk
+        header.putInt(16); // Sub-chunk size (16 for PCM)
+        header.putShort((short) audioFormat); // Audio format (1 for PCM)
+        header.putShort((short) numChannels); // Number of channels
+        header.putInt(sampleRate); // Sample rate
+        header.putInt(sampleRate * numChannels * bytesPerSample); // Byte rate
+        header.putShort((short) (numChannels * bytesPerSample)); // Block align
+        header.putShort((short) (bytesPerSample * 8)); // Bits per sample
+        header.put("data".getBytes(StandardCharsets.UTF_8)); // Write the "data" sub-chunk
+        header.putInt(dataSize); // Data size
+        return header.array();
+    }
+
     public static float[] getSamples(String filePath) {
         try {
             FileInputStream fileInputStream = new FileInputStream(filePath);
@@ -2,7 +2,6 @@ package com.example.voicecatch_ver2.utils;
 
 import static java.lang.Math.cos;
 import static java.lang.Math.log10;
-import static java.lang.Math.sin;
 
 import android.util.Log;
 
@@ -31,6 +30,9 @@ public class WhisperUtil {
     private final WhisperFilter filters = new WhisperFilter();
     private final WhisperMel mel = new WhisperMel();
 
+    // Twiddles for the 400-point STFT are computed once and shared by all mel worker threads
+    private static final RealFftPlan FFT_PLAN = new RealFftPlan(WHISPER_N_FFT);
+
     // Helper functions definitions
     public int getTokenTranslate() {
         return vocab.tokenTRANSLATE;
@@ -100,6 +102,7 @@ public class WhisperUtil {
         for (int i = 0; filterBuf.hasRemaining(); i++) {
             filters.data[i] = filterBuf.getFloat();
         }
+        filters.buildSparse();
 
         // Load vocabulary
         int nVocab = vocabBuf.getInt();
@@ -179,7 +182,8 @@ public class WhisperUtil {
 
                 float[] fftIn = new float[fftSize];
                 Arrays.fill(fftIn, 0.0f);
-                float[] fftOut = new float[fftSize * 2];
+                float[] fftOut = new float[nFft * 2];
+                float[] fftWork = new float[FFT_PLAN.getWorkSize()];
 
                 for (int i = ith; i < mel.nLen; i += nThreads) {
 /////////////// END of Block ///////////////////////////////////////////////////////////////////////
@@ -187,7 +191,8 @@ public class WhisperUtil {
 /////////////// COMMENT below block to use multithreaded mel calculation ///////////////////////////
 //        float[] fftIn = new float[fftSize];
 //        Arrays.fill(fftIn, 0.0f);
-//        float[] fftOut = new float[fftSize * 2];
+//        float[] fftOut = new float[nFft * 2];
+//        float[] fftWork = new float[FFT_PLAN.getWorkSize()];
 //
 //        for (int i = 0; i < mel.nLen; i++) {
 /////////////// END of Block ///////////////////////////////////////////////////////////////////////
@@ -204,21 +209,31 @@ public class WhisperUtil {
             }
 
             // FFT -> mag^2
-            fft(fftIn, fftOut);
-            for (int j = 0; j < fftSize; j++) {
+            FFT_PLAN.execute(fftIn, fftOut, fftWork);
+            for (int j = 0; j < nFft; j++) {
                 fftOut[j] = fftOut[2 * j] * fftOut[2 * j] + fftOut[2 * j + 1] * fftOut[2 * j + 1];
             }
 
+            // fold the mirrored half of the spectrum (equal to the first half for real input)
             for (int j = 1; j < fftSize / 2; j++) {
-                fftOut[j] += fftOut[fftSize - j];
+                fftOut[j] *= 2.0f;
             }
 
-            // mel spectrogram
+            // mel spectrogram, only over the non-zero bins of each filter
             for (int j = 0; j < mel.nMel; j++) {
-                double sum = 0.0;
-                for (int k = 0; k < nFft; k++) {
-                    sum += (fftOut[k] * filters.data[j * nFft + k]);
+                int bin = filters.start[j];
+                int weight = filters.offset[j];
+                int length = filters.length[j];
+                float s0 = 0.0f, s1 = 0.0f;
+                int k = 0;
+                for (; k + 2 <= length; k += 2) {
+                    s0 += fftOut[bin + k] * filters.weights[weight + k];
+                    s1 += fftOut[bin + k + 1] * filters.weights[weight + k + 1];
+                }
+                for (; k < length; k++) {
+                    s0 += fftOut[bin + k] * filters.weights[weight + k];
                 }
+                double sum = s0 + s1;
 
                 if (sum < 1e-10) {
                     sum = 1e-10;
@@ -264,67 +279,6 @@ public class WhisperUtil {
         return mel.data;
     }
 
-    private void dft(float[] input, float[] output) {
-        int inSize = input.length;
-        for (int k = 0; k < inSize; k++) {
-            float re = 0.0f;
-            float im = 0.0f;
-            for (int n = 0; n < inSize; n++) {
-                float angle = (float) (2 * Math.PI * k * n / inSize);
-                re += input[n] * cos(angle);
-                im -= input[n] * sin(angle);
-            }
-            output[k * 2 + 0] = re;
-            output[k * 2 + 1] = im;
-        }
-    }
-
-    private void fft(float[] input, float[] output) {
-        int inSize = input.length;
-        if (inSize == 1) {
-            output[0] = input[0];
-            output[1] = 0.0f;
-            return;
-        }
-
-        if (inSize % 2 == 1) {
-            dft(input, output);
-            return;
-        }
-
-        float[] even = new float[inSize / 2];
-        float[] odd = new float[inSize / 2];
-
-        int indxEven = 0;
-        int indxOdd = 0;
-        for (int i = 0; i < inSize; i++) {
-            if (i % 2 == 0) {
-                even[indxEven] = input[i];
-                indxEven++;
-            } else {
-                odd[indxOdd] = input[i];
-                indxOdd++;
-            }
-        }
-
-        float[] evenFft = new float[inSize];
-        float[] oddFft = new float[inSize];
-
-        fft(even, evenFft);
-        fft(odd, oddFft);
-        for (int k = 0; k < inSize / 2; k++) {
-            float theta = (float) (2 * Math.PI * k / inSize);
-            float re = (float) cos(theta);
-            float im = (float) -sin(theta);
-            float reOdd = oddFft[2 * k + 0];
-            float imOdd = oddFft[2 * k + 1];
-            output[2 * k + 0] = evenFft[2 * k + 0] + re * reOdd - im * imOdd;
-            output[2 * k + 1] = evenFft[2 * k + 1] + re * imOdd + im * reOdd;
-            output[2 * (k + inSize / 2) + 0] = evenFft[2 * k + 0] - re * reOdd + im * imOdd;
-            output[2 * (k + inSize / 2) + 1] = evenFft[2 * k + 1] - re * imOdd - im * reOdd;
-        }
-    }
-
     // Helper class definitions
     private static class WhisperVocab {
         int[] golden_generated_ids = {
@@ -354,6 +308,37 @@ public class WhisperUtil {
         int nMel = 0;
         int nFft = 0;
         float[] data;
+
+        // Sparse form of data: filter j covers bins [start[j], start[j] + length[j])
+        // with its weights at weights[offset[j]]
+        int[] start;
+        int[] length;
+        int[] offset;
+        float[] weights;
+
+        void buildSparse() {
+            start = new int[nMel];
+            length = new int[nMel];
+            offset = new int[nMel];
+
+            int total = 0;
+            for (int j = 0; j < nMel; j++) {
+                int first = 0;
+                int last = nFft - 1;
+                while (first < nFft && data[j * nFft + first] == 0.0f) first++;
+                while (last >= first && data[j * nFft + last] == 0.0f) last--;
+
+                start[j] = first < nFft ? first : 0;
+                length[j] = Math.max(last - first + 1, 0);
+                offset[j] = total;
+                total += length[j];
+            }
+
+            weights = new float[total];
+            for (int j = 0; j < nMel; j++) {
+                System.arraycopy(data, j * nFft + start[j], weights, offset[j], length[j]);
+            }
+        }
     }
 
     private static class WhisperMel {
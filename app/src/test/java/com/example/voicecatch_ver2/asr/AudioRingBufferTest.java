@@ -0,0 +1,94 @@
+package com.example.voicecatch_ver2.asr;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+public class AudioRingBufferTest {
+    private static final int FRAME_SIZE = 4;
+    private static final int CAPACITY = 4;
+
+    // Publish a frame of length samples, all equal to value
+    private static void publish(AudioRingBuffer ring, short value, int length) {
+        int offset = ring.claimFrame();
+        for (int i = 0; i < length; i++) {
+            ring.array()[offset + i] = value;
+        }
+        ring.publishFrame(length);
+    }
+
+    @Test
+    public void readsFramesInOrder() {
+        AudioRingBuffer ring = new AudioRingBuffer(FRAME_SIZE, CAPACITY);
+        AudioRingBuffer.Reader reader = ring.newReader();
+        publish(ring, (short) 100, FRAME_SIZE);
+        publish(ring, (short) 200, 2);
+
+        float[] dst = new float[FRAME_SIZE];
+        assertEquals(FRAME_SIZE, reader.read(dst, 0));
+        assertEquals(100 / 32768.0f, dst[0], 0f);
+        assertEquals(2, reader.read(dst, 0));
+        assertEquals(200 / 32768.0f, dst[1], 0f);
+        assertEquals(0, reader.read(dst, 0));
+        assertEquals(0, reader.getOverrunCount());
+    }
+
+    @Test
+    public void slowReaderSkipsOverwrittenFrames() {
+        AudioRingBuffer ring = new AudioRingBuffer(FRAME_SIZE, CAPACITY);
+        AudioRingBuffer.Reader reader = ring.newReader();
+        for (int i = 0; i < 6; i++) {
+            publish(ring, (short) i, FRAME_SIZE);
+        }
+
+        // frames 0 and 1 were overwritten, and frame 2 is in the slot the producer fills next
+        assertEquals(CAPACITY - 1, reader.available());
+        float[] dst = new float[FRAME_SIZE];
+        for (int i = 3; i < 6; i++) {
+            assertEquals(FRAME_SIZE, reader.read(dst, 0));
+            assertEquals(i / 32768.0f, dst[0], 0f);
+        }
+        assertEquals(0, reader.read(dst, 0));
+        assertEquals(3, reader.getOverrunCount());
+        assertEquals(3, ring.getOverrunCount());
+        assertEquals(6, reader.getNextSequence());
+    }
+
+    @Test
+    public void readersAreIndependent() {
+        AudioRingBuffer ring = new AudioRingBuffer(FRAME_SIZE, CAPACITY);
+        AudioRingBuffer.Reader fast = ring.newReader();
+        AudioRingBuffer.Reader slow = ring.newReader();
+        float[] dst = new float[FRAME_SIZE];
+        for (int i = 0; i < 6; i++) {
+            publish(ring, (short) i, FRAME_SIZE);
+            assertEquals(FRAME_SIZE, fast.read(dst, 0));
+        }
+
+        assertEquals(0, fast.getOverrunCount());
+        assertEquals(FRAME_SIZE, slow.read(dst, 0));
+        assertEquals(3, slow.getOverrunCount());
+        assertEquals(3, ring.getOverrunCount());
+    }
+
+    @Test
+    public void byteReadNeedsRoomForAFrame() {
+        AudioRingBuffer ring = new AudioRingBuffer(FRAME_SIZE, CAPACITY);
+        AudioRingBuffer.Reader reader = ring.newReader();
+        publish(ring, (short) -2, FRAME_SIZE);
+
+        ByteBuffer small = ByteBuffer.allocate(FRAME_SIZE * 2 - 1);
+        assertEquals(0, reader.read(small));
+        assertEquals(0, small.position());
+
+        ByteBuffer dst = ByteBuffer.allocate(FRAME_SIZE * 2).order(ByteOrder.BIG_ENDIAN);
+        assertEquals(FRAME_SIZE, reader.read(dst));
+        assertEquals(ByteOrder.BIG_ENDIAN, dst.order());
+        assertEquals(0xfe, dst.get(0) & 0xff); // little-endian -2
+        assertEquals(0xff, dst.get(1) & 0xff);
+        assertEquals(1, reader.getNextSequence());
+    }
+}
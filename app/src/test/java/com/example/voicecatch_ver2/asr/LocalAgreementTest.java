@@ -0,0 +1,68 @@
+package com.example.voicecatch_ver2.asr;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+public class LocalAgreementTest {
+    private static List<String> words(String text) {
+        return text.isEmpty() ? Collections.emptyList() : Arrays.asList(text.split(" "));
+    }
+
+    @Test
+    public void commonPrefixAndOverlap() {
+        assertEquals(2, LocalAgreement.commonPrefix(words("a b c"), words("a b d")));
+        assertEquals(0, LocalAgreement.commonPrefix(words("a b"), words("b a")));
+        assertEquals(2, LocalAgreement.overlap(words("x a b"), words("a b c")));
+        assertEquals(0, LocalAgreement.overlap(words("a b"), words("c a b")));
+        assertEquals(0, LocalAgreement.overlap(words(""), words("a")));
+    }
+
+    @Test
+    public void wordsAreCommittedOnceTwoDecodesAgree() {
+        LocalAgreement agreement = new LocalAgreement(16);
+        assertEquals(words(""), agreement.update(words("a b c")));
+        assertEquals(words("a b c"), agreement.getUnstable());
+
+        assertEquals(words("a b"), agreement.update(words("a b d")));
+        assertEquals(words("d"), agreement.getUnstable());
+
+        // committed words are not committed again
+        assertEquals(words("d"), agreement.update(words("a b d e")));
+        assertEquals(3, agreement.getCommitted());
+        assertEquals(words("e"), agreement.getUnstable());
+    }
+
+    @Test
+    public void wordsRepeatedAfterCutAreNotCommittedTwice() {
+        LocalAgreement agreement = new LocalAgreement(16);
+        agreement.update(words("a b c"));
+        assertEquals(words("a b c"), agreement.update(words("a b c d")));
+
+        // the next decode repeats the last committed words from before the cut
+        agreement.cut();
+        assertEquals(words(""), agreement.update(words("b c d e")));
+        assertEquals(2, agreement.getCommitted());
+        assertEquals(words("d e"), agreement.getUnstable());
+
+        assertEquals(words("d"), agreement.update(words("b c d f")));
+        assertEquals(words("f"), agreement.getUnstable());
+    }
+
+    @Test
+    public void flushCommitsTheRest() {
+        LocalAgreement agreement = new LocalAgreement(16);
+        agreement.update(words("a b"));
+        assertEquals(words("a"), agreement.update(words("a c")));
+        assertEquals(words("c"), agreement.flush());
+
+        // the next window starts without a previous decode to agree with
+        assertEquals(words(""), agreement.update(words("c")));
+        assertEquals(words("c"), agreement.getUnstable());
+        assertEquals(words("c"), agreement.flush());
+    }
+}
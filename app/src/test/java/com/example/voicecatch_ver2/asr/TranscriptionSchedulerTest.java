@@ -0,0 +1,170 @@
+package com.example.voicecatch_ver2.asr;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.example.voicecatch_ver2.asr.TranscriptionScheduler.OverflowPolicy;
+import com.example.voicecatch_ver2.asr.TranscriptionScheduler.Priority;
+import com.example.voicecatch_ver2.engine.WhisperEngine;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+public class TranscriptionSchedulerTest {
+    private static final long TIMEOUT_SECONDS = 5;
+
+    // Jobs never call into the engine, only the scheduler does
+    private static class FakeEngine implements WhisperEngine {
+        @Override public boolean isInitialized() { return true; }
+        @Override public boolean initialize(String modelPath, String vocabPath, boolean multilingual) { return true; }
+        @Override public void deinitialize() {}
+        @Override public String transcribeFile(String wavePath) { return ""; }
+        @Override public String transcribeBuffer(float[] samples) { return ""; }
+        @Override public void setChunkOverlap(int overlapMs) {}
+        @Override public void cancel() {}
+        @Override public void clearCancel() {}
+        @Override public boolean isCancelled() { return false; }
+    }
+
+    // Logs its name on every step; the first step can be held until release()
+    private class LoggingJob extends TranscriptionScheduler.Job {
+        final CountDownLatch mStarted = new CountDownLatch(1);
+        final CountDownLatch mEnded = new CountDownLatch(1);
+        private final String mName;
+        private final CountDownLatch mHold;
+        private int mStepsLeft;
+
+        LoggingJob(String name, Priority priority, int steps, boolean hold) {
+            super(priority);
+            mName = name;
+            mStepsLeft = steps;
+            mHold = new CountDownLatch(hold ? 1 : 0);
+        }
+
+        void release() {
+            mHold.countDown();
+        }
+
+        @Override
+        protected boolean step(WhisperEngine engine) throws Exception {
+            mLog.add(mName);
+            mStarted.countDown();
+            mHold.await(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            return --mStepsLeft == 0;
+        }
+
+        @Override
+        protected void onCompleted() {
+            mEnded.countDown();
+        }
+
+        @Override
+        protected void onCancelled() {
+            mEnded.countDown();
+        }
+    }
+
+    private final List<String> mLog = Collections.synchronizedList(new ArrayList<>());
+    private TranscriptionScheduler mScheduler;
+
+    @Before
+    public void setUp() {
+        mScheduler = new TranscriptionScheduler(new FakeEngine());
+    }
+
+    @After
+    public void tearDown() {
+        mScheduler.shutdown();
+    }
+
+    private static void await(CountDownLatch latch) throws InterruptedException {
+        assertTrue(latch.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+    }
+
+    // Submit a job that occupies the worker until released
+    private LoggingJob block() throws InterruptedException {
+        LoggingJob blocker = new LoggingJob("blocker", Priority.LIVE, 1, true);
+        assertTrue(mScheduler.submit(blocker));
+        await(blocker.mStarted);
+        return blocker;
+    }
+
+    @Test
+    public void jobsRunByPriority() throws InterruptedException {
+        LoggingJob blocker = block();
+        LoggingJob backlog = new LoggingJob("backlog", Priority.BACKLOG, 1, false);
+        LoggingJob file = new LoggingJob("file", Priority.FILE, 1, false);
+        LoggingJob live = new LoggingJob("live", Priority.LIVE, 1, false);
+        mScheduler.submit(backlog);
+        mScheduler.submit(file);
+        mScheduler.submit(live);
+        blocker.release();
+
+        await(backlog.mEnded);
+        assertEquals(Arrays.asList("blocker", "live", "file", "backlog"), mLog);
+    }
+
+    @Test
+    public void unfinishedJobGoesBackToTheFrontOfItsQueue() throws InterruptedException {
+        LoggingJob first = new LoggingJob("first", Priority.FILE, 3, true);
+        mScheduler.submit(first);
+        await(first.mStarted);
+        LoggingJob second = new LoggingJob("second", Priority.FILE, 1, false);
+        LoggingJob live = new LoggingJob("live", Priority.LIVE, 1, false);
+        mScheduler.submit(second);
+        mScheduler.submit(live);
+        first.release();
+
+        await(second.mEnded);
+        // the live job waits for one step only, the other file for the whole first one
+        assertEquals(Arrays.asList("first", "live", "first", "first", "second"), mLog);
+    }
+
+    @Test
+    public void fullQueueDropsTheOldestWaitingJob() throws InterruptedException {
+        mScheduler.setLimit(Priority.BACKLOG, 2, OverflowPolicy.DROP_OLDEST);
+        LoggingJob blocker = block();
+        LoggingJob oldest = new LoggingJob("oldest", Priority.BACKLOG, 1, false);
+        LoggingJob middle = new LoggingJob("middle", Priority.BACKLOG, 1, false);
+        LoggingJob newest = new LoggingJob("newest", Priority.BACKLOG, 1, false);
+        assertTrue(mScheduler.submit(oldest));
+        assertTrue(mScheduler.submit(middle));
+        assertTrue(mScheduler.submit(newest));
+
+        // dropped on the submitting thread
+        assertTrue(oldest.isCancelled());
+        assertEquals(0, oldest.mEnded.getCount());
+        blocker.release();
+
+        await(newest.mEnded);
+        assertEquals(Arrays.asList("blocker", "middle", "newest"), mLog);
+    }
+
+    @Test
+    public void fullQueueRejectsTheNewJob() throws InterruptedException {
+        mScheduler.setLimit(Priority.BACKLOG, 2, OverflowPolicy.REJECT_NEW);
+        LoggingJob blocker = block();
+        LoggingJob oldest = new LoggingJob("oldest", Priority.BACKLOG, 1, false);
+        LoggingJob middle = new LoggingJob("middle", Priority.BACKLOG, 1, false);
+        LoggingJob newest = new LoggingJob("newest", Priority.BACKLOG, 1, false);
+        assertTrue(mScheduler.submit(oldest));
+        assertTrue(mScheduler.submit(middle));
+        assertFalse(mScheduler.submit(newest));
+
+        assertTrue(newest.isCancelled());
+        assertEquals(0, newest.mEnded.getCount());
+        blocker.release();
+
+        await(middle.mEnded);
+        assertEquals(Arrays.asList("blocker", "oldest", "middle"), mLog);
+    }
+}
@@ -0,0 +1,49 @@
+package com.example.voicecatch_ver2.engine;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class TokenOverlapTest {
+    // 2 s shared by 30 s chunks
+    private static final float OVERLAP_FRACTION = 2f / 30f;
+
+    private static List<Integer> range(int from, int to) {
+        List<Integer> tokens = new ArrayList<>();
+        for (int i = from; i < to; i++) {
+            tokens.add(i);
+        }
+        return tokens;
+    }
+
+    @Test
+    public void exactOverlapIsDropped() {
+        List<Integer> previous = range(0, 93);
+        previous.addAll(range(100, 107));
+        List<Integer> next = range(100, 107);
+        next.addAll(range(200, 293));
+
+        assertEquals(7, TokenOverlap.duplicates(previous, next, OVERLAP_FRACTION));
+    }
+
+    @Test
+    public void coincidentalPhraseIsNotTheSeam() {
+        // both chunks say tokens 500, 501, but not in the shared audio of the next chunk
+        List<Integer> previous = range(0, 40);
+        previous.set(35, 500);
+        previous.set(36, 501);
+        List<Integer> next = range(1000, 1040);
+        next.set(30, 500);
+        next.set(31, 501);
+
+        assertEquals(0, TokenOverlap.duplicates(previous, next, OVERLAP_FRACTION));
+    }
+
+    @Test
+    public void noCommonTokensDropsNothing() {
+        assertEquals(0, TokenOverlap.duplicates(range(0, 100), range(2000, 2040), OVERLAP_FRACTION));
+    }
+}